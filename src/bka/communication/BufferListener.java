@@ -0,0 +1,24 @@
+/*
+** Copyright © Bart Kampers
+*/
+
+package bka.communication;
+
+import java.nio.ByteBuffer;
+
+
+/**
+ * ChannelListener that receives data as a read only buffer instead of a fresh array.
+ * The buffer is only valid during the call to receive, its content is recycled afterwards.
+ * Listeners that need the data later must copy it.
+ */
+public interface BufferListener extends ChannelListener {
+
+    void receive(ByteBuffer buffer);
+
+    @Override
+    default void receive(byte[] bytes) {
+        receive(ByteBuffer.wrap(bytes).asReadOnlyBuffer());
+    }
+
+}
@@ -0,0 +1,77 @@
+/*
+** Copyright © Bart Kampers
+*/
+
+package bka.communication;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Pool of equally sized heap buffers, so receivers do not need to allocate for every read.
+ */
+public class BufferPool {
+
+
+    public BufferPool(int bufferSize, int maximumPoolSize) {
+        if (bufferSize <= 0 || maximumPoolSize < 0) {
+            throw new IllegalArgumentException();
+        }
+        this.bufferSize = bufferSize;
+        this.maximumPoolSize = maximumPoolSize;
+    }
+
+
+    public static BufferPool getDefault() {
+        return DEFAULT;
+    }
+
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+
+    /**
+     * @return cleared buffer of buffer size, backed by an accessible array
+     */
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = buffers.poll();
+        if (buffer == null) {
+            return ByteBuffer.allocate(bufferSize);
+        }
+        pooledCount.decrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+
+
+    /**
+     * Returns buffer to the pool. The buffer must not be used by the caller after release.
+     * @param buffer obtained from acquire
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer.capacity() != bufferSize || buffer.isReadOnly()) {
+            return;
+        }
+        if (pooledCount.incrementAndGet() <= maximumPoolSize) {
+            buffers.add(buffer);
+        }
+        else {
+            pooledCount.decrementAndGet();
+        }
+    }
+
+
+    private final int bufferSize;
+    private final int maximumPoolSize;
+
+    private final Queue<ByteBuffer> buffers = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooledCount = new AtomicInteger();
+
+    private static final BufferPool DEFAULT = new BufferPool(0x1000, 32);
+
+}
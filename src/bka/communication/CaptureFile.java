@@ -0,0 +1,148 @@
+/*
+** Copyright © Bart Kampers
+*/
+
+package bka.communication;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+
+/**
+ * Format of raw traffic capture files.
+ * A capture file starts with MAGIC followed by records of:
+ * int length, byte direction, long nano time, length bytes of data.
+ * A length of 0 marks the end of the records, the rest of the file is unused.
+ * A session that does not fit in one file continues in files with increasing sequence numbers.
+ */
+public final class CaptureFile {
+
+
+    public enum Direction { RECEIVED, SENT }
+
+
+    public static class Record {
+
+        Record(Direction direction, long nanoTime, ByteBuffer data) {
+            this.direction = direction;
+            this.nanoTime = nanoTime;
+            this.data = data;
+        }
+
+        public Direction getDirection() {
+            return direction;
+        }
+
+        /**
+         * @return System.nanoTime at the moment the data passed the channel
+         */
+        public long getNanoTime() {
+            return nanoTime;
+        }
+
+        /**
+         * @return read only buffer with the recorded bytes
+         */
+        public ByteBuffer getData() {
+            return data.duplicate();
+        }
+
+        private final Direction direction;
+        private final long nanoTime;
+        private final ByteBuffer data;
+    }
+
+
+    /**
+     * Reads the records of one capture file.
+     */
+    public static class Reader implements Closeable {
+
+        public Reader(File file) throws IOException {
+            try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r")) {
+                FileChannel fileChannel = randomAccessFile.getChannel();
+                buffer = fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, fileChannel.size());
+            }
+            if (buffer.remaining() < Long.BYTES || buffer.getLong() != MAGIC) {
+                throw new IOException("Not a capture file: " + file);
+            }
+        }
+
+        /**
+         * @return next record or null if all records are read
+         * @throws IOException if the file is corrupt
+         */
+        public Record next() throws IOException {
+            if (buffer.remaining() < Integer.BYTES) {
+                return null;
+            }
+            int length = buffer.getInt();
+            if (length == 0) {
+                return null;
+            }
+            if (length < 0 || buffer.remaining() < RECORD_HEADER_SIZE - Integer.BYTES + length) {
+                throw new IOException("Corrupt capture record");
+            }
+            int ordinal = buffer.get();
+            if (ordinal < 0 || ordinal >= DIRECTIONS.length) {
+                throw new IOException("Corrupt capture record direction " + ordinal);
+            }
+            Direction direction = DIRECTIONS[ordinal];
+            long nanoTime = buffer.getLong();
+            ByteBuffer data = buffer.slice();
+            data.limit(length);
+            buffer.position(buffer.position() + length);
+            return new Record(direction, nanoTime, data.asReadOnlyBuffer());
+        }
+
+        @Override
+        public void close() {
+            buffer = null;
+        }
+
+        private ByteBuffer buffer;
+    }
+
+
+    /**
+     * @param directory
+     * @param baseName
+     * @param sequence
+     * @return file with given sequence number of the capture session named baseName
+     */
+    public static File file(File directory, String baseName, int sequence) {
+        return new File(directory, String.format("%s-%04d%s", baseName, sequence, EXTENSION));
+    }
+
+
+    /**
+     * @param directory
+     * @param baseName
+     * @return existing files of the capture session named baseName, in recording order
+     */
+    public static List<File> files(File directory, String baseName) {
+        List<File> files = new ArrayList<>();
+        int sequence = 0;
+        File file = file(directory, baseName, sequence);
+        while (file.exists()) {
+            files.add(file);
+            sequence++;
+            file = file(directory, baseName, sequence);
+        }
+        return files;
+    }
+
+
+    private CaptureFile() {
+    }
+
+
+    static final long MAGIC = 0x424B414341503031L; // "BKACAP01"
+    static final int RECORD_HEADER_SIZE = Integer.BYTES + Byte.BYTES + Long.BYTES;
+    static final String EXTENSION = ".cap";
+
+    private static final Direction[] DIRECTIONS = Direction.values();
+
+}
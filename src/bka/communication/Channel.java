@@ -1,7 +1,9 @@
 package bka.communication;
 
 
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.*;
 
 /**
  * This class sends commands through any channel to which an ASE system is connected 
@@ -18,39 +20,122 @@ public abstract class Channel
     abstract public void send(byte[] bytes);
      
 
-    public void addListener(ChannelListener listener) {
-        if (! listeners.contains(listener)) {
-            listeners.addElement(listener);
+    /**
+     * Sends the remaining bytes of all buffers as one transmission.
+     * Channels that support gathering writes should override this method.
+     * @param buffers
+     */
+    public void send(ByteBuffer[] buffers) {
+        int size = 0;
+        for (ByteBuffer buffer : buffers) {
+            size += buffer.remaining();
+        }
+        ByteBuffer joined = ByteBuffer.allocate(size);
+        for (ByteBuffer buffer : buffers) {
+            joined.put(buffer);
+        }
+        send(joined.array());
+    }
+
+
+    /**
+     * Transmits any data held back by the channel.
+     */
+    public void flush() {
+    }
+
+
+    public synchronized void addListener(ChannelListener listener) {
+        if (find(listener) == null) {
+            listeners.add(listener);
+        }
+    }
+
+
+    /**
+     * Adds a listener that is notified on its own executor instead of the receiving thread.
+     * Received data is handed over through a queue holding at most capacity chunks.
+     * @param listener
+     * @param executor
+     * @param capacity 
+     */
+    public synchronized void addListener(ChannelListener listener, Executor executor, int capacity) {
+        if (find(listener) == null) {
+            listeners.add(new Dispatcher(listener, executor, capacity));
         }
     }
 
 
-    public void removeListener(ChannelListener listener) {
-        listeners.removeElement(listener);
+    public synchronized void removeListener(ChannelListener listener) {
+        ChannelListener registered = find(listener);
+        if (registered != null) {
+            listeners.remove(registered);
+        }
+    }
+
+
+    /**
+     * @param listener
+     * @return the dispatcher of listener if it was added with an executor, null otherwise 
+     */
+    public Dispatcher getDispatcher(ChannelListener listener) {
+        ChannelListener registered = find(listener);
+        return (registered instanceof Dispatcher) ? (Dispatcher) registered : null;
     }
 
     
     public void close() throws ChannelException {
-        listeners.removeAllElements();
+        listeners.clear();
     }
 
    
     protected void notifyListeners(byte[] bytes) {
-        Enumeration en = listeners.elements();
-        while (en.hasMoreElements()) {
-            ((ChannelListener) en.nextElement()).receive(bytes);
+        for (ChannelListener listener : listeners) {
+            listener.receive(bytes);
+        }
+    }
+    
+    
+    /**
+     * Notifies the bytes between position and limit of buffer.
+     * BufferListeners receive a read only view on the buffer, other listeners a copy.
+     * The buffer may be reused by the caller as soon as this method returns.
+     * @param buffer
+     */
+    protected void notifyListeners(ByteBuffer buffer) {
+        byte[] bytes = null;
+        for (ChannelListener listener : listeners) {
+            if (listener instanceof BufferListener) {
+                ((BufferListener) listener).receive(buffer.asReadOnlyBuffer());
+            }
+            else {
+                if (bytes == null) {
+                    bytes = new byte[buffer.remaining()];
+                    buffer.duplicate().get(bytes);
+                }
+                listener.receive(bytes);
+            }
         }
     }
     
     
     protected void notifyListeners(Exception e) {
-        Enumeration en = listeners.elements();
-        while (en.hasMoreElements()) {
-            ((ChannelListener) en.nextElement()).handleException(e);
+        for (ChannelListener listener : listeners) {
+            listener.handleException(e);
+        }
+    }
+
+
+    private ChannelListener find(ChannelListener listener) {
+        for (ChannelListener registered : listeners) {
+            if (registered.equals(listener) || registered instanceof Dispatcher && ((Dispatcher) registered).getListener().equals(listener)) {
+                return registered;
+            }
         }
+        return null;
     }
 
 
-    private Vector listeners = new Vector();
+    private final List<ChannelListener> listeners = new CopyOnWriteArrayList<>();
 
-}
\ No newline at end of file
+}
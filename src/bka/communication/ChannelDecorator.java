@@ -0,0 +1,104 @@
+/*
+** Copyright © Bart Kampers
+*/
+
+package bka.communication;
+
+import java.nio.ByteBuffer;
+import java.util.Objects;
+
+
+/**
+ * Base for channels that add behaviour to another channel.
+ * All calls are delegated to the decorated channel, data received by the decorated
+ * channel is passed on to the listeners of the decorator.
+ */
+public abstract class ChannelDecorator extends Channel {
+
+
+    protected ChannelDecorator(Channel channel) {
+        this.channel = Objects.requireNonNull(channel);
+    }
+
+
+    public Channel getChannel() {
+        return channel;
+    }
+
+
+    @Override
+    public void open(String name) throws ChannelException {
+        channel.addListener(forwarder);
+        channel.open(name);
+    }
+
+
+    @Override
+    public void send(byte[] bytes) {
+        channel.send(bytes);
+    }
+
+
+    @Override
+    public void send(ByteBuffer[] buffers) {
+        channel.send(buffers);
+    }
+
+
+    @Override
+    public void flush() {
+        channel.flush();
+    }
+
+
+    @Override
+    public void close() throws ChannelException {
+        channel.removeListener(forwarder);
+        channel.close();
+        super.close();
+    }
+
+
+    @Override
+    public String toString() {
+        return channel.toString();
+    }
+
+
+    /**
+     * Called when the decorated channel received data.
+     * @param buffer
+     */
+    protected void received(ByteBuffer buffer) {
+        notifyListeners(buffer);
+    }
+
+
+    /**
+     * Called when the decorated channel reports an exception.
+     * @param exception
+     */
+    protected void failed(Exception exception) {
+        notifyListeners(exception);
+    }
+
+
+    private class Forwarder implements BufferListener {
+
+        @Override
+        public void receive(ByteBuffer buffer) {
+            received(buffer);
+        }
+
+        @Override
+        public void handleException(Exception exception) {
+            failed(exception);
+        }
+
+    }
+
+
+    private final Channel channel;
+    private final BufferListener forwarder = new Forwarder();
+
+}
@@ -7,4 +7,9 @@ public class ChannelException extends Exception
         super(cause);
     }
 
-}
\ No newline at end of file
+    
+    public ChannelException(String message) {
+        super(message);
+    }
+
+}
@@ -0,0 +1,135 @@
+/*
+** Copyright © Bart Kampers
+*/
+
+package bka.communication;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.*;
+
+
+/**
+ * Output stage that collects sent frames and passes them to the decorated channel in one
+ * gathering send. Collected frames are sent when their total size reaches the size threshold,
+ * when no frame was sent during the idle time or when flush is called.
+ * The buffers of one gathering send to this channel form one frame.
+ * A sender that flushes after every frame, like a Messenger in stop-and-wait mode,
+ * gains nothing from coalescing.
+ */
+public class CoalescingChannel extends ChannelDecorator {
+
+
+    public CoalescingChannel(Channel channel, int sizeThreshold, long idleTime, TimeUnit unit) {
+        super(channel);
+        if (sizeThreshold <= 0 || idleTime < 0) {
+            throw new IllegalArgumentException();
+        }
+        this.sizeThreshold = sizeThreshold;
+        this.idleNanos = unit.toNanos(idleTime);
+    }
+
+
+    @Override
+    public synchronized void send(byte[] bytes) {
+        pending.add(ByteBuffer.wrap(bytes));
+        pendingSize += bytes.length;
+        lastSendNanos = System.nanoTime();
+        if (pendingSize >= sizeThreshold) {
+            sendPending();
+        }
+        else if (idleCheck == null) {
+            idleCheck = SCHEDULER.schedule(this::checkIdle, idleNanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+
+    @Override
+    public synchronized void send(ByteBuffer[] buffers) {
+        int size = 0;
+        for (ByteBuffer buffer : buffers) {
+            size += buffer.remaining();
+        }
+        ByteBuffer frame = ByteBuffer.allocate(size);
+        for (ByteBuffer buffer : buffers) {
+            frame.put(buffer);
+        }
+        send(frame.array());
+    }
+
+
+    /**
+     * Sends all collected frames immediately.
+     */
+    @Override
+    public synchronized void flush() {
+        sendPending();
+        super.flush();
+    }
+
+
+    @Override
+    public void close() throws ChannelException {
+        flush();
+        super.close();
+    }
+
+
+    public synchronized long getGatheringSendCount() {
+        return gatheringSendCount;
+    }
+
+
+    public synchronized long getFrameCount() {
+        return frameCount;
+    }
+
+
+    private synchronized void checkIdle() {
+        idleCheck = null;
+        if (! pending.isEmpty()) {
+            long remaining = lastSendNanos + idleNanos - System.nanoTime();
+            if (remaining <= 0) {
+                sendPending();
+            }
+            else {
+                idleCheck = SCHEDULER.schedule(this::checkIdle, remaining, TimeUnit.NANOSECONDS);
+            }
+        }
+    }
+
+
+    private void sendPending() {
+        if (idleCheck != null) {
+            idleCheck.cancel(false);
+            idleCheck = null;
+        }
+        if (! pending.isEmpty()) {
+            ByteBuffer[] frames = pending.toArray(new ByteBuffer[pending.size()]);
+            frameCount += frames.length;
+            gatheringSendCount++;
+            pending.clear();
+            pendingSize = 0;
+            getChannel().send(frames);
+        }
+    }
+
+
+    private final int sizeThreshold;
+    private final long idleNanos;
+
+    private final List<ByteBuffer> pending = new ArrayList<>();
+    private int pendingSize;
+    private long lastSendNanos;
+    private ScheduledFuture<?> idleCheck;
+
+    private long gatheringSendCount;
+    private long frameCount;
+
+    private static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, CoalescingChannel.class.getSimpleName());
+        thread.setDaemon(true);
+        return thread;
+    });
+
+}
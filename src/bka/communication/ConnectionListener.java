@@ -0,0 +1,16 @@
+/*
+** Copyright © Bart Kampers
+*/
+
+package bka.communication;
+
+
+/**
+ * Notified when a channel loses its connection and when the connection is restored.
+ */
+public interface ConnectionListener {
+
+    void connectionLost(Exception cause);
+    void connectionRestored();
+
+}
@@ -0,0 +1,209 @@
+/*
+** Copyright © Bart Kampers
+*/
+
+package bka.communication;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.logging.*;
+
+
+/**
+ * Hands received data over to a listener that runs on its own executor.
+ * The receiving thread only copies the data into a pooled buffer and queues it,
+ * so a slow listener cannot stall the channel. When the queue is full the data is
+ * dropped and the listener is notified of the overflow, on the executor like any
+ * other notification, after the data that was queued before the loss.
+ */
+public final class Dispatcher implements BufferListener {
+
+
+    Dispatcher(ChannelListener listener, Executor executor, int capacity) {
+        this.listener = Objects.requireNonNull(listener);
+        this.executor = Objects.requireNonNull(executor);
+        this.queue = new ArrayBlockingQueue<>(capacity);
+    }
+
+
+    public ChannelListener getListener() {
+        return listener;
+    }
+
+
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+
+    public int getMaximumQueueDepth() {
+        return maximumQueueDepth.get();
+    }
+
+
+    public long getDispatchCount() {
+        return dispatchCount.get();
+    }
+
+
+    public long getOverflowCount() {
+        return overflowCount.get();
+    }
+
+
+    /**
+     * @return average time in nanoseconds between queueing and delivering data
+     */
+    public long getAverageLatency() {
+        long count = dispatchCount.get();
+        return (count > 0) ? totalLatency.get() / count : 0;
+    }
+
+
+    /**
+     * @return longest time in nanoseconds between queueing and delivering data
+     */
+    public long getMaximumLatency() {
+        return maximumLatency.get();
+    }
+
+
+    @Override
+    public void receive(ByteBuffer buffer) {
+        ByteBuffer copy = (buffer.remaining() <= BUFFER_POOL.getBufferSize()) ? BUFFER_POOL.acquire() : ByteBuffer.allocate(buffer.remaining());
+        copy.put(buffer);
+        copy.flip();
+        enqueue(new Chunk(copy, null));
+    }
+
+
+    @Override
+    public void handleException(Exception ex) {
+        enqueue(new Chunk(null, ex));
+    }
+
+
+    private void enqueue(Chunk chunk) {
+        chunk.sequence = sequence.incrementAndGet();
+        if (queue.offer(chunk)) {
+            maximumQueueDepth.accumulateAndGet(queue.size(), Math::max);
+        }
+        else {
+            overflowCount.incrementAndGet();
+            release(chunk);
+            LOGGER.log(Level.FINE, "Dispatch queue overflow for {0}", listener);
+            overflowMark.compareAndSet(NO_OVERFLOW, chunk.sequence - 1);
+        }
+        schedule();
+    }
+
+
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            executor.execute(this::drain);
+        }
+    }
+
+
+    private void drain() {
+        Chunk chunk = queue.poll();
+        while (chunk != null) {
+            deliver(chunk);
+            notifyOverflow(chunk.sequence);
+            chunk = queue.poll();
+        }
+        notifyOverflow(Long.MAX_VALUE);
+        scheduled.set(false);
+        if (! queue.isEmpty() || overflowMark.get() != NO_OVERFLOW) {
+            schedule();
+        }
+    }
+
+
+    /**
+     * Notifies a pending overflow once the data queued before it is delivered.
+     * @param delivered sequence number of the last delivered chunk
+     */
+    private void notifyOverflow(long delivered) {
+        long mark = overflowMark.get();
+        if (mark != NO_OVERFLOW && delivered >= mark && overflowMark.compareAndSet(mark, NO_OVERFLOW)) {
+            try {
+                listener.handleException(new ChannelException("Dispatch queue overflow"));
+            }
+            catch (RuntimeException ex) {
+                LOGGER.log(Level.WARNING, listener.getClass().getName(), ex);
+            }
+        }
+    }
+
+
+    private void deliver(Chunk chunk) {
+        long latency = System.nanoTime() - chunk.queued;
+        totalLatency.addAndGet(latency);
+        maximumLatency.accumulateAndGet(latency, Math::max);
+        dispatchCount.incrementAndGet();
+        try {
+            if (chunk.exception != null) {
+                listener.handleException(chunk.exception);
+            }
+            else if (listener instanceof BufferListener) {
+                ((BufferListener) listener).receive(chunk.buffer.asReadOnlyBuffer());
+            }
+            else {
+                byte[] bytes = new byte[chunk.buffer.remaining()];
+                chunk.buffer.get(bytes);
+                listener.receive(bytes);
+            }
+        }
+        catch (RuntimeException ex) {
+            LOGGER.log(Level.WARNING, listener.getClass().getName(), ex);
+        }
+        finally {
+            release(chunk);
+        }
+    }
+
+
+    private static void release(Chunk chunk) {
+        if (chunk.buffer != null) {
+            BUFFER_POOL.release(chunk.buffer);
+        }
+    }
+
+
+    private static class Chunk {
+
+        Chunk(ByteBuffer buffer, Exception exception) {
+            this.buffer = buffer;
+            this.exception = exception;
+        }
+
+        final ByteBuffer buffer;
+        final Exception exception;
+        final long queued = System.nanoTime();
+        long sequence;
+    }
+
+
+    private final ChannelListener listener;
+    private final Executor executor;
+    private final BlockingQueue<Chunk> queue;
+
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicLong overflowMark = new AtomicLong(NO_OVERFLOW);
+
+    private final AtomicInteger maximumQueueDepth = new AtomicInteger();
+    private final AtomicLong dispatchCount = new AtomicLong();
+    private final AtomicLong overflowCount = new AtomicLong();
+    private final AtomicLong totalLatency = new AtomicLong();
+    private final AtomicLong maximumLatency = new AtomicLong();
+
+    private static final BufferPool BUFFER_POOL = BufferPool.getDefault();
+    private static final long NO_OVERFLOW = -1;
+
+    private static final Logger LOGGER = Logger.getLogger(Dispatcher.class.getName());
+
+}
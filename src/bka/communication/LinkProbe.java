@@ -0,0 +1,65 @@
+/*
+** Copyright © Bart Kampers
+*/
+
+package bka.communication;
+
+
+/**
+ * Exchanges test traffic over an open channel to measure its quality.
+ */
+public interface LinkProbe {
+
+
+    Result probe(Channel channel) throws InterruptedException;
+
+
+    final class Result {
+
+        public Result(int exchangeCount, int errorCount, long byteCount, long nanos) {
+            this.exchangeCount = exchangeCount;
+            this.errorCount = errorCount;
+            this.byteCount = byteCount;
+            this.nanos = nanos;
+        }
+
+        public int getExchangeCount() {
+            return exchangeCount;
+        }
+
+        public int getErrorCount() {
+            return errorCount;
+        }
+
+        /**
+         * @return number of bytes sent and received
+         */
+        public long getByteCount() {
+            return byteCount;
+        }
+
+        public long getNanos() {
+            return nanos;
+        }
+
+        public boolean isReliable() {
+            return exchangeCount > 0 && errorCount == 0;
+        }
+
+        public double getBytesPerSecond() {
+            return (nanos > 0) ? byteCount * 1e9 / nanos : 0.0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d exchanges, %d errors, %.0f bytes/s", exchangeCount, errorCount, getBytesPerSecond());
+        }
+
+        private final int exchangeCount;
+        private final int errorCount;
+        private final long byteCount;
+        private final long nanos;
+
+    }
+
+}
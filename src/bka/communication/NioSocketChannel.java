@@ -0,0 +1,136 @@
+/*
+** Copyright © Bart Kampers
+*/
+
+package bka.communication;
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+
+/**
+ * Socket channel without a thread of its own.
+ * Reading and writing is done by a SocketMultiplexer that serves many channels.
+ */
+public class NioSocketChannel extends Channel {
+
+
+    private NioSocketChannel(SocketMultiplexer multiplexer, String host, int port) {
+        this.multiplexer = Objects.requireNonNull(multiplexer);
+        this.host = host;
+        this.port = port;
+    }
+
+
+    public static NioSocketChannel create(String host, int port) {
+        return create(SocketMultiplexer.getDefault(), host, port);
+    }
+
+
+    public static NioSocketChannel create(SocketMultiplexer multiplexer, String host, int port) {
+        return new NioSocketChannel(multiplexer, host, port);
+    }
+
+
+    @Override
+    public void open(String name) throws ChannelException {
+        try {
+            socketChannel = java.nio.channels.SocketChannel.open(new InetSocketAddress(host, port));
+            socketChannel.configureBlocking(false);
+            multiplexer.register(this);
+        }
+        catch (IOException ex) {
+            throw new ChannelException(ex);
+        }
+    }
+
+
+    @Override
+    public void send(byte[] bytes) {
+        synchronized (outgoing) {
+            outgoing.add(ByteBuffer.wrap(bytes));
+        }
+        multiplexer.requestWrite(this);
+    }
+
+
+    /**
+     * Queues the buffers as one unit, data of concurrent senders is not interleaved.
+     * @param buffers
+     */
+    @Override
+    public void send(ByteBuffer[] buffers) {
+        synchronized (outgoing) {
+            outgoing.addAll(Arrays.asList(buffers));
+        }
+        multiplexer.requestWrite(this);
+    }
+
+
+    @Override
+    public void close() throws ChannelException {
+        try {
+            if (socketChannel != null) {
+                multiplexer.cancel(this);
+                socketChannel.close();
+            }
+            outgoing.clear();
+            super.close();
+        }
+        catch (IOException ex) {
+            throw new ChannelException(ex);
+        }
+    }
+
+
+    public String getHost() {
+        return host;
+    }
+
+
+    public int getPort() {
+        return port;
+    }
+
+
+    @Override
+    public String toString() {
+        return host;
+    }
+
+
+    java.nio.channels.SocketChannel getSocketChannel() {
+        return socketChannel;
+    }
+
+
+    /**
+     * Writes as much of the outgoing data as the socket accepts in one gathering write.
+     * Called on the I/O thread of the multiplexer only.
+     * @return true if all outgoing data is written
+     */
+    boolean writePending() throws IOException {
+        ByteBuffer[] buffers = outgoing.toArray(new ByteBuffer[0]);
+        socketChannel.write(buffers);
+        for (ByteBuffer buffer : buffers) {
+            if (buffer.hasRemaining()) {
+                return false;
+            }
+            outgoing.remove();
+        }
+        return outgoing.isEmpty();
+    }
+
+
+    private final SocketMultiplexer multiplexer;
+    private final String host;
+    private final int port;
+
+    private java.nio.channels.SocketChannel socketChannel;
+
+    private final Queue<ByteBuffer> outgoing = new ConcurrentLinkedQueue<>();
+
+}
@@ -0,0 +1,206 @@
+/*
+** Copyright © Bart Kampers
+*/
+
+package bka.communication;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.*;
+
+
+/**
+ * Reopens the decorated channel when it fails. Attempts are retried with exponential
+ * backoff until the connection is restored or this channel is closed.
+ * Data sent while the connection is down is discarded.
+ * Listeners of this channel keep their registration across reconnects.
+ */
+public class ReconnectingChannel extends ChannelDecorator {
+
+
+    public ReconnectingChannel(Channel channel, long initialDelay, long maximumDelay, TimeUnit unit) {
+        super(channel);
+        if (initialDelay <= 0 || maximumDelay < initialDelay) {
+            throw new IllegalArgumentException();
+        }
+        this.initialDelayNanos = unit.toNanos(initialDelay);
+        this.maximumDelayNanos = unit.toNanos(maximumDelay);
+    }
+
+
+    public void addConnectionListener(ConnectionListener listener) {
+        connectionListeners.addIfAbsent(listener);
+    }
+
+
+    public void removeConnectionListener(ConnectionListener listener) {
+        connectionListeners.remove(listener);
+    }
+
+
+    @Override
+    public synchronized void open(String name) throws ChannelException {
+        this.name = name;
+        super.open(name);
+        connected = true;
+        closed = false;
+    }
+
+
+    @Override
+    public void send(byte[] bytes) {
+        if (connected) {
+            super.send(bytes);
+        }
+        else {
+            discardedCount.incrementAndGet();
+        }
+    }
+
+
+    @Override
+    public void send(ByteBuffer[] buffers) {
+        if (connected) {
+            super.send(buffers);
+        }
+        else {
+            discardedCount.incrementAndGet();
+        }
+    }
+
+
+    @Override
+    public void close() throws ChannelException {
+        synchronized (this) {
+            closed = true;
+            connected = false;
+            if (reconnect != null) {
+                reconnect.cancel(false);
+                reconnect = null;
+            }
+        }
+        super.close();
+    }
+
+
+    public boolean isConnected() {
+        return connected;
+    }
+
+
+    public long getReconnectCount() {
+        return reconnectCount;
+    }
+
+
+    /**
+     * @return number of sends discarded while the connection was down
+     */
+    public long getDiscardedCount() {
+        return discardedCount.get();
+    }
+
+
+    @Override
+    protected void failed(Exception exception) {
+        boolean lost;
+        synchronized (this) {
+            lost = connected && ! closed;
+            if (lost) {
+                connected = false;
+                delayNanos = initialDelayNanos;
+                scheduleReconnect();
+            }
+        }
+        super.failed(exception);
+        if (lost) {
+            LOGGER.log(Level.WARNING, "Connection to {0} lost", this);
+            connectionListeners.forEach(listener -> listener.connectionLost(exception));
+        }
+    }
+
+
+    private void scheduleReconnect() {
+        reconnect = SCHEDULER.schedule(this::reconnect, delayNanos, TimeUnit.NANOSECONDS);
+    }
+
+
+    /**
+     * The decorated channel is opened outside the monitor, so close and failed
+     * do not wait for a connection attempt that may block.
+     * A connection made after this channel was closed is closed again.
+     */
+    private void reconnect() {
+        String channelName;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            channelName = name;
+        }
+        try {
+            getChannel().close();
+            super.open(channelName);
+        }
+        catch (ChannelException ex) {
+            LOGGER.log(Level.FINE, toString(), ex);
+            synchronized (this) {
+                if (! closed) {
+                    delayNanos = Math.min(delayNanos * 2, maximumDelayNanos);
+                    scheduleReconnect();
+                }
+            }
+            return;
+        }
+        boolean abandoned;
+        synchronized (this) {
+            abandoned = closed;
+            if (! abandoned) {
+                connected = true;
+                reconnect = null;
+                reconnectCount++;
+            }
+        }
+        if (abandoned) {
+            closeDecorated();
+            return;
+        }
+        LOGGER.log(Level.INFO, "Connection to {0} restored", this);
+        connectionListeners.forEach(ConnectionListener::connectionRestored);
+    }
+
+
+    private void closeDecorated() {
+        try {
+            super.close();
+        }
+        catch (ChannelException ex) {
+            LOGGER.log(Level.FINE, toString(), ex);
+        }
+    }
+
+
+    private final long initialDelayNanos;
+    private final long maximumDelayNanos;
+
+    private final CopyOnWriteArrayList<ConnectionListener> connectionListeners = new CopyOnWriteArrayList<>();
+
+    private String name;
+    private volatile boolean connected;
+    private boolean closed;
+    private long delayNanos;
+    private ScheduledFuture<?> reconnect;
+
+    private volatile long reconnectCount;
+    private final AtomicLong discardedCount = new AtomicLong();
+
+    private static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, ReconnectingChannel.class.getSimpleName());
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static final Logger LOGGER = Logger.getLogger(ReconnectingChannel.class.getName());
+
+}
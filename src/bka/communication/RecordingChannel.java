@@ -0,0 +1,252 @@
+/*
+** Copyright © Bart Kampers
+*/
+
+package bka.communication;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.*;
+
+
+/**
+ * Records all data received and sent through the decorated channel in capture files.
+ * The channel threads only queue copies of the data, a writer thread appends them
+ * to a preallocated memory mapped file and continues in a new file when it is full.
+ * When the writer cannot keep up, data is dropped from the capture and counted.
+ * When the writer fails, for instance because a file can not be created, all further
+ * data is dropped and counted.
+ * Opening the channel again continues the session behind its existing files,
+ * so earlier captures are not overwritten.
+ * @see CaptureFile
+ */
+public class RecordingChannel extends ChannelDecorator {
+
+
+    public RecordingChannel(Channel channel, File directory, String baseName, int fileSize) {
+        super(channel);
+        if (fileSize <= Long.BYTES + CaptureFile.RECORD_HEADER_SIZE) {
+            throw new IllegalArgumentException("File size too small");
+        }
+        this.directory = directory;
+        this.baseName = baseName;
+        this.fileSize = fileSize;
+    }
+
+
+    @Override
+    public void open(String name) throws ChannelException {
+        if (writer == null) {
+            writer = new Writer();
+            Thread thread = new Thread(writer, RecordingChannel.class.getSimpleName());
+            thread.setDaemon(true);
+            thread.start();
+        }
+        super.open(name);
+    }
+
+
+    @Override
+    public void send(byte[] bytes) {
+        record(CaptureFile.Direction.SENT, ByteBuffer.wrap(bytes));
+        super.send(bytes);
+    }
+
+
+    @Override
+    public void send(ByteBuffer[] buffers) {
+        for (ByteBuffer buffer : buffers) {
+            record(CaptureFile.Direction.SENT, buffer.duplicate());
+        }
+        super.send(buffers);
+    }
+
+
+    /**
+     * Returns after the queued data is written and the last file is finished.
+     */
+    @Override
+    public void close() throws ChannelException {
+        super.close();
+        if (writer != null) {
+            writer.stop();
+            writer = null;
+        }
+    }
+
+
+    public long getRecordedCount() {
+        return recordedCount.get();
+    }
+
+
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+
+    @Override
+    protected void received(ByteBuffer buffer) {
+        record(CaptureFile.Direction.RECEIVED, buffer.duplicate());
+        super.received(buffer);
+    }
+
+
+    private void record(CaptureFile.Direction direction, ByteBuffer data) {
+        Writer activeWriter = writer;
+        if (activeWriter != null) {
+            if (activeWriter.isDone()) {
+                droppedCount.incrementAndGet();
+                return;
+            }
+            byte[] bytes = new byte[data.remaining()];
+            data.get(bytes);
+            Chunk chunk = new Chunk(direction, System.nanoTime(), bytes);
+            if (! activeWriter.queue.offer(chunk) || activeWriter.isDone() && activeWriter.queue.remove(chunk)) {
+                droppedCount.incrementAndGet();
+            }
+        }
+    }
+
+
+    private class Writer implements Runnable {
+
+        Writer() {
+            sequence = CaptureFile.files(directory, baseName).size();
+        }
+
+        @Override
+        public void run() {
+            Chunk chunk = null;
+            try {
+                chunk = queue.take();
+                while (chunk != STOP) {
+                    write(chunk);
+                    chunk = queue.take();
+                }
+            }
+            catch (InterruptedException | IOException ex) {
+                LOGGER.log(Level.SEVERE, RecordingChannel.class.getName(), ex);
+                if (chunk != null && chunk != STOP) {
+                    droppedCount.incrementAndGet();
+                }
+            }
+            finally {
+                finishFile();
+                done = true;
+                dropQueued();
+                finished.countDown();
+            }
+        }
+
+        /**
+         * Waits until the writer finished, returns at once if it failed.
+         */
+        void stop() {
+            try {
+                while (! isDone() && ! queue.offer(STOP, STOP_RETRY_TIME, TimeUnit.MILLISECONDS)) {
+                    LOGGER.log(Level.FINE, "Capture queue full, waiting for writer");
+                }
+                finished.await();
+            }
+            catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * @return true once the writer takes no more chunks
+         */
+        boolean isDone() {
+            return done;
+        }
+
+        /**
+         * Counts the chunks that will not be written as dropped.
+         */
+        private void dropQueued() {
+            Chunk chunk = queue.poll();
+            while (chunk != null) {
+                if (chunk != STOP) {
+                    droppedCount.incrementAndGet();
+                }
+                chunk = queue.poll();
+            }
+        }
+
+        private void write(Chunk chunk) throws IOException {
+            int size = CaptureFile.RECORD_HEADER_SIZE + chunk.bytes.length;
+            if (size > fileSize - Long.BYTES) {
+                droppedCount.incrementAndGet();
+                return;
+            }
+            if (mapped == null || mapped.remaining() < size) {
+                finishFile();
+                startFile();
+            }
+            mapped.putInt(chunk.bytes.length);
+            mapped.put((byte) chunk.direction.ordinal());
+            mapped.putLong(chunk.nanoTime);
+            mapped.put(chunk.bytes);
+            recordedCount.incrementAndGet();
+        }
+
+        private void startFile() throws IOException {
+            File file = CaptureFile.file(directory, baseName, sequence++);
+            try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+                randomAccessFile.setLength(0);
+                randomAccessFile.setLength(fileSize);
+                mapped = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, fileSize);
+            }
+            mapped.putLong(CaptureFile.MAGIC);
+        }
+
+        private void finishFile() {
+            if (mapped != null) {
+                mapped.force();
+                mapped = null;
+            }
+        }
+
+        private final BlockingQueue<Chunk> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        private final CountDownLatch finished = new CountDownLatch(1);
+        private volatile boolean done;
+        private MappedByteBuffer mapped;
+        private int sequence;
+    }
+
+
+    private static class Chunk {
+
+        Chunk(CaptureFile.Direction direction, long nanoTime, byte[] bytes) {
+            this.direction = direction;
+            this.nanoTime = nanoTime;
+            this.bytes = bytes;
+        }
+
+        final CaptureFile.Direction direction;
+        final long nanoTime;
+        final byte[] bytes;
+    }
+
+
+    private final File directory;
+    private final String baseName;
+    private final int fileSize;
+
+    private volatile Writer writer;
+
+    private final AtomicLong recordedCount = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+
+    private static final Chunk STOP = new Chunk(CaptureFile.Direction.RECEIVED, 0, new byte[0]);
+
+    private static final int QUEUE_CAPACITY = 0x1000;
+    private static final long STOP_RETRY_TIME = 10; // ms
+
+    private static final Logger LOGGER = Logger.getLogger(RecordingChannel.class.getName());
+
+}
@@ -0,0 +1,175 @@
+/*
+** Copyright © Bart Kampers
+*/
+
+package bka.communication;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.*;
+
+
+/**
+ * Channel that plays back the received data of a captured session to its listeners.
+ * Playback keeps the recorded timing divided by speed. With MAXIMUM_SPEED all data is
+ * notified as fast as the listeners accept it. Data sent to this channel is discarded.
+ * @see RecordingChannel
+ */
+public class ReplayChannel extends Channel {
+
+
+    public static final double ORIGINAL_SPEED = 1.0;
+    public static final double MAXIMUM_SPEED = Double.POSITIVE_INFINITY;
+
+
+    private ReplayChannel(List<File> files, double speed) {
+        if (files.isEmpty() || ! (speed > 0.0)) {
+            throw new IllegalArgumentException();
+        }
+        this.files = new ArrayList<>(files);
+        this.speed = speed;
+    }
+
+
+    public static ReplayChannel create(List<File> files, double speed) {
+        return new ReplayChannel(files, speed);
+    }
+
+
+    public static ReplayChannel create(File directory, String baseName, double speed) {
+        return new ReplayChannel(CaptureFile.files(directory, baseName), speed);
+    }
+
+
+    @Override
+    public void open(String name) throws ChannelException {
+        if (thread == null) {
+            finished = new CountDownLatch(1);
+            running = true;
+            thread = new Thread(this::replay, ReplayChannel.class.getSimpleName());
+            thread.start();
+        }
+    }
+
+
+    @Override
+    public void send(byte[] bytes) {
+        discardedByteCount.addAndGet(bytes.length);
+    }
+
+
+    @Override
+    public void close() throws ChannelException {
+        running = false;
+        if (thread != null) {
+            thread.interrupt();
+            thread = null;
+        }
+        super.close();
+    }
+
+
+    /**
+     * Waits until all data is played back or the channel is closed.
+     * @param timeout
+     * @param unit
+     * @return true if playback finished within timeout
+     * @throws InterruptedException 
+     */
+    public boolean awaitCompletion(long timeout, TimeUnit unit) throws InterruptedException {
+        CountDownLatch latch = finished;
+        return latch != null && latch.await(timeout, unit);
+    }
+
+
+    public long getReplayedRecordCount() {
+        return replayedRecordCount;
+    }
+
+
+    public long getReplayedByteCount() {
+        return replayedByteCount;
+    }
+
+
+    public long getDiscardedByteCount() {
+        return discardedByteCount.get();
+    }
+
+
+    @Override
+    public String toString() {
+        return files.get(0).getName();
+    }
+
+
+    private void replay() {
+        try {
+            long startNanos = System.nanoTime();
+            long firstRecordNanos = 0;
+            boolean first = true;
+            Iterator<File> fileIterator = files.iterator();
+            while (running && fileIterator.hasNext()) {
+                try (CaptureFile.Reader reader = new CaptureFile.Reader(fileIterator.next())) {
+                    CaptureFile.Record record = reader.next();
+                    while (running && record != null) {
+                        if (record.getDirection() == CaptureFile.Direction.RECEIVED) {
+                            if (first) {
+                                firstRecordNanos = record.getNanoTime();
+                                first = false;
+                            }
+                            awaitTime(startNanos, record.getNanoTime() - firstRecordNanos);
+                            replay(record);
+                        }
+                        record = reader.next();
+                    }
+                }
+            }
+        }
+        catch (IOException ex) {
+            LOGGER.log(Level.WARNING, ReplayChannel.class.getName(), ex);
+            notifyListeners(ex);
+        }
+        finally {
+            finished.countDown();
+        }
+    }
+
+
+    private void awaitTime(long startNanos, long recordedOffset) {
+        if (speed != MAXIMUM_SPEED) {
+            long due = startNanos + (long) (recordedOffset / speed);
+            long delay = due - System.nanoTime();
+            while (running && delay > 0) {
+                LockSupport.parkNanos(delay);
+                delay = due - System.nanoTime();
+            }
+        }
+    }
+
+
+    private void replay(CaptureFile.Record record) {
+        java.nio.ByteBuffer data = record.getData();
+        replayedByteCount += data.remaining();
+        replayedRecordCount++;
+        notifyListeners(data);
+    }
+
+
+    private final List<File> files;
+    private final double speed;
+
+    private Thread thread;
+    private volatile boolean running;
+    private volatile CountDownLatch finished;
+
+    private volatile long replayedRecordCount;
+    private volatile long replayedByteCount;
+    private final AtomicLong discardedByteCount = new AtomicLong();
+
+    private static final Logger LOGGER = Logger.getLogger(ReplayChannel.class.getName());
+
+}
@@ -3,6 +3,7 @@ package bka.communication;
 
 import gnu.io.*;
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
 import java.util.logging.*;
 
@@ -77,6 +78,50 @@ public class SerialPortChannel extends Channel
     }
     
     
+    /**
+     * Steps through the candidate baud rates, fastest first, and settles on the
+     * first rate at which the probe finds the link reliable.
+     * The original baud rate is restored if none of the candidates is reliable,
+     * or when the negotiation fails or is interrupted.
+     * Only the baud rate of this port is changed, the remote device must follow
+     * by itself.
+     * @param candidates
+     * @param probe
+     * @return result of the probe at the selected baud rate
+     * @throws ChannelException if no candidate baud rate is reliable
+     * @throws InterruptedException 
+     */
+    public LinkProbe.Result negotiateBaud(int[] candidates, LinkProbe probe) throws ChannelException, InterruptedException {
+        int originalBaud = getBaud();
+        int[] rates = candidates.clone();
+        Arrays.sort(rates);
+        boolean negotiated = false;
+        try {
+            for (int i = rates.length - 1; i >= 0; --i) {
+                setBaud(rates[i]);
+                Thread.sleep(SETTLE_TIME);
+                LinkProbe.Result result = probe.probe(this);
+                Logger.getLogger(SerialPortChannel.class.getName()).log(Level.INFO, "{0} at {1,number,#} baud: {2}", new Object[] { this, rates[i], result });
+                if (result.isReliable()) {
+                    negotiated = true;
+                    return result;
+                }
+            }
+            throw new ChannelException("No reliable baud rate for " + this);
+        }
+        finally {
+            if (! negotiated) {
+                setBaud(originalBaud);
+            }
+        }
+    }
+    
+    
+    public static int[] getDefaultBaudRates() {
+        return DEFAULT_BAUD_RATES.clone();
+    }
+    
+    
     @Override
     public void close() throws ChannelException {
         if (port != null) {
@@ -129,15 +174,26 @@ public class SerialPortChannel extends Channel
 
         @Override
         public void serialEvent(SerialPortEvent evt) {
+            ByteBuffer buffer = BUFFER_POOL.acquire();
             try {
                 int available = inputStream.available();
-                byte[] received = new byte[available];
-                inputStream.read(received, 0, available);
-                notifyListeners(received);
+                while (available > 0) {
+                    int count = inputStream.read(buffer.array(), buffer.arrayOffset(), Math.min(available, buffer.capacity()));
+                    if (count <= 0) {
+                        return;
+                    }
+                    buffer.limit(count);
+                    notifyListeners(buffer);
+                    buffer.clear();
+                    available -= count;
+                }
             }
             catch (IOException ex) {
                 notifyListeners(ex);
             }
+            finally {
+                BUFFER_POOL.release(buffer);
+            }
         }
         
     }
@@ -147,5 +203,10 @@ public class SerialPortChannel extends Channel
     private SerialPort port;
     private InputStream inputStream;
     private OutputStream outputStream;
+    
+    private static final BufferPool BUFFER_POOL = BufferPool.getDefault();
+    
+    private static final int[] DEFAULT_BAUD_RATES = { 115200, 19200, 9600, 4800 };
+    private static final long SETTLE_TIME = 50; // ms
         
 }
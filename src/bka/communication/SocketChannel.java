@@ -7,6 +7,7 @@ package bka.communication;
 
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -29,8 +30,8 @@ public class SocketChannel extends Channel {
     public void open(String name) throws ChannelException {
         try {
             Socket socket = new Socket(host, port);
-            out = new PrintWriter(socket.getOutputStream(), true);
-            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            out = new BufferedOutputStream(socket.getOutputStream());
+            in = socket.getInputStream();
             receiver = new Receiver();
             Thread receiverThread = new Thread(receiver);
             receiverThread.start();
@@ -41,9 +42,49 @@ public class SocketChannel extends Channel {
     }
 
     
+    /**
+     * Writes bytes unchanged, so binary and compressed frames pass as they are.
+     * @param bytes
+     */
     @Override
     public void send(byte[] bytes) {
-        out.println(new String(bytes));
+        synchronized (out) {
+            try {
+                out.write(bytes);
+                out.flush();
+            }
+            catch (IOException ex) {
+                notifyListeners(ex);
+            }
+        }
+    }
+    
+    
+    /**
+     * Writes the remaining bytes of all buffers unchanged and flushes only once.
+     * @param buffers
+     */
+    @Override
+    public void send(ByteBuffer[] buffers) {
+        synchronized (out) {
+            try {
+                for (ByteBuffer buffer : buffers) {
+                    if (buffer.hasArray()) {
+                        out.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+                        buffer.position(buffer.limit());
+                    }
+                    else {
+                        byte[] bytes = new byte[buffer.remaining()];
+                        buffer.get(bytes);
+                        out.write(bytes);
+                    }
+                }
+                out.flush();
+            }
+            catch (IOException ex) {
+                notifyListeners(ex);
+            }
+        }
     }
     
     
@@ -81,29 +122,34 @@ public class SocketChannel extends Channel {
         
         @Override
         public void run() {
+            ByteBuffer buffer = BUFFER_POOL.acquire();
             while (running) {
                 try {
-                    int count = in.read(buffer);
+                    int count = in.read(buffer.array(), buffer.arrayOffset(), buffer.capacity());
                     if (count > 0) {
-                        byte[] bytes = new byte[count];
-                        for (int i = 0; i < count && i < buffer.length; ++i) {
-                            bytes[i] = (byte) buffer[i];
-                        }
-                        notifyListeners(bytes);
+                        buffer.limit(count);
+                        notifyListeners(buffer);
+                        buffer.clear();
+                    }
+                    else if (count < 0) {
+                        throw new EOFException("Connection closed by " + host);
                     }
                 }
                 catch (IOException ex) {
-                    Logger.getLogger(SocketChannel.class.getName()).log(Level.WARNING, Receiver.class.getName(), ex);
-                    running = false;
+                    if (running) {
+                        Logger.getLogger(SocketChannel.class.getName()).log(Level.WARNING, Receiver.class.getName(), ex);
+                        running = false;
+                        notifyListeners(ex);
+                    }
                 }
             }
+            BUFFER_POOL.release(buffer);
         }
         
         void stop() {
             running = false;
         }
         
-        private final char[] buffer = new char[1024];
         private volatile boolean running = true;
         
     }
@@ -112,9 +158,11 @@ public class SocketChannel extends Channel {
     private final String host;
     private final int port;
 
-    private PrintWriter out;
-    private BufferedReader in;
+    private OutputStream out;
+    private InputStream in;
     
     private Receiver receiver;
     
+    private static final BufferPool BUFFER_POOL = BufferPool.getDefault();
+    
 }
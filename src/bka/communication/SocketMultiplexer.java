@@ -0,0 +1,163 @@
+/*
+** Copyright © Bart Kampers
+*/
+
+package bka.communication;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.*;
+
+
+/**
+ * Single I/O thread serving any number of non blocking socket channels.
+ * All selector operations are executed on the I/O thread, other threads hand
+ * over their requests through a task queue and wake the selector up.
+ */
+public class SocketMultiplexer {
+
+
+    public static synchronized SocketMultiplexer getDefault() {
+        if (defaultInstance == null) {
+            defaultInstance = new SocketMultiplexer();
+        }
+        return defaultInstance;
+    }
+
+
+    void register(NioSocketChannel channel) throws IOException {
+        ensureRunning();
+        execute(() -> {
+            try {
+                channel.getSocketChannel().register(selector, SelectionKey.OP_READ, channel);
+            }
+            catch (ClosedChannelException ex) {
+                channel.notifyListeners(ex);
+            }
+        });
+    }
+
+
+    void cancel(NioSocketChannel channel) {
+        execute(() -> {
+            SelectionKey key = channel.getSocketChannel().keyFor(selector);
+            if (key != null) {
+                key.cancel();
+            }
+        });
+    }
+
+
+    void requestWrite(NioSocketChannel channel) {
+        execute(() -> {
+            SelectionKey key = channel.getSocketChannel().keyFor(selector);
+            if (key != null && key.isValid()) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            }
+        });
+    }
+
+
+    private synchronized void ensureRunning() throws IOException {
+        if (selector == null) {
+            selector = Selector.open();
+            Thread thread = new Thread(this::run, SocketMultiplexer.class.getSimpleName());
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+
+    private void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+
+    private void run() {
+        while (true) {
+            try {
+                runTasks();
+                selector.select();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    handle(key);
+                }
+            }
+            catch (IOException | RuntimeException ex) {
+                LOGGER.log(Level.SEVERE, SocketMultiplexer.class.getName(), ex);
+            }
+        }
+    }
+
+
+    private void runTasks() {
+        Runnable task = tasks.poll();
+        while (task != null) {
+            try {
+                task.run();
+            }
+            catch (RuntimeException ex) {
+                LOGGER.log(Level.WARNING, SocketMultiplexer.class.getName(), ex);
+            }
+            task = tasks.poll();
+        }
+    }
+
+
+    /**
+     * A runtime exception, for instance thrown by a listener, is logged
+     * and does not keep the other selected keys from being handled.
+     */
+    private void handle(SelectionKey key) {
+        NioSocketChannel channel = (NioSocketChannel) key.attachment();
+        try {
+            if (key.isValid() && key.isReadable()) {
+                read(channel);
+            }
+            if (key.isValid() && key.isWritable()) {
+                if (channel.writePending()) {
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                }
+            }
+        }
+        catch (IOException ex) {
+            key.cancel();
+            channel.notifyListeners(ex);
+        }
+        catch (RuntimeException ex) {
+            LOGGER.log(Level.WARNING, channel.toString(), ex);
+        }
+    }
+
+
+    private void read(NioSocketChannel channel) throws IOException {
+        readBuffer.clear();
+        int count = channel.getSocketChannel().read(readBuffer);
+        if (count < 0) {
+            throw new EOFException("Connection closed by " + channel);
+        }
+        if (count > 0) {
+            readBuffer.flip();
+            channel.notifyListeners(readBuffer);
+        }
+    }
+
+
+    private volatile Selector selector;
+
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+    private static SocketMultiplexer defaultInstance;
+
+    private static final int READ_BUFFER_SIZE = 0x2000;
+
+    private static final Logger LOGGER = Logger.getLogger(SocketMultiplexer.class.getName());
+
+}
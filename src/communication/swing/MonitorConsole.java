@@ -33,7 +33,7 @@ public class MonitorConsole extends FrameApplication {
     private int[] getBaudRates() {
         JSONArray configurationRates = getConfigurationArray("baud_rates");
         if (configurationRates == null) {
-            return DEFAULT_BAUD_RATES;
+            return SerialPortChannel.getDefaultBaudRates();
         }
         int[] baudRates = new int[configurationRates.length()];
         for (int i = 0; i < configurationRates.length(); ++i) {
@@ -649,7 +649,5 @@ public class MonitorConsole extends FrameApplication {
     private static final String BAUD_PROPERTY_KEY = "baud";
     
     private static final String NO_SELECTION = "-";
-    
-    private static final int[] DEFAULT_BAUD_RATES = { 115200, 19200, 9600, 4800 };
 
 }
@@ -0,0 +1,769 @@
+/*
+** Copyright © Bart Kampers
+*/
+
+package randd.motormanagement.communication;
+
+import java.lang.reflect.Array;
+import java.nio.*;
+import java.nio.charset.*;
+import java.util.*;
+import org.json.*;
+
+
+/**
+ * Compact binary representation of JSON messages.
+ * A frame consists of FRAME_MARKER, the payload length as unsigned varint, the payload
+ * and the CRC of the payload, most significant byte first. The CRC lets a receiver
+ * detect a damaged frame and look for the next frame right after the damaged frame's
+ * marker. A payload is at most MAXIMUM_FRAME_SIZE bytes, so a damaged length can not
+ * hold up the receiver long.
+ * The payload is a tagged value. Keys and frequently used strings are encoded as
+ * an index in a dictionary shared with the ECU, numbers in their native size.
+ * Arrays of bytes, of short decimals and of single precision numbers are packed.
+ */
+public final class BinaryCodec {
+
+
+    public static class FormatException extends Exception {
+
+        FormatException(String message) {
+            super(message);
+        }
+
+        private static final long serialVersionUID = 1L;
+
+    }
+
+
+    private BinaryCodec() {
+    }
+
+
+    /**
+     * @param message
+     * @return complete frame, null if the payload would exceed MAXIMUM_FRAME_SIZE
+     */
+    public static byte[] encode(JSONObject message) {
+        Writer payload = new Writer();
+        payload.value(message);
+        return (payload.size() <= MAXIMUM_FRAME_SIZE) ? payload.frame() : null;
+    }
+
+
+    /**
+     * Only the header and the CRC are built, the body of frame is shared.
+     * @param frame of an object, as returned by encode
+     * @param id
+     * @return header, body and CRC of frame with Id put in front of the other keys of the object
+     */
+    static ByteBuffer[] withId(byte[] frame, int id) {
+        ByteBuffer buffer = ByteBuffer.wrap(frame);
+        try {
+            buffer.get();
+            readVarint(buffer);
+            if (buffer.get() != OBJECT) {
+                throw new IllegalArgumentException("Frame does not contain an object");
+            }
+            int count = readVarint(buffer);
+            Writer head = new Writer();
+            head.startObject(count + 1);
+            head.key(Messenger.ID);
+            head.integer(id);
+            int bodyOffset = buffer.position();
+            int bodyLength = buffer.remaining() - CRC_SIZE;
+            byte[] header = head.header(bodyLength);
+            int crc = crc(CRC_INITIAL, header, header.length - head.size(), head.size());
+            crc = crc(crc, frame, bodyOffset, bodyLength);
+            return new ByteBuffer[] {
+                ByteBuffer.wrap(header),
+                ByteBuffer.wrap(frame, bodyOffset, bodyLength),
+                ByteBuffer.wrap(new byte[] { (byte) (crc >>> 8), (byte) crc })
+            };
+        }
+        catch (FormatException | BufferUnderflowException ex) {
+            throw new IllegalArgumentException(ex);
+        }
+    }
+
+
+    /**
+     * Reports the tokens of an encoded object to handler, like JsonTokenizer does for a JSON frame.
+     * Tokens reported before a FormatException must be discarded by the caller.
+     * @param payload bytes between position and limit are decoded
+     * @param handler
+     * @throws FormatException if payload is not a valid encoded object
+     */
+    static void decode(ByteBuffer payload, JsonTokenizer.Handler handler) throws FormatException {
+        try {
+            if (payload.get() != OBJECT) {
+                throw new FormatException("Object expected");
+            }
+            readObject(payload, handler, 1);
+            if (payload.hasRemaining()) {
+                throw new FormatException("Data after object");
+            }
+        }
+        catch (BufferUnderflowException ex) {
+            throw new FormatException("Truncated payload");
+        }
+    }
+
+
+    /**
+     * @param b first byte of a payload
+     * @return false if no valid payload starts with b
+     */
+    static boolean isPayloadStart(byte b) {
+        return b == OBJECT;
+    }
+
+
+    /**
+     * CRC-16/CCITT-FALSE, polynomial 0x1021 and initial value 0xFFFF.
+     * @param bytes
+     * @param offset
+     * @param length
+     * @return CRC of length bytes from offset
+     */
+    static int crc(byte[] bytes, int offset, int length) {
+        return crc(CRC_INITIAL, bytes, offset, length);
+    }
+
+
+    /**
+     * Continues a CRC over more bytes.
+     * @param crc of the preceding bytes
+     * @param bytes
+     * @param offset
+     * @param length
+     * @return CRC of the preceding bytes followed by length bytes from offset
+     */
+    private static int crc(int crc, byte[] bytes, int offset, int length) {
+        for (int i = offset; i < offset + length; ++i) {
+            crc = ((crc << 8) & 0xFFFF) ^ CRC_TABLE[((crc >>> 8) ^ bytes[i]) & 0xFF];
+        }
+        return crc;
+    }
+
+
+    /**
+     * Writes the CRC of length bytes from offset behind them.
+     * @return index behind the CRC
+     */
+    static int putCrc(byte[] bytes, int offset, int length) {
+        int crc = crc(bytes, offset, length);
+        int index = offset + length;
+        bytes[index++] = (byte) (crc >>> 8);
+        bytes[index++] = (byte) crc;
+        return index;
+    }
+
+
+    static int readVarint(ByteBuffer buffer) throws FormatException {
+        int value = 0;
+        int shift = 0;
+        int b;
+        do {
+            if (shift > MAXIMUM_VARINT_SHIFT) {
+                throw new FormatException("Varint too long");
+            }
+            b = buffer.get() & 0xFF;
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        }
+        while ((b & 0x80) != 0);
+        return value;
+    }
+
+
+    private static void readValue(ByteBuffer buffer, JsonTokenizer.Handler handler, int depth) throws FormatException {
+        byte type = buffer.get();
+        switch (type) {
+            case NULL:
+                handler.value(null);
+                break;
+            case FALSE:
+                handler.value(Boolean.FALSE);
+                break;
+            case TRUE:
+                handler.value(Boolean.TRUE);
+                break;
+            case INT8:
+                handler.integer(buffer.get());
+                break;
+            case INT16:
+                handler.integer(buffer.getShort());
+                break;
+            case INT32:
+                handler.integer(buffer.getInt());
+                break;
+            case INT64:
+                handler.integer(buffer.getLong());
+                break;
+            case FLOAT32:
+                handler.real(toDouble(buffer.getFloat()));
+                break;
+            case FLOAT64:
+                handler.real(buffer.getDouble());
+                break;
+            case STRING:
+                handler.value(readString(buffer));
+                break;
+            case TAG:
+                handler.value(dictionaryEntry(buffer.get() & 0xFF));
+                break;
+            case OBJECT:
+                readObject(buffer, handler, depth + 1);
+                break;
+            case ARRAY:
+                readArray(buffer, handler, depth + 1);
+                break;
+            case UINT8_ARRAY:
+                readUint8Array(buffer, handler);
+                break;
+            case DECIMAL16_ARRAY:
+                readDecimal16Array(buffer, handler);
+                break;
+            case FLOAT32_ARRAY:
+                readFloat32Array(buffer, handler);
+                break;
+            default:
+                throw new FormatException("Invalid type " + type);
+        }
+    }
+
+
+    private static void readObject(ByteBuffer buffer, JsonTokenizer.Handler handler, int depth) throws FormatException {
+        checkDepth(depth);
+        int count = readVarint(buffer);
+        handler.startObject();
+        for (int i = 0; i < count; ++i) {
+            int tag = buffer.get() & 0xFF;
+            handler.key((tag == KEY_LITERAL) ? readString(buffer) : dictionaryEntry(tag));
+            readValue(buffer, handler, depth);
+        }
+        handler.endObject();
+    }
+
+
+    private static void readArray(ByteBuffer buffer, JsonTokenizer.Handler handler, int depth) throws FormatException {
+        checkDepth(depth);
+        int count = readVarint(buffer);
+        handler.startArray();
+        for (int i = 0; i < count; ++i) {
+            readValue(buffer, handler, depth);
+        }
+        handler.endArray();
+    }
+
+
+    private static void readUint8Array(ByteBuffer buffer, JsonTokenizer.Handler handler) throws FormatException {
+        int count = readVarint(buffer);
+        handler.startArray();
+        for (int i = 0; i < count; ++i) {
+            handler.integer(buffer.get() & 0xFF);
+        }
+        handler.endArray();
+    }
+
+
+    private static void readDecimal16Array(ByteBuffer buffer, JsonTokenizer.Handler handler) throws FormatException {
+        int count = readVarint(buffer);
+        int decimals = buffer.get();
+        if (decimals < 0 || decimals >= POWERS_OF_TEN.length) {
+            throw new FormatException("Invalid decimal count " + decimals);
+        }
+        double divisor = POWERS_OF_TEN[decimals];
+        handler.startArray();
+        for (int i = 0; i < count; ++i) {
+            handler.real(buffer.getShort() / divisor);
+        }
+        handler.endArray();
+    }
+
+
+    private static void readFloat32Array(ByteBuffer buffer, JsonTokenizer.Handler handler) throws FormatException {
+        int count = readVarint(buffer);
+        handler.startArray();
+        for (int i = 0; i < count; ++i) {
+            handler.real(toDouble(buffer.getFloat()));
+        }
+        handler.endArray();
+    }
+
+
+    private static void checkDepth(int depth) throws FormatException {
+        if (depth > MAXIMUM_DEPTH) {
+            throw new FormatException("Nesting too deep");
+        }
+    }
+
+
+    private static String readString(ByteBuffer buffer) throws FormatException {
+        int length = readVarint(buffer);
+        if (length > buffer.remaining()) {
+            throw new FormatException("Truncated string");
+        }
+        String string = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+        return string;
+    }
+
+
+    private static String dictionaryEntry(int index) throws FormatException {
+        if (index >= DICTIONARY.size()) {
+            throw new FormatException("Invalid tag " + index);
+        }
+        return DICTIONARY.get(index);
+    }
+
+
+    /**
+     * Single precision numbers are restored to the double with the same decimal representation.
+     */
+    private static double toDouble(float value) {
+        return Double.parseDouble(Float.toString(value));
+    }
+
+
+    private static boolean isSinglePrecision(double value) {
+        return toDouble((float) value) == value;
+    }
+
+
+    private static int[] crcTable() {
+        int[] table = new int[0x100];
+        for (int i = 0; i < table.length; ++i) {
+            int crc = i << 8;
+            for (int bit = 0; bit < 8; ++bit) {
+                crc = ((crc & 0x8000) != 0) ? (crc << 1) ^ CRC_POLYNOMIAL : crc << 1;
+            }
+            table[i] = crc & 0xFFFF;
+        }
+        return table;
+    }
+
+
+    /**
+     * Growing buffer for a payload, reusable after clear.
+     */
+    static class Writer {
+
+        void value(Object value) {
+            if (value == null || JSONObject.NULL.equals(value)) {
+                put(NULL);
+            }
+            else if (value instanceof Boolean) {
+                bool((Boolean) value);
+            }
+            else if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+                integer(((Number) value).longValue());
+            }
+            else if (value instanceof Number) {
+                real(((Number) value).doubleValue());
+            }
+            else if (value instanceof JSONObject) {
+                object((JSONObject) value);
+            }
+            else if (value instanceof JSONArray) {
+                JSONArray array = (JSONArray) value;
+                List<Object> elements = new ArrayList<>(array.length());
+                for (int i = 0; i < array.length(); ++i) {
+                    elements.add(array.opt(i));
+                }
+                array(elements);
+            }
+            else if (value.getClass().isArray()) {
+                List<Object> elements = new ArrayList<>();
+                for (int i = 0; i < Array.getLength(value); ++i) {
+                    elements.add(Array.get(value, i));
+                }
+                array(elements);
+            }
+            else if (value instanceof Collection) {
+                array(new ArrayList<>((Collection<?>) value));
+            }
+            else {
+                string(value.toString());
+            }
+        }
+
+        void object(JSONObject object) {
+            startObject(object.length());
+            Iterator<?> keys = object.keys();
+            while (keys.hasNext()) {
+                String key = keys.next().toString();
+                key(key);
+                value(object.opt(key));
+            }
+        }
+
+        /**
+         * Must be followed by count keys, each followed by its value.
+         */
+        void startObject(int count) {
+            put(OBJECT);
+            varint(count);
+        }
+
+        void key(String key) {
+            Integer index = INDICES.get(key);
+            if (index != null) {
+                put(index.byteValue());
+            }
+            else {
+                put((byte) KEY_LITERAL);
+                utf8(key);
+            }
+        }
+
+        void bool(boolean value) {
+            put((value) ? TRUE : FALSE);
+        }
+
+        /**
+         * Writes count values starting at offset as the most compact array type.
+         */
+        void integerArray(int[] values, int offset, int count) {
+            boolean uint8 = count > 1;
+            for (int i = offset; uint8 && i < offset + count; ++i) {
+                uint8 = 0 <= values[i] && values[i] <= 0xFF;
+            }
+            put((uint8) ? UINT8_ARRAY : ARRAY);
+            varint(count);
+            for (int i = offset; i < offset + count; ++i) {
+                if (uint8) {
+                    put((byte) values[i]);
+                }
+                else {
+                    integer(values[i]);
+                }
+            }
+        }
+
+        void array(List<Object> elements) {
+            boolean packable = elements.size() > 1;
+            if (packable && isUint8Array(elements)) {
+                put(UINT8_ARRAY);
+                varint(elements.size());
+                for (Object element : elements) {
+                    put(((Number) element).byteValue());
+                }
+            }
+            else if (packable && isRealArray(elements)) {
+                realArray(elements);
+            }
+            else {
+                genericArray(elements);
+            }
+        }
+
+        private void realArray(List<Object> elements) {
+            int decimals = decimals(elements);
+            if (decimals >= 0) {
+                put(DECIMAL16_ARRAY);
+                varint(elements.size());
+                put((byte) decimals);
+                for (Object element : elements) {
+                    short value = (short) Math.round(((Number) element).doubleValue() * POWERS_OF_TEN[decimals]);
+                    put((byte) (value >> 8));
+                    put((byte) value);
+                }
+            }
+            else if (isFloat32Array(elements)) {
+                put(FLOAT32_ARRAY);
+                varint(elements.size());
+                for (Object element : elements) {
+                    putInt(Float.floatToIntBits(((Number) element).floatValue()));
+                }
+            }
+            else {
+                genericArray(elements);
+            }
+        }
+
+        private void genericArray(List<Object> elements) {
+            put(ARRAY);
+            varint(elements.size());
+            elements.forEach(this::value);
+        }
+
+        void integer(long value) {
+            if (Byte.MIN_VALUE <= value && value <= Byte.MAX_VALUE) {
+                put(INT8);
+                put((byte) value);
+            }
+            else if (Short.MIN_VALUE <= value && value <= Short.MAX_VALUE) {
+                put(INT16);
+                put((byte) (value >> 8));
+                put((byte) value);
+            }
+            else if (Integer.MIN_VALUE <= value && value <= Integer.MAX_VALUE) {
+                put(INT32);
+                putInt((int) value);
+            }
+            else {
+                put(INT64);
+                putInt((int) (value >> 32));
+                putInt((int) value);
+            }
+        }
+
+        void real(double value) {
+            if (isSinglePrecision(value)) {
+                put(FLOAT32);
+                putInt(Float.floatToIntBits((float) value));
+            }
+            else {
+                put(FLOAT64);
+                long bits = Double.doubleToLongBits(value);
+                putInt((int) (bits >> 32));
+                putInt((int) bits);
+            }
+        }
+
+        void string(String string) {
+            Integer index = INDICES.get(string);
+            if (index != null) {
+                put(TAG);
+                put(index.byteValue());
+            }
+            else {
+                put(STRING);
+                utf8(string);
+            }
+        }
+
+        void utf8(String string) {
+            byte[] utf8 = string.getBytes(StandardCharsets.UTF_8);
+            varint(utf8.length);
+            put(utf8, 0, utf8.length);
+        }
+
+        void varint(int value) {
+            while ((value & ~0x7F) != 0) {
+                put((byte) (value & 0x7F | 0x80));
+                value >>>= 7;
+            }
+            put((byte) value);
+        }
+
+        void putInt(int value) {
+            put((byte) (value >> 24));
+            put((byte) (value >> 16));
+            put((byte) (value >> 8));
+            put((byte) value);
+        }
+
+        void put(byte b) {
+            ensureCapacity(1);
+            bytes[size++] = b;
+        }
+
+        void put(byte[] source, int offset, int length) {
+            ensureCapacity(length);
+            System.arraycopy(source, offset, bytes, size, length);
+            size += length;
+        }
+
+        int size() {
+            return size;
+        }
+
+        void clear() {
+            size = 0;
+        }
+
+        /**
+         * Replaces the byte written at index.
+         */
+        void set(int index, byte b) {
+            bytes[index] = b;
+        }
+
+        /**
+         * @return complete frame with the written payload
+         */
+        byte[] frame() {
+            byte[] frame = new byte[headerSize(size) + size + CRC_SIZE];
+            int index = putHeader(frame, size);
+            System.arraycopy(bytes, 0, frame, index, size);
+            putCrc(frame, index, size);
+            return frame;
+        }
+
+        /**
+         * @param trailingLength number of payload bytes that follow the written bytes
+         * @return frame header followed by the written bytes, without CRC
+         */
+        byte[] header(int trailingLength) {
+            int length = size + trailingLength;
+            byte[] header = new byte[headerSize(length) + size];
+            int index = putHeader(header, length);
+            System.arraycopy(bytes, 0, header, index, size);
+            return header;
+        }
+
+        private static int headerSize(int length) {
+            int headerSize = 2;
+            while ((length & ~0x7F) != 0) {
+                headerSize++;
+                length >>>= 7;
+            }
+            return headerSize;
+        }
+
+        /**
+         * @return index behind the header
+         */
+        private static int putHeader(byte[] frame, int length) {
+            int index = 0;
+            frame[index++] = FRAME_MARKER;
+            while ((length & ~0x7F) != 0) {
+                frame[index++] = (byte) (length & 0x7F | 0x80);
+                length >>>= 7;
+            }
+            frame[index++] = (byte) length;
+            return index;
+        }
+
+        private void ensureCapacity(int count) {
+            if (size + count > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + count));
+            }
+        }
+
+        private static boolean isUint8Array(List<Object> elements) {
+            for (Object element : elements) {
+                if (! (element instanceof Integer || element instanceof Short || element instanceof Byte)) {
+                    return false;
+                }
+                int value = ((Number) element).intValue();
+                if (value < 0 || value > 0xFF) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * @return true if all elements are numbers and at least one is not integral
+         */
+        private static boolean isRealArray(List<Object> elements) {
+            boolean real = false;
+            for (Object element : elements) {
+                if (! (element instanceof Number)) {
+                    return false;
+                }
+                real |= element instanceof Double || element instanceof Float;
+            }
+            return real;
+        }
+
+        /**
+         * @return the smallest number of decimals that represents all numbers exactly as 16 bit
+         * fixed point values, -1 if there is none
+         */
+        private static int decimals(List<Object> elements) {
+            for (int decimals = 0; decimals < POWERS_OF_TEN.length; ++decimals) {
+                if (isDecimal16Array(elements, POWERS_OF_TEN[decimals])) {
+                    return decimals;
+                }
+            }
+            return -1;
+        }
+
+        private static boolean isDecimal16Array(List<Object> elements, double multiplier) {
+            for (Object element : elements) {
+                double value = ((Number) element).doubleValue();
+                long scaled = Math.round(value * multiplier);
+                if (scaled < Short.MIN_VALUE || scaled > Short.MAX_VALUE || scaled / multiplier != value) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static boolean isFloat32Array(List<Object> elements) {
+            for (Object element : elements) {
+                if (! isSinglePrecision(((Number) element).doubleValue())) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private byte[] bytes = new byte[INITIAL_CAPACITY];
+        private int size;
+
+    }
+
+
+    public static final byte FRAME_MARKER = 0x02;
+
+    /**
+     * Largest payload of a binary or compressed frame, larger messages are sent in JSON.
+     * Well over the largest return of the ECU, a flash dump.
+     */
+    static final int MAXIMUM_FRAME_SIZE = 0x2000;
+    static final int CRC_SIZE = 2;
+
+    private static final byte NULL = 0x00;
+    private static final byte FALSE = 0x01;
+    private static final byte TRUE = 0x02;
+    private static final byte INT8 = 0x03;
+    private static final byte INT16 = 0x04;
+    private static final byte INT32 = 0x05;
+    private static final byte INT64 = 0x06;
+    private static final byte FLOAT32 = 0x07;
+    private static final byte FLOAT64 = 0x08;
+    private static final byte STRING = 0x09;
+    private static final byte TAG = 0x0A;
+    private static final byte OBJECT = 0x0B;
+    private static final byte ARRAY = 0x0C;
+    private static final byte UINT8_ARRAY = 0x0D;
+    private static final byte FLOAT32_ARRAY = 0x0E;
+    private static final byte DECIMAL16_ARRAY = 0x0F;
+
+    private static final int KEY_LITERAL = 0xFF;
+    private static final int MAXIMUM_VARINT_SHIFT = 28;
+    private static final int INITIAL_CAPACITY = 0x100;
+    private static final int MAXIMUM_DEPTH = 0x20;
+    private static final double[] POWERS_OF_TEN = { 1.0, 10.0, 100.0, 1000.0, 10000.0 };
+
+    private static final int CRC_INITIAL = 0xFFFF;
+    private static final int CRC_POLYNOMIAL = 0x1021;
+    private static final int[] CRC_TABLE = crcTable();
+
+    /**
+     * Shared with the ECU firmware. Entries may only be appended.
+     */
+    private static final List<String> DICTIONARY = Collections.unmodifiableList(Arrays.asList(
+        "Direction", "Fire", "Call", "Return", "Function", "Parameters", "ReturnValue", "Status", "OK",
+        "Framing", "SetFraming", "Json", "Binary",
+        "GetTableFields", "GetMeasurementProperties", "GetMeasurements", "SetMeasurementSimulation",
+        "ResetMeasurementSimulation", "SetTableField", "SetTableEnabled", "GetTableActualValues",
+        "GetTableProperties", "GetTableNames", "GetEngineProperties", "IsEngineRunning", "SetCylinderCount",
+        "SetCogwheelProperties", "GetPersistentElements", "GetPersistentMemoryBytes", "SetPersistentMemoryBytes",
+        "SetProgrammerActivated", "ApplyProgrammerValue",
+        "TableName", "MeasurementName", "Activated", "Enabled", "Programmable", "ProgrammerActivated",
+        "Simulation", "SimulationValue", "TypeId", "Reference", "Size", "CurrentColumn", "CurrentRow",
+        "Fields", "Column", "Row", "Value", "ColumnMeasurementName", "RowMeasurementName", "Format",
+        "Minimum", "Maximum", "Decimals", "Precision", "Cogwheel", "CogTotal", "GapSize", "Offset",
+        "DeadPoints", "CylinderCount",
+        "RPM", "Load", "Water", "Air", "Battery", "Map", "Lambda", "Aux1", "Aux2", "Programmer",
+        "Ignition", "Injection", "WaterCorrection", "AirCorrection", "BatteryCorrection", "MapCorrection",
+        "InvalidMessageReceived", "InvalidDirection", "NoFunction", "UnknownFunction", "InvalidParameter",
+        "InvalidId", "NoSuchMeasurement", "NoSuchMeasurementTable", "EngineIsRunning",
+        "Id"));
+
+    private static final Map<String, Integer> INDICES = new HashMap<>();
+
+    static {
+        for (int i = 0; i < DICTIONARY.size(); ++i) {
+            INDICES.put(DICTIONARY.get(i), i);
+        }
+    }
+
+}
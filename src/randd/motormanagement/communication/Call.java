@@ -0,0 +1,27 @@
+/*
+** Copyright © Bart Kampers
+*/
+
+package randd.motormanagement.communication;
+
+
+/**
+ * Call with typed parameters, encoded by a RequestWriter when it is sent
+ * instead of being built as JSONObject.
+ * A call must not change after it is passed to the messenger.
+ */
+interface Call {
+
+    String getFunction();
+
+    void writeParameters(RequestWriter writer);
+
+    /**
+     * @return target written by this call, equal for calls of which only the newest
+     * needs to be sent, null if every call must be sent
+     */
+    default Object getTarget() {
+        return null;
+    }
+
+}
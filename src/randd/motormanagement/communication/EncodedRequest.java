@@ -0,0 +1,78 @@
+/*
+** Copyright © Bart Kampers
+*/
+
+package randd.motormanagement.communication;
+
+import java.util.concurrent.atomic.*;
+import org.json.*;
+
+
+/**
+ * Call message together with its frames. A frame is encoded once per framing,
+ * the first time it is needed, and shared by every later send.
+ * The message must not be modified after construction.
+ */
+final class EncodedRequest {
+
+
+    EncodedRequest(JSONObject message) {
+        this.message = message;
+    }
+
+
+    JSONObject getMessage() {
+        return message;
+    }
+
+
+    String getFunction() {
+        return message.optString(Messenger.FUNCTION);
+    }
+
+
+    /**
+     * @return true if the request only reads
+     */
+    boolean isRead() {
+        return isRead(getFunction());
+    }
+
+
+    /**
+     * By protocol convention, only functions named Get... or Is... are free of side effects.
+     * @param function
+     * @return true if function only reads
+     */
+    static boolean isRead(String function) {
+        return function.startsWith(GET) || function.startsWith(IS);
+    }
+
+
+    byte[] getFrame(Framing framing) {
+        byte[] frame = frames.get(framing.ordinal());
+        if (frame == null) {
+            frame = framing.encode(message);
+            frames.set(framing.ordinal(), frame);
+        }
+        return frame;
+    }
+
+
+    @Override
+    public String toString() {
+        return message.toString();
+    }
+
+
+    private final JSONObject message;
+
+    /**
+     * Races between threads encoding the same frame are harmless, they produce equal frames.
+     */
+    private final AtomicReferenceArray<byte[]> frames = new AtomicReferenceArray<>(Framing.values().length);
+
+    private static final String GET = "Get";
+    private static final String IS = "Is";
+
+}
@@ -0,0 +1,171 @@
+/*
+** Copyright © Bart Kampers
+*/
+
+package randd.motormanagement.communication;
+
+import java.nio.*;
+import java.nio.charset.*;
+import java.util.zip.*;
+import org.json.*;
+
+
+/**
+ * Compresses frames one by one with raw deflate and a preset dictionary of the
+ * protocol's recurring text, so even short frames compress without history.
+ * The dictionary holds JSON text, so JSON framing with compression is the
+ * intended combination. Binary frames are compressed as well, but they gain
+ * little from the dictionary.
+ * A compressed frame consists of FRAME_MARKER, the length of the deflated data
+ * as unsigned varint, the deflated data and its CRC, like a binary frame. Inflated, it is one complete JSON
+ * or binary frame. Frames too small to gain are sent as they are, a FrameDecoder
+ * accepts both.
+ * Compression is requested with a Compression parameter in the SetFraming call.
+ * Firmware that does not know it leaves it out of the return value and the
+ * connection stays uncompressed.
+ * Instances are not thread safe.
+ */
+public final class FrameCompressor {
+
+
+    /**
+     * @param frame
+     * @return compressed frame, or frame itself if compression does not make it smaller
+     */
+    public byte[] compress(byte[] frame) {
+        if (frame.length < MINIMUM_FRAME_SIZE) {
+            return frame;
+        }
+        if (deflater == null) {
+            deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        }
+        deflater.reset();
+        deflater.setDictionary(DICTIONARY);
+        deflater.setInput(frame);
+        deflater.finish();
+        int limit = Math.min(frame.length - MAXIMUM_HEADER_SIZE - BinaryCodec.CRC_SIZE, BinaryCodec.MAXIMUM_FRAME_SIZE);
+        if (buffer.length < limit) {
+            buffer = new byte[Math.max(limit, buffer.length * 2)];
+        }
+        int length = 0;
+        while (! deflater.finished() && length < limit) {
+            length += deflater.deflate(buffer, length, limit - length);
+        }
+        if (! deflater.finished()) {
+            return frame;
+        }
+        return compressedFrame(length);
+    }
+
+
+    /**
+     * @param parameters of a SetFraming call
+     * @return true if parameters request compression this class provides
+     */
+    public static boolean isRequested(JSONObject parameters) {
+        return DEFLATE.equals(parameters.optString(COMPRESSION));
+    }
+
+
+    /**
+     * @param response
+     * @return true if response is a successful return of SetFraming that accepts compression
+     */
+    public static boolean isAccepted(JSONObject response) {
+        if (Framing.accepted(response) == null) {
+            return false;
+        }
+        JSONObject returnValue = response.optJSONObject(Messenger.RETURN_VALUE);
+        return returnValue != null && isRequested(returnValue);
+    }
+
+
+    /**
+     * Inflates the deflated data of a compressed frame.
+     * @param deflated
+     * @param inflater raw inflater
+     * @param frame receives the inflated frame
+     * @return false if the inflated frame does not fit in frame
+     * @throws DataFormatException
+     */
+    static boolean inflate(ByteBuffer deflated, Inflater inflater, ByteBuffer frame) throws DataFormatException {
+        inflater.reset();
+        inflater.setDictionary(DICTIONARY);
+        inflater.setInput(deflated.array(), deflated.arrayOffset() + deflated.position(), deflated.remaining());
+        while (! inflater.finished()) {
+            if (! frame.hasRemaining()) {
+                return false;
+            }
+            int count = inflater.inflate(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+            if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                throw new DataFormatException("Incomplete deflate data");
+            }
+            frame.position(frame.position() + count);
+        }
+        return true;
+    }
+
+
+    private byte[] compressedFrame(int length) {
+        int headerSize = 2;
+        for (int value = length; value >= 0x80; value >>>= 7) {
+            headerSize++;
+        }
+        byte[] frame = new byte[headerSize + length + BinaryCodec.CRC_SIZE];
+        int index = 0;
+        frame[index++] = FRAME_MARKER;
+        int value = length;
+        while (value >= 0x80) {
+            frame[index++] = (byte) (value | 0x80);
+            value >>>= 7;
+        }
+        frame[index++] = (byte) value;
+        System.arraycopy(buffer, 0, frame, index, length);
+        BinaryCodec.putCrc(frame, index, length);
+        return frame;
+    }
+
+
+    private Deflater deflater;
+    private byte[] buffer = new byte[INITIAL_BUFFER_SIZE];
+
+    public static final byte FRAME_MARKER = 0x03;
+
+    public static final String COMPRESSION = "Compression";
+    public static final String DEFLATE = "Deflate";
+
+    private static final int MINIMUM_FRAME_SIZE = 0x40;
+    private static final int MAXIMUM_HEADER_SIZE = 4;
+    private static final int INITIAL_BUFFER_SIZE = 0x400;
+
+    /**
+     * Shared with the ECU firmware and must never change, other text needs another compression name.
+     * Deflate reaches the end of the dictionary cheapest, so the most frequent text comes last.
+     */
+    private static final byte[] DICTIONARY = (
+        "\"SetFraming\",\"Framing\":\"Binary\",\"Compression\":\"Deflate\"" +
+        "\"InvalidMessageReceived\"\"InvalidDirection\"\"NoFunction\"\"UnknownFunction\"\"InvalidParameter\"" +
+        "\"InvalidId\"\"NoSuchMeasurement\"\"NoSuchMeasurementTable\"\"EngineIsRunning\"" +
+        "\"GetEngineProperties\",\"IsEngineRunning\",\"SetCylinderCount\",\"SetCogwheelProperties\"," +
+        "{\"Cogwheel\":{\"CogTotal\":,\"GapSize\":,\"Offset\":},\"DeadPoints\":[],\"CylinderCount\":" +
+        "\"GetPersistentElements\",\"GetPersistentMemoryBytes\",\"SetPersistentMemoryBytes\"," +
+        "{\"TypeId\":\"Reference\":,\"Size\":" +
+        "\"GetMeasurementProperties\",\"SetMeasurementSimulation\",\"ResetMeasurementSimulation\"," +
+        "\"GetTableProperties\",\"GetTableNames\",\"SetTableField\",\"SetTableEnabled\"," +
+        "\"SetProgrammerActivated\",\"ApplyProgrammerValue\"," +
+        "\"ColumnMeasurementName\":\"RowMeasurementName\":\"Format\":\"Minimum\":\"Maximum\":\"Decimals\":\"Precision\":" +
+        "\"Enabled\":true,\"Programmable\":false,\"Activated\":\"SimulationValue\":\"MeasurementName\":" +
+        "\"Ignition\"\"Injection\"\"WaterCorrection\"\"AirCorrection\"\"BatteryCorrection\"\"MapCorrection\"" +
+        "{\"Direction\":\"Call\",\"Function\":\"GetTableFields\",\"Parameters\":{\"TableName\":\"" +
+        "{\"Direction\":\"Return\",\"Function\":\"GetTableFields\",\"ReturnValue\":{\"Fields\":[[0,0,0,0],[" +
+        "\"Status\":\"OK\",\"ReturnValue\":{\"TableName\":\"Ignition\",\"CurrentColumn\":0,\"CurrentRow\":0," +
+        "\"ProgrammerActivated\":false},\"Function\":\"GetTableActualValues\",\"Direction\":\"Return\"}\n" +
+        "{\"Direction\":\"Return\",\"Function\":\"GetMeasurements\",\"Status\":\"OK\",\"ReturnValue\":{" +
+        "\"RPM\":{\"Value\":0,\"Simulation\":false},\"Load\":{\"Value\":0,\"Simulation\":false}," +
+        "\"Water\":{\"Value\":0,\"Simulation\":false},\"Air\":{\"Value\":0,\"Simulation\":false}," +
+        "\"Battery\":{\"Value\":0,\"Simulation\":false},\"Map\":{\"Value\":0,\"Simulation\":false}," +
+        "\"Lambda\":{\"Value\":0,\"Simulation\":false},\"Aux1\":{\"Value\":0,\"Simulation\":false}," +
+        "\"Aux2\":{\"Value\":0,\"Simulation\":false}}}\n"
+        ).getBytes(StandardCharsets.UTF_8);
+
+}
@@ -0,0 +1,258 @@
+/*
+** Copyright © Bart Kampers
+*/
+
+package randd.motormanagement.communication;
+
+import java.nio.*;
+import java.util.function.*;
+import java.util.zip.*;
+import org.json.*;
+
+
+/**
+ * Decodes received bytes into JSONObjects, whatever framing the sender uses.
+ * A frame starting with BinaryCodec.FRAME_MARKER is binary, a frame starting
+ * with FrameCompressor.FRAME_MARKER is compressed, any other frame is newline
+ * terminated JSON. Frames may be split over any number of buffers.
+ * Each decoded object is passed to the object consumer, the reason why a frame
+ * is invalid to the error consumer.
+ * When a binary or compressed frame has an invalid length or fails its CRC,
+ * the bytes after its marker are decoded again. So a marker that was damaged
+ * or that noise produced costs no more than the frame it is in.
+ */
+public class FrameDecoder {
+
+
+    public FrameDecoder(Consumer<JSONObject> objectConsumer, Consumer<String> errorConsumer) {
+        this(new JsonObjectBuilder(objectConsumer, errorConsumer));
+    }
+
+
+    /**
+     * @param handler receives the tokens of both framings
+     */
+    FrameDecoder(JsonTokenizer.Handler handler) {
+        this.handler = handler;
+        tokenizer = new JsonTokenizer(handler);
+    }
+
+
+    public void decode(ByteBuffer buffer) {
+        while (buffer.hasRemaining() || replay.hasRemaining()) {
+            decodeNext((replay.hasRemaining()) ? replay : buffer);
+        }
+    }
+
+
+    public void decode(byte[] bytes) {
+        decode(ByteBuffer.wrap(bytes));
+    }
+
+
+    /**
+     * Discards a partially received frame.
+     */
+    public void reset() {
+        discardFrame();
+        replay = EMPTY;
+    }
+
+
+    private void decodeNext(ByteBuffer buffer) {
+        switch (state) {
+            case LENGTH:
+                readLength(buffer.get());
+                break;
+            case PAYLOAD:
+                readPayload(buffer);
+                break;
+            default:
+                if (tokenizer.isBetweenFrames() && JsonTokenizer.isFrameMarker(buffer.get(buffer.position()))) {
+                    startBinaryFrame(buffer.get() == FrameCompressor.FRAME_MARKER);
+                }
+                else {
+                    tokenizer.parseFrame(buffer);
+                }
+        }
+    }
+
+
+    private void discardFrame() {
+        if (state != State.JSON) {
+            handler.invalid("Frame interrupted");
+            state = State.JSON;
+        }
+        tokenizer.reset();
+    }
+
+
+    private void startBinaryFrame(boolean compressed) {
+        this.compressed = compressed;
+        length = 0;
+        headerSize = 0;
+        state = State.LENGTH;
+    }
+
+
+    private void readLength(byte b) {
+        header[headerSize++] = b;
+        length |= (b & 0x7F) << (7 * (headerSize - 1));
+        if ((b & 0x80) != 0) {
+            if (headerSize == header.length) {
+                resync("Invalid frame length", 0);
+            }
+        }
+        else if (length <= 0 || length > BinaryCodec.MAXIMUM_FRAME_SIZE || compressed && inflating) {
+            resync("Invalid frame length " + length, 0);
+        }
+        else {
+            payload.clear().limit(length + BinaryCodec.CRC_SIZE);
+            state = State.PAYLOAD;
+        }
+    }
+
+
+    private void readPayload(ByteBuffer buffer) {
+        int count = Math.min(buffer.remaining(), payload.remaining());
+        if (buffer.hasArray()) {
+            payload.put(buffer.array(), buffer.arrayOffset() + buffer.position(), count);
+            buffer.position(buffer.position() + count);
+        }
+        else {
+            for (int i = 0; i < count; ++i) {
+                payload.put(buffer.get());
+            }
+        }
+        if (! isValidStart(payload.get(0))) {
+            resync("Invalid payload start", payload.position());
+        }
+        else if (! payload.hasRemaining()) {
+            checkPayload();
+        }
+    }
+
+
+    /**
+     * Rejects a false marker as soon as the first payload byte arrives, instead of after the whole frame.
+     * Deflate data never starts with the reserved block type 3.
+     */
+    private boolean isValidStart(byte b) {
+        return (compressed) ? (b & DEFLATE_BLOCK_TYPE) != DEFLATE_BLOCK_TYPE : BinaryCodec.isPayloadStart(b);
+    }
+
+
+    private void checkPayload() {
+        int crc = ((payload.get(length) & 0xFF) << 8) | (payload.get(length + 1) & 0xFF);
+        if (crc != BinaryCodec.crc(payload.array(), 0, length)) {
+            resync("Frame check failed", payload.position());
+            return;
+        }
+        payload.flip().limit(length);
+        state = State.JSON;
+        if (compressed) {
+            decodeCompressed();
+        }
+        else {
+            decodeBinary();
+        }
+    }
+
+
+    private void decodeBinary() {
+        try {
+            BinaryCodec.decode(payload, handler);
+        }
+        catch (BinaryCodec.FormatException ex) {
+            handler.invalid(ex.getMessage());
+        }
+    }
+
+
+    /**
+     * Decodes the inflated frame as if it was received, it must be one or more complete frames.
+     */
+    private void decodeCompressed() {
+        try {
+            if (inflater == null) {
+                inflater = new Inflater(true);
+            }
+            inflated.clear();
+            while (! FrameCompressor.inflate(payload, inflater, inflated)) {
+                if (inflated.capacity() >= MAXIMUM_INFLATED_SIZE) {
+                    handler.invalid("Inflated frame too large");
+                    return;
+                }
+                inflated = ByteBuffer.allocate(Math.min(inflated.capacity() * 2, MAXIMUM_INFLATED_SIZE));
+            }
+        }
+        catch (DataFormatException ex) {
+            handler.invalid("Invalid compressed frame: " + ex.getMessage());
+            return;
+        }
+        inflated.flip();
+        inflating = true;
+        try {
+            while (inflated.hasRemaining()) {
+                decodeNext(inflated);
+            }
+        }
+        finally {
+            inflating = false;
+        }
+        if (state != State.JSON || ! tokenizer.isBetweenFrames()) {
+            discardFrame();
+        }
+    }
+
+
+    /**
+     * Reports the current binary or compressed frame invalid and decodes the
+     * bytes after its marker again, before any bytes that are still to be replayed.
+     * A frame inside an inflated frame is not decoded again, the compressed frame
+     * passed its CRC.
+     * @param payloadCount number of payload bytes received
+     */
+    private void resync(String reason, int payloadCount) {
+        handler.invalid(reason);
+        state = State.JSON;
+        if (inflating) {
+            return;
+        }
+        ByteBuffer bytes = ByteBuffer.allocate(headerSize + payloadCount + replay.remaining());
+        bytes.put(header, 0, headerSize);
+        bytes.put(payload.array(), 0, payloadCount);
+        bytes.put(replay);
+        bytes.flip();
+        replay = bytes;
+    }
+
+
+    private enum State { JSON, LENGTH, PAYLOAD }
+
+
+    private final JsonTokenizer.Handler handler;
+    private final JsonTokenizer tokenizer;
+
+    private State state = State.JSON;
+    private final byte[] header = new byte[MAXIMUM_HEADER_SIZE];
+    private int headerSize;
+    private int length;
+    private final ByteBuffer payload = ByteBuffer.allocate(BinaryCodec.MAXIMUM_FRAME_SIZE + BinaryCodec.CRC_SIZE);
+    private ByteBuffer replay = EMPTY;
+    private boolean compressed;
+    private boolean inflating;
+    private Inflater inflater;
+    private ByteBuffer inflated = ByteBuffer.allocate(INITIAL_INFLATED_CAPACITY);
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    /**
+     * Enough for the varint of MAXIMUM_FRAME_SIZE.
+     */
+    private static final int MAXIMUM_HEADER_SIZE = 2;
+    private static final int MAXIMUM_INFLATED_SIZE = 0x10000;
+    private static final int INITIAL_INFLATED_CAPACITY = 0x400;
+    private static final int DEFLATE_BLOCK_TYPE = 0x06;
+
+}
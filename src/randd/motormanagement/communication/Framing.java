@@ -0,0 +1,140 @@
+/*
+** Copyright © Bart Kampers
+*/
+
+package randd.motormanagement.communication;
+
+import java.nio.*;
+import java.nio.charset.*;
+import org.json.*;
+
+
+/**
+ * Representation of messages on the line.
+ * Every connection starts with JSON framing. A SetFraming call switches both sides
+ * to the framing named in its return value, the ECU after sending the return,
+ * the caller after receiving it. Firmware that does not know SetFraming returns
+ * UnknownFunction and the connection keeps JSON framing.
+ * A FrameDecoder accepts both framings at any time.
+ */
+public enum Framing {
+
+    JSON("Json") {
+        @Override
+        public byte[] encode(JSONObject message) {
+            return (message.toString() + TRANSMISSION_END).getBytes(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        ByteBuffer[] withId(byte[] frame, int id) {
+            byte[] prefix = ("{\"" + Messenger.ID + "\":" + id + ((frame[1] != '}') ? "," : "")).getBytes(StandardCharsets.UTF_8);
+            return new ByteBuffer[] { ByteBuffer.wrap(prefix), ByteBuffer.wrap(frame, 1, frame.length - 1) };
+        }
+    },
+
+    /**
+     * A message too large for a binary frame is encoded in JSON, a FrameDecoder accepts both.
+     */
+    BINARY("Binary") {
+        @Override
+        public byte[] encode(JSONObject message) {
+            byte[] frame = BinaryCodec.encode(message);
+            return (frame != null) ? frame : JSON.encode(message);
+        }
+
+        @Override
+        ByteBuffer[] withId(byte[] frame, int id) {
+            return (frame[0] == BinaryCodec.FRAME_MARKER) ? BinaryCodec.withId(frame, id) : JSON.withId(frame, id);
+        }
+    };
+
+
+    private Framing(String name) {
+        this.name = name;
+    }
+
+
+    public abstract byte[] encode(JSONObject message);
+
+
+    /**
+     * The returned buffers share the body of frame, frame must not be changed while they are in use.
+     * @param frame of an object encoded in this framing
+     * @param id
+     * @return buffers that together form frame with Id put in front of the other keys of the object
+     */
+    abstract ByteBuffer[] withId(byte[] frame, int id);
+
+
+    public String getName() {
+        return name;
+    }
+
+
+    /**
+     * @param name
+     * @return framing with given name, null if there is none
+     */
+    public static Framing forName(String name) {
+        for (Framing framing : values()) {
+            if (framing.name.equals(name)) {
+                return framing;
+            }
+        }
+        return null;
+    }
+
+
+    /**
+     * @param framing
+     * @return call that requests the ECU to switch to framing
+     */
+    public static JSONObject request(Framing framing) {
+        try {
+            JSONObject parameters = new JSONObject();
+            parameters.put(FRAMING, framing.name);
+            JSONObject message = new JSONObject();
+            message.put(Messenger.DIRECTION, Messenger.CALL);
+            message.put(Messenger.FUNCTION, SET_FRAMING);
+            message.put(Messenger.PARAMETERS, parameters);
+            return message;
+        }
+        catch (JSONException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+
+    /**
+     * @param message
+     * @return true if message is the return of a SetFraming call
+     */
+    public static boolean isResponse(JSONObject message) {
+        return Messenger.RETURN.equals(message.optString(Messenger.DIRECTION)) && SET_FRAMING.equals(message.optString(Messenger.FUNCTION));
+    }
+
+
+    /**
+     * @param response
+     * @return framing to switch to after response, null if response does not accept a framing
+     */
+    public static Framing accepted(JSONObject response) {
+        if (! isResponse(response) || ! OK.equals(response.optString(STATUS))) {
+            return null;
+        }
+        JSONObject returnValue = response.optJSONObject(Messenger.RETURN_VALUE);
+        return (returnValue != null) ? forName(returnValue.optString(FRAMING)) : null;
+    }
+
+
+    private final String name;
+
+    public static final String SET_FRAMING = "SetFraming";
+    public static final String FRAMING = "Framing";
+
+    static final char TRANSMISSION_END = '\n';
+
+    private static final String STATUS = "Status";
+    private static final String OK = "OK";
+
+}
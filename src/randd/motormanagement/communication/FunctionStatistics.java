@@ -0,0 +1,101 @@
+/*
+** Copyright © Bart Kampers
+*/
+
+package randd.motormanagement.communication;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+
+/**
+ * Latencies and counters of the transactions of one protocol function.
+ */
+public final class FunctionStatistics {
+
+
+    /**
+     * @return time from queueing a call until it was sent
+     */
+    public LatencyHistogram getQueueWait() {
+        return queueWait;
+    }
+
+
+    /**
+     * The round trip includes decoding the return and the time it waited in the
+     * receive queue, calls sent in a batch wait for the whole batch.
+     * @return time from sending a call until its return was taken from the receive queue
+     */
+    public LatencyHistogram getRoundTrip() {
+        return roundTrip;
+    }
+
+
+    /**
+     * @return time to decode received frames of this function
+     */
+    public LatencyHistogram getDecodeTime() {
+        return decodeTime;
+    }
+
+
+    /**
+     * @return time that the listener took to handle returns of this function
+     */
+    public LatencyHistogram getListenerTime() {
+        return listenerTime;
+    }
+
+
+    /**
+     * @return number of calls sent since creation, including retries
+     */
+    public long getCallCount() {
+        return calls.getTotal();
+    }
+
+
+    /**
+     * @return number of calls sent during the last second
+     */
+    public int getCallsPerSecond() {
+        return calls.getRate();
+    }
+
+
+    /**
+     * @return number of calls of which the return timed out
+     */
+    public long getTimeoutCount() {
+        return timeouts.get();
+    }
+
+
+    @Override
+    public String toString() {
+        return String.format(
+            "calls=%d timeouts=%d queue[%s] roundtrip[%s] decode[%s] listener[%s]",
+            getCallCount(), getTimeoutCount(), queueWait, roundTrip, decodeTime, listenerTime);
+    }
+
+
+    void sent(long queueNanos) {
+        calls.increment();
+        queueWait.record(queueNanos);
+    }
+
+
+    void timedOut() {
+        timeouts.incrementAndGet();
+    }
+
+
+    private final LatencyHistogram queueWait = new LatencyHistogram();
+    private final LatencyHistogram roundTrip = new LatencyHistogram();
+    private final LatencyHistogram decodeTime = new LatencyHistogram();
+    private final LatencyHistogram listenerTime = new LatencyHistogram();
+    private final RateCounter calls = new RateCounter(1, TimeUnit.SECONDS, 10);
+    private final AtomicLong timeouts = new AtomicLong();
+
+}
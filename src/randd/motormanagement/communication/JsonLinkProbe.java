@@ -0,0 +1,139 @@
+/*
+** Copyright © Bart Kampers
+*/
+
+package randd.motormanagement.communication;
+
+import bka.communication.*;
+import java.nio.charset.*;
+import java.util.concurrent.*;
+import org.json.*;
+
+
+/**
+ * Probes a link by calling a function on the ECU a number of times.
+ * Each call carries its own Id. An exchange fails if no return of the called
+ * function with that Id, or without any Id, arrives in time. Other frames,
+ * like late returns of earlier calls, are ignored. Probing stops at the
+ * first failing exchange.
+ */
+class JsonLinkProbe implements LinkProbe {
+
+
+    JsonLinkProbe(int exchangeCount, long timeout, TimeUnit unit) {
+        this.exchangeCount = exchangeCount;
+        this.timeoutNanos = unit.toNanos(timeout);
+    }
+
+
+    @Override
+    public Result probe(Channel channel) throws InterruptedException {
+        FrameCollector collector = new FrameCollector();
+        channel.addListener(collector);
+        try {
+            int count = 0;
+            int errorCount = 0;
+            long byteCount = 0;
+            long start = System.nanoTime();
+            while (count < exchangeCount && errorCount == 0) {
+                byte[] request = request(count);
+                collector.frames.clear();
+                channel.send(request);
+                count++;
+                byteCount += request.length;
+                int responseLength = awaitResponse(collector, count - 1);
+                if (responseLength < 0) {
+                    errorCount++;
+                }
+                else {
+                    byteCount += responseLength;
+                }
+            }
+            return new Result(count, errorCount, byteCount, System.nanoTime() - start);
+        }
+        finally {
+            channel.removeListener(collector);
+        }
+    }
+
+
+    /**
+     * @return length of the response to the call with given id, -1 if it did not arrive in time
+     */
+    private int awaitResponse(FrameCollector collector, int id) throws InterruptedException {
+        long deadline = System.nanoTime() + timeoutNanos;
+        long remaining = timeoutNanos;
+        while (remaining > 0) {
+            String frame = collector.frames.poll(remaining, TimeUnit.NANOSECONDS);
+            if (frame == null || frame.isEmpty()) {
+                return -1;
+            }
+            if (isResponse(frame, id)) {
+                return frame.length() + 1;
+            }
+            remaining = deadline - System.nanoTime();
+        }
+        return -1;
+    }
+
+
+    private static byte[] request(int id) {
+        try {
+            JSONObject call = new JSONObject();
+            call.put(Messenger.DIRECTION, Messenger.CALL);
+            call.put(Messenger.FUNCTION, FUNCTION);
+            call.put(Messenger.ID, id);
+            return (call.toString() + TRANSMISSION_END).getBytes(StandardCharsets.UTF_8);
+        }
+        catch (JSONException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+
+    private static boolean isResponse(String frame, int id) {
+        try {
+            JSONObject object = new JSONObject(frame);
+            return Messenger.RETURN.equals(object.optString(Messenger.DIRECTION))
+                && FUNCTION.equals(object.optString(Messenger.FUNCTION))
+                && object.optInt(Messenger.ID, id) == id;
+        }
+        catch (JSONException ex) {
+            return false;
+        }
+    }
+
+
+    private class FrameCollector implements ChannelListener {
+
+        @Override
+        public synchronized void receive(byte[] bytes) {
+            for (byte b : bytes) {
+                if (b == TRANSMISSION_END) {
+                    frames.add(new String(characters.toByteArray(), StandardCharsets.ISO_8859_1));
+                    characters.reset();
+                }
+                else {
+                    characters.write(b);
+                }
+            }
+        }
+
+        @Override
+        public void handleException(Exception ex) {
+            frames.add("");
+        }
+
+        private final java.io.ByteArrayOutputStream characters = new java.io.ByteArrayOutputStream();
+        private final BlockingQueue<String> frames = new LinkedBlockingQueue<>();
+
+    }
+
+
+    private final int exchangeCount;
+    private final long timeoutNanos;
+
+    private static final String FUNCTION = "GetMeasurements";
+    private static final char TRANSMISSION_END = '\n';
+
+}
@@ -0,0 +1,117 @@
+/*
+** Copyright © Bart Kampers
+*/
+
+package randd.motormanagement.communication;
+
+import java.util.*;
+import java.util.function.*;
+import org.json.*;
+
+
+/**
+ * Builds JSONObjects from the tokens of a JsonTokenizer or a binary frame.
+ * Each completed frame is passed to the object consumer, the reason why a frame
+ * is invalid to the error consumer.
+ */
+class JsonObjectBuilder implements JsonTokenizer.Handler {
+
+
+    JsonObjectBuilder(Consumer<JSONObject> objectConsumer, Consumer<String> errorConsumer) {
+        this.objectConsumer = objectConsumer;
+        this.errorConsumer = errorConsumer;
+    }
+
+
+    @Override
+    public void startObject() {
+        JSONObject object = new JSONObject();
+        add(object);
+        containers.push(object);
+    }
+
+
+    @Override
+    public void endObject() {
+        Object object = containers.pop();
+        if (containers.isEmpty()) {
+            objectConsumer.accept((JSONObject) object);
+        }
+    }
+
+
+    @Override
+    public void startArray() {
+        JSONArray array = new JSONArray();
+        add(array);
+        containers.push(array);
+    }
+
+
+    @Override
+    public void endArray() {
+        containers.pop();
+    }
+
+
+    @Override
+    public void key(String key) {
+        this.key = key;
+    }
+
+
+    @Override
+    public void value(Object value) {
+        add((value != null) ? value : JSONObject.NULL);
+    }
+
+
+    @Override
+    public void integer(long value) {
+        if (Integer.MIN_VALUE <= value && value <= Integer.MAX_VALUE) {
+            add((int) value);
+        }
+        else {
+            add(value);
+        }
+    }
+
+
+    @Override
+    public void real(double value) {
+        add(value);
+    }
+
+
+    @Override
+    public void invalid(String reason) {
+        containers.clear();
+        key = null;
+        errorConsumer.accept(reason);
+    }
+
+
+    private void add(Object value) {
+        Object container = containers.peek();
+        if (container instanceof JSONObject) {
+            try {
+                ((JSONObject) container).put(key, value);
+            }
+            catch (JSONException ex) {
+                // Keys and values from the tokenizer are never null or non finite
+                throw new IllegalStateException(ex);
+            }
+        }
+        else if (container instanceof JSONArray) {
+            ((JSONArray) container).put(value);
+        }
+    }
+
+
+    private final Consumer<JSONObject> objectConsumer;
+    private final Consumer<String> errorConsumer;
+
+    private final Deque<Object> containers = new ArrayDeque<>();
+    private String key;
+
+}
@@ -0,0 +1,612 @@
+/*
+** Copyright © Bart Kampers
+*/
+
+package randd.motormanagement.communication;
+
+import java.nio.*;
+
+
+/**
+ * Resumable tokenizer for newline terminated JSON frames.
+ * Bytes are consumed as they arrive, a frame may be split over any number of
+ * buffers, also within multi byte UTF-8 characters. Tokens are reported to a
+ * Handler as soon as they are complete. Each frame must contain one object.
+ * After an invalid token the rest of the frame is skipped, parsing resumes
+ * at the next frame.
+ * The frame markers of binary and compressed frames, STX and ETX, never occur in
+ * JSON text. A marker ends the current frame, an incomplete frame is invalid.
+ */
+final class JsonTokenizer {
+
+
+    interface Handler {
+        void startObject();
+        void endObject();
+        void startArray();
+        void endArray();
+        void key(String key);
+
+        /**
+         * @param value String, Boolean or null for the null literal
+         */
+        void value(Object value);
+
+        /**
+         * Called for numbers without fraction or exponent that fit in a long.
+         * @param value
+         */
+        void integer(long value);
+
+        /**
+         * Called for all other numbers.
+         * @param value
+         */
+        void real(double value);
+
+        /**
+         * Called when the current frame is invalid. Tokens of the frame reported so far
+         * must be discarded.
+         * @param reason
+         */
+        void invalid(String reason);
+    }
+
+
+    JsonTokenizer(Handler handler) {
+        this.handler = handler;
+    }
+
+
+    void parse(ByteBuffer buffer) {
+        while (buffer.hasRemaining()) {
+            if (isFrameMarker(buffer.get(buffer.position()))) {
+                buffer.get();
+                reset();
+            }
+            else {
+                parseNext(buffer);
+            }
+        }
+    }
+
+
+    /**
+     * Parses up to and including the end of the current frame. Between frames
+     * at most one byte is parsed, so the caller can inspect the start of the next frame.
+     * Parsing stops in front of a frame marker.
+     */
+    void parseFrame(ByteBuffer buffer) {
+        while (buffer.hasRemaining()) {
+            if (isFrameMarker(buffer.get(buffer.position()))) {
+                reset();
+                return;
+            }
+            parseNext(buffer);
+            if (state == State.FRAME_START) {
+                return;
+            }
+        }
+    }
+
+
+    /**
+     * @return true if no byte of a frame has been parsed since the end of the previous frame
+     */
+    boolean isBetweenFrames() {
+        return state == State.FRAME_START;
+    }
+
+
+    /**
+     * Discards a partially received frame.
+     */
+    void reset() {
+        if (state != State.FRAME_START && state != State.FRAME_END && state != State.DISCARD) {
+            handler.invalid("Frame interrupted");
+        }
+        startFrame();
+    }
+
+
+    private void parseNext(ByteBuffer buffer) {
+        if (state == State.DISCARD) {
+            skipFrame(buffer);
+        }
+        else {
+            parse(buffer.get());
+        }
+    }
+
+
+    /**
+     * @param b
+     * @return true if b starts a binary or compressed frame
+     */
+    static boolean isFrameMarker(byte b) {
+        return b == BinaryCodec.FRAME_MARKER || b == FrameCompressor.FRAME_MARKER;
+    }
+
+
+    /**
+     * Fast path for the rest of an invalid frame, only looks for its end.
+     * Stops in front of a frame marker.
+     */
+    private void skipFrame(ByteBuffer buffer) {
+        while (buffer.hasRemaining()) {
+            byte b = buffer.get(buffer.position());
+            if (isFrameMarker(b)) {
+                return;
+            }
+            buffer.get();
+            if (b == TRANSMISSION_END) {
+                startFrame();
+                return;
+            }
+        }
+    }
+
+
+    private void parse(byte b) {
+        if (b == TRANSMISSION_END) {
+            endFrame();
+            return;
+        }
+        switch (state) {
+            case STRING:
+                parseString(b);
+                break;
+            case ESCAPE:
+                parseEscape(b);
+                break;
+            case UNICODE:
+                parseUnicode(b);
+                break;
+            case NUMBER:
+                if (isNumberCharacter(b)) {
+                    text.append((char) b);
+                }
+                else {
+                    endNumber();
+                    parse(b);
+                }
+                break;
+            case LITERAL:
+                if ('a' <= b && b <= 'z' && text.length() < MAXIMUM_LITERAL_LENGTH) {
+                    text.append((char) b);
+                }
+                else {
+                    endLiteral();
+                    parse(b);
+                }
+                break;
+            case DISCARD:
+                break;
+            default:
+                if (! isWhitespace(b)) {
+                    parseStructure(b);
+                }
+        }
+    }
+
+
+    private void parseStructure(byte b) {
+        switch (state) {
+            case FRAME_START:
+                if (b == '{') {
+                    startContainer(OBJECT);
+                }
+                else {
+                    invalid("Object expected");
+                }
+                break;
+            case KEY_OR_END:
+                if (b == '}') {
+                    endContainer(OBJECT);
+                }
+                else {
+                    startKey(b);
+                }
+                break;
+            case KEY:
+                startKey(b);
+                break;
+            case COLON:
+                if (b == ':') {
+                    state = State.VALUE;
+                }
+                else {
+                    invalid("':' expected");
+                }
+                break;
+            case VALUE_OR_END:
+                if (b == ']') {
+                    endContainer(ARRAY);
+                }
+                else {
+                    startValue(b);
+                }
+                break;
+            case VALUE:
+                startValue(b);
+                break;
+            case SEPARATOR_OR_END:
+                parseSeparator(b);
+                break;
+            case FRAME_END:
+                invalid("Data after object");
+                break;
+            default:
+                throw new IllegalStateException(state.name());
+        }
+    }
+
+
+    private void parseSeparator(byte b) {
+        if (b == ',') {
+            state = (containers[depth - 1] == OBJECT) ? State.KEY : State.VALUE;
+        }
+        else if (b == '}') {
+            endContainer(OBJECT);
+        }
+        else if (b == ']') {
+            endContainer(ARRAY);
+        }
+        else {
+            invalid("',' expected");
+        }
+    }
+
+
+    private void startKey(byte b) {
+        if (b == '"') {
+            stringIsKey = true;
+            state = State.STRING;
+        }
+        else {
+            invalid("Key expected");
+        }
+    }
+
+
+    private void startValue(byte b) {
+        if (b == '"') {
+            stringIsKey = false;
+            state = State.STRING;
+        }
+        else if (b == '{') {
+            startContainer(OBJECT);
+        }
+        else if (b == '[') {
+            startContainer(ARRAY);
+        }
+        else if (b == '-' || '0' <= b && b <= '9') {
+            text.append((char) b);
+            state = State.NUMBER;
+        }
+        else if (b == 't' || b == 'f' || b == 'n') {
+            text.append((char) b);
+            state = State.LITERAL;
+        }
+        else {
+            invalid("Value expected");
+        }
+    }
+
+
+    private void startContainer(byte type) {
+        if (depth == containers.length) {
+            invalid("Nesting too deep");
+            return;
+        }
+        containers[depth++] = type;
+        if (type == OBJECT) {
+            handler.startObject();
+            state = State.KEY_OR_END;
+        }
+        else {
+            handler.startArray();
+            state = State.VALUE_OR_END;
+        }
+    }
+
+
+    private void endContainer(byte type) {
+        if (containers[depth - 1] != type) {
+            invalid("Mismatched bracket");
+            return;
+        }
+        depth--;
+        if (type == OBJECT) {
+            handler.endObject();
+        }
+        else {
+            handler.endArray();
+        }
+        endValue();
+    }
+
+
+    private void endValue() {
+        state = (depth == 0) ? State.FRAME_END : State.SEPARATOR_OR_END;
+    }
+
+
+    private void parseString(byte b) {
+        if (utf8Remaining > 0) {
+            if ((b & 0xC0) != 0x80) {
+                invalid("Malformed UTF-8");
+                return;
+            }
+            codePoint = (codePoint << 6) | (b & 0x3F);
+            utf8Remaining--;
+            if (utf8Remaining == 0) {
+                if (codePoint > Character.MAX_CODE_POINT) {
+                    invalid("Malformed UTF-8");
+                    return;
+                }
+                text.appendCodePoint(codePoint);
+            }
+        }
+        else if (b == '"') {
+            endString();
+        }
+        else if (b == '\\') {
+            state = State.ESCAPE;
+        }
+        else if (b >= 0x20) {
+            text.append((char) b);
+        }
+        else if (b >= 0) {
+            invalid("Control character in string");
+        }
+        else if ((b & 0xE0) == 0xC0) {
+            startCodePoint(b & 0x1F, 1);
+        }
+        else if ((b & 0xF0) == 0xE0) {
+            startCodePoint(b & 0x0F, 2);
+        }
+        else if ((b & 0xF8) == 0xF0) {
+            startCodePoint(b & 0x07, 3);
+        }
+        else {
+            invalid("Malformed UTF-8");
+        }
+    }
+
+
+    private void startCodePoint(int bits, int continuationCount) {
+        codePoint = bits;
+        utf8Remaining = continuationCount;
+    }
+
+
+    private void parseEscape(byte b) {
+        state = State.STRING;
+        switch (b) {
+            case '"':
+            case '\\':
+            case '/':
+                text.append((char) b);
+                break;
+            case 'b':
+                text.append('\b');
+                break;
+            case 'f':
+                text.append('\f');
+                break;
+            case 'n':
+                text.append('\n');
+                break;
+            case 'r':
+                text.append('\r');
+                break;
+            case 't':
+                text.append('\t');
+                break;
+            case 'u':
+                codePoint = 0;
+                utf8Remaining = 0;
+                unicodeDigitCount = 0;
+                state = State.UNICODE;
+                break;
+            default:
+                invalid("Invalid escape");
+        }
+    }
+
+
+    private void parseUnicode(byte b) {
+        int digit = Character.digit(b, 16);
+        if (digit < 0) {
+            invalid("Invalid unicode escape");
+            return;
+        }
+        codePoint = (codePoint << 4) | digit;
+        unicodeDigitCount++;
+        if (unicodeDigitCount == UNICODE_DIGIT_COUNT) {
+            text.append((char) codePoint);
+            state = State.STRING;
+        }
+    }
+
+
+    private void endString() {
+        String string = text.toString();
+        text.setLength(0);
+        if (stringIsKey) {
+            handler.key(string);
+            state = State.COLON;
+        }
+        else {
+            handler.value(string);
+            endValue();
+        }
+    }
+
+
+    private void endNumber() {
+        if (isIntegral(text)) {
+            long value = 0;
+            for (int i = (text.charAt(0) == '-') ? 1 : 0; i < text.length(); ++i) {
+                value = value * 10 + (text.charAt(i) - '0');
+            }
+            handler.integer((text.charAt(0) == '-') ? -value : value);
+            text.setLength(0);
+            endValue();
+            return;
+        }
+        Object number = number(text);
+        text.setLength(0);
+        if (number == null) {
+            invalid("Invalid number");
+            return;
+        }
+        if (number instanceof Double) {
+            handler.real((Double) number);
+        }
+        else {
+            handler.integer(((Number) number).longValue());
+        }
+        endValue();
+    }
+
+
+    /**
+     * @return true for an optional minus sign followed by digits that certainly fit in a long
+     */
+    private static boolean isIntegral(CharSequence characters) {
+        int start = (characters.charAt(0) == '-') ? 1 : 0;
+        int length = characters.length() - start;
+        if (length == 0 || length > MAXIMUM_INTEGRAL_DIGITS) {
+            return false;
+        }
+        for (int i = start; i < characters.length(); ++i) {
+            char character = characters.charAt(i);
+            if (character < '0' || '9' < character) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    private void endLiteral() {
+        String literal = text.toString();
+        text.setLength(0);
+        switch (literal) {
+            case "true":
+                handler.value(Boolean.TRUE);
+                break;
+            case "false":
+                handler.value(Boolean.FALSE);
+                break;
+            case "null":
+                handler.value(null);
+                break;
+            default:
+                invalid("Invalid literal");
+                return;
+        }
+        endValue();
+    }
+
+
+    /**
+     * Numbers are represented like org.json does: Integer or Long if possible, Double otherwise.
+     */
+    private static Object number(CharSequence characters) {
+        String string = characters.toString();
+        try {
+            if (string.indexOf('.') < 0 && string.indexOf('e') < 0 && string.indexOf('E') < 0) {
+                try {
+                    long value = Long.parseLong(string);
+                    if (Integer.MIN_VALUE <= value && value <= Integer.MAX_VALUE) {
+                        return (int) value;
+                    }
+                    return value;
+                }
+                catch (NumberFormatException ex) {
+                    // Too large for long
+                }
+            }
+            Double value = Double.valueOf(string);
+            return (value.isInfinite()) ? null : value;
+        }
+        catch (NumberFormatException ex) {
+            return null;
+        }
+    }
+
+
+    private void endFrame() {
+        switch (state) {
+            case NUMBER:
+                endNumber();
+                break;
+            case LITERAL:
+                endLiteral();
+                break;
+            default:
+                break;
+        }
+        if (state != State.FRAME_START && state != State.FRAME_END && state != State.DISCARD) {
+            handler.invalid("Incomplete frame");
+        }
+        startFrame();
+    }
+
+
+    private void invalid(String reason) {
+        handler.invalid(reason);
+        text.setLength(0);
+        state = State.DISCARD;
+    }
+
+
+    private void startFrame() {
+        state = State.FRAME_START;
+        depth = 0;
+        text.setLength(0);
+        utf8Remaining = 0;
+    }
+
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t' || b == '\r';
+    }
+
+
+    private static boolean isNumberCharacter(byte b) {
+        return '0' <= b && b <= '9' || b == '-' || b == '+' || b == '.' || b == 'e' || b == 'E';
+    }
+
+
+    private enum State {
+        FRAME_START, KEY_OR_END, KEY, COLON, VALUE_OR_END, VALUE, SEPARATOR_OR_END, FRAME_END,
+        STRING, ESCAPE, UNICODE, NUMBER, LITERAL, DISCARD
+    }
+
+
+    private final Handler handler;
+
+    private State state = State.FRAME_START;
+    private final byte[] containers = new byte[MAXIMUM_DEPTH];
+    private int depth;
+
+    private final StringBuilder text = new StringBuilder();
+    private boolean stringIsKey;
+    private int codePoint;
+    private int utf8Remaining;
+    private int unicodeDigitCount;
+
+    private static final byte OBJECT = '{';
+    private static final byte ARRAY = '[';
+
+    private static final byte TRANSMISSION_END = '\n';
+    private static final int MAXIMUM_DEPTH = 0x20;
+    private static final int MAXIMUM_LITERAL_LENGTH = 5;
+    private static final int MAXIMUM_INTEGRAL_DIGITS = 18;
+    private static final int UNICODE_DIGIT_COUNT = 4;
+
+}
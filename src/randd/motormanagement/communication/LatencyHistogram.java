@@ -0,0 +1,127 @@
+/*
+** Copyright © Bart Kampers
+*/
+
+package randd.motormanagement.communication;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+
+/**
+ * Distribution of durations in buckets of which the width grows with the duration,
+ * so every recorded duration is known within 12.5%. Recording takes no lock
+ * and does not allocate. Durations above about 36 minutes are recorded as 36 minutes.
+ */
+public final class LatencyHistogram {
+
+
+    /**
+     * @return number of recorded durations
+     */
+    public long getCount() {
+        return count.sum();
+    }
+
+
+    /**
+     * @param unit
+     * @return mean of recorded durations, 0 if none were recorded
+     */
+    public long getMean(TimeUnit unit) {
+        long n = count.sum();
+        return (n > 0) ? unit.convert(total.sum() / n, TimeUnit.NANOSECONDS) : 0;
+    }
+
+
+    /**
+     * @param unit
+     * @return longest recorded duration, 0 if none were recorded
+     */
+    public long getMaximum(TimeUnit unit) {
+        return unit.convert(maximum.get(), TimeUnit.NANOSECONDS);
+    }
+
+
+    /**
+     * @param percentile from 0 to 100
+     * @param unit
+     * @return duration that percentile of the recorded durations does not exceed,
+     * rounded up to its bucket, 0 if none were recorded
+     */
+    public long getPercentile(double percentile, TimeUnit unit) {
+        if (percentile < 0.0 || percentile > 100.0) {
+            throw new IllegalArgumentException("Invalid percentile " + percentile);
+        }
+        long[] snapshot = new long[BUCKET_COUNT];
+        long n = 0;
+        for (int i = 0; i < BUCKET_COUNT; ++i) {
+            snapshot[i] = buckets.get(i);
+            n += snapshot[i];
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * n));
+        long cumulative = 0;
+        for (int i = 0; i < BUCKET_COUNT; ++i) {
+            cumulative += snapshot[i];
+            if (cumulative >= rank) {
+                return unit.convert(Math.min(upperBound(i), maximum.get()), TimeUnit.NANOSECONDS);
+            }
+        }
+        return 0;
+    }
+
+
+    @Override
+    public String toString() {
+        return String.format(
+            "n=%d mean=%dus p50=%dus p99=%dus max=%dus",
+            getCount(), getMean(TimeUnit.MICROSECONDS), getPercentile(50, TimeUnit.MICROSECONDS),
+            getPercentile(99, TimeUnit.MICROSECONDS), getMaximum(TimeUnit.MICROSECONDS));
+    }
+
+
+    void record(long nanos) {
+        nanos = Math.max(0, Math.min(nanos, MAXIMUM_NANOS));
+        buckets.incrementAndGet(bucketIndex(nanos));
+        count.increment();
+        total.add(nanos);
+        maximum.accumulateAndGet(nanos, Math::max);
+    }
+
+
+    /**
+     * Values below SUB_BUCKET_COUNT have a bucket each, larger values share a bucket
+     * with the values that have the same highest SUB_BUCKET_BITS + 1 bits.
+     */
+    private static int bucketIndex(long nanos) {
+        if (nanos < SUB_BUCKET_COUNT) {
+            return (int) nanos;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+        int subBucket = (int) (nanos >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKET_COUNT - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT + subBucket;
+    }
+
+
+    private static long upperBound(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int shift = index / SUB_BUCKET_COUNT - 1;
+        long lower = (long) (SUB_BUCKET_COUNT + index % SUB_BUCKET_COUNT) << shift;
+        return lower + (1L << shift) - 1;
+    }
+
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder total = new LongAdder();
+    private final AtomicLong maximum = new AtomicLong();
+
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int MAXIMUM_EXPONENT = 40;
+    private static final int BUCKET_COUNT = (MAXIMUM_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKET_COUNT;
+    private static final long MAXIMUM_NANOS = (1L << (MAXIMUM_EXPONENT + 1)) - 1;
+
+}
@@ -0,0 +1,176 @@
+/*
+** Copyright © Bart Kampers
+*/
+
+package randd.motormanagement.communication;
+
+import java.util.*;
+import java.util.function.*;
+import randd.motormanagement.system.*;
+
+
+/**
+ * Decodes the return value of GetMeasurements into the Measurement instances.
+ * The return value maps measurement names to objects with Value and Simulation.
+ */
+class MeasurementsDecoder implements PayloadDecoder {
+
+
+    /**
+     * @param namesConsumer receives the measurement names of every return value,
+     * the same unmodifiable collection as long as the names do not change
+     */
+    MeasurementsDecoder(Consumer<Collection<String>> namesConsumer) {
+        this.namesConsumer = namesConsumer;
+    }
+
+
+    @Override
+    public void startObject() {
+        depth++;
+    }
+
+
+    @Override
+    public void endObject() {
+        depth--;
+        if (depth == 0) {
+            complete = true;
+        }
+    }
+
+
+    @Override
+    public void startArray() {
+        depth++;
+    }
+
+
+    @Override
+    public void endArray() {
+        depth--;
+    }
+
+
+    @Override
+    public void key(String key) {
+        if (depth == 1) {
+            addMeasurement(key);
+        }
+        else if (depth == 2) {
+            field = key;
+        }
+    }
+
+
+    @Override
+    public void value(Object value) {
+        if (depth == 2 && SIMULATION.equals(field) && value instanceof Boolean) {
+            simulations[count - 1] = (Boolean) value;
+        }
+    }
+
+
+    @Override
+    public void integer(long value) {
+        real(value);
+    }
+
+
+    @Override
+    public void real(double value) {
+        if (depth == 2 && VALUE.equals(field)) {
+            values[count - 1] = (float) value;
+            hasValues[count - 1] = true;
+        }
+    }
+
+
+    @Override
+    public void invalid(String reason) {
+        clear();
+    }
+
+
+    @Override
+    public Runnable commit() {
+        Runnable update = null;
+        if (complete) {
+            Collection<String> measurementNames = committedNames();
+            String[] committed = Arrays.copyOf(names, count);
+            float[] committedValues = Arrays.copyOf(values, count);
+            boolean[] committedHasValues = Arrays.copyOf(hasValues, count);
+            boolean[] committedSimulations = Arrays.copyOf(simulations, count);
+            update = () -> {
+                namesConsumer.accept(measurementNames);
+                for (int i = 0; i < committed.length; ++i) {
+                    Measurement measurement = Measurement.getInstance(committed[i]);
+                    if (committedHasValues[i]) {
+                        measurement.setValue(committedValues[i]);
+                    }
+                    measurement.setSimulationEnabled(committedSimulations[i]);
+                }
+            };
+        }
+        clear();
+        return update;
+    }
+
+
+    private void addMeasurement(String name) {
+        if (count == names.length) {
+            int capacity = count * 2;
+            names = Arrays.copyOf(names, capacity);
+            values = Arrays.copyOf(values, capacity);
+            hasValues = Arrays.copyOf(hasValues, capacity);
+            simulations = Arrays.copyOf(simulations, capacity);
+        }
+        names[count] = name;
+        hasValues[count] = false;
+        simulations[count] = false;
+        count++;
+        field = null;
+    }
+
+
+    private Collection<String> committedNames() {
+        boolean equal = committedNames.size() == count;
+        for (int i = 0; equal && i < count; ++i) {
+            equal = committedNames.get(i).equals(names[i]);
+        }
+        if (! equal) {
+            committedNames = Collections.unmodifiableList(new ArrayList<>(Arrays.asList(names).subList(0, count)));
+        }
+        return committedNames;
+    }
+
+
+    private void clear() {
+        Arrays.fill(names, 0, count, null);
+        count = 0;
+        depth = 0;
+        field = null;
+        complete = false;
+    }
+
+
+    private final Consumer<Collection<String>> namesConsumer;
+
+    private String[] names = new String[INITIAL_CAPACITY];
+    private float[] values = new float[INITIAL_CAPACITY];
+    private boolean[] hasValues = new boolean[INITIAL_CAPACITY];
+    private boolean[] simulations = new boolean[INITIAL_CAPACITY];
+    private int count;
+
+    private int depth;
+    private String field;
+    private boolean complete;
+
+    private List<String> committedNames = Collections.emptyList();
+
+    private static final String VALUE = "Value";
+    private static final String SIMULATION = "Simulation";
+
+    private static final int INITIAL_CAPACITY = 16;
+
+}
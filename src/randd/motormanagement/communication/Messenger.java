@@ -4,27 +4,61 @@
 
 package randd.motormanagement.communication;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import org.json.JSONArray;
+import org.json.JSONException;
 import org.json.JSONObject;
 
 
+/**
+ * Sends transactions and matches received responses to them.
+ * Every transaction carries an Id that the ECU echoes in its response. Once the
+ * ECU has echoed an Id, up to the window size of transactions wait for their
+ * responses at the same time and may complete in any order. Until then, and
+ * with firmware that ignores the Id, each transaction waits for its response
+ * before the next is sent and responses are matched by function.
+ * Queued transactions are sent by priority, see TransactionQueue.
+ * The response timeout of a transaction follows the round trip times of its
+ * function. A read that times out is sent again, up to MAXIMUM_RETRIES times.
+ * Every send returns a future that completes with the response after the
+ * listener is notified of it. The future fails with a TimeoutException when no
+ * response came, and is cancelled when the transaction is aborted. Dependent
+ * actions run on the messenger threads and must not block.
+ * Calls that are queued together are sent in one Batch call, of which the return
+ * value is the array of their returns. The ECU handles the calls of a batch in
+ * order. Polls and typed calls are sent on their own. When the ECU does not
+ * return OK to a batch, its calls are sent one by one until the connection is lost.
+ */
 class Messenger {
     
     
     static final String DIRECTION = "Direction";
     static final String FIRE = "Fire";
     static final String CALL = "Call";
-    static final String FUNCTION = "Function";    
+    static final String FUNCTION = "Function";
     static final String RETURN = "Return";
     static final String PARAMETERS = "Parameters";
     static final String RETURN_VALUE = "ReturnValue";
-
+    static final String ID = "Id";
+    static final String STATUS = "Status";
+    static final String OK = "OK";
+    static final String BATCH = "Batch";
+    static final String CALLS = "Calls";
+    
     
-    interface Listener { 
+    interface Listener {
         void notifyMessage(JSONObject message);
         void notifyResponse(JSONObject message, JSONObject response);
     }
@@ -32,6 +66,8 @@ class Messenger {
     
     Messenger(Transporter transporter) {
         this.transporter = Objects.requireNonNull(transporter);
+        transporter.setStatistics(statistics);
+        transporter.setAwaitedReturns(this::awaitedReturns);
      }
     
     
@@ -39,7 +75,95 @@ class Messenger {
         this.listener = listener;
     }
     
-
+    
+    /**
+     * @param windowSize maximum number of transactions waiting for their responses at the same time
+     */
+    void setWindowSize(int windowSize) {
+        if (windowSize < 1) {
+            throw new IllegalArgumentException("Invalid window size " + windowSize);
+        }
+        synchronized (inFlight) {
+            this.windowSize = windowSize;
+            inFlight.notifyAll();
+        }
+    }
+    
+    
+    /**
+     * @param batching true to send calls that are queued together in one batch
+     */
+    void setBatching(boolean batching) {
+        this.batching = batching;
+    }
+    
+    
+    /**
+     * @param priority
+     * @param unit
+     * @return average time that transactions of priority waited in the queue
+     */
+    long getAverageQueueTime(Priority priority, TimeUnit unit) {
+        return transactions.getAverageWait(priority, unit);
+    }
+    
+    
+    /**
+     * @param priority
+     * @param unit
+     * @return longest time that a transaction of priority waited in the queue
+     */
+    long getMaximumQueueTime(Priority priority, TimeUnit unit) {
+        return transactions.getMaximumWait(priority, unit);
+    }
+    
+    
+    /**
+     * @return number of transactions of which the response timed out, including retries
+     */
+    long getTimeoutCount() {
+        synchronized (inFlight) {
+            return timeoutCount;
+        }
+    }
+    
+    
+    /**
+     * @return number of timed out reads of which a retry got its response
+     */
+    long getRecoveredCount() {
+        synchronized (inFlight) {
+            return recoveredCount;
+        }
+    }
+    
+    
+    /**
+     * A return without Id completes the oldest transaction in flight of its function.
+     * @param function
+     * @return number of transactions in flight that a return of function without Id can complete
+     */
+    private int awaitedReturns(String function) {
+        synchronized (inFlight) {
+            int count = 0;
+            for (Transaction transaction : inFlight.values()) {
+                if (function.equals(transaction.function)) {
+                    count++;
+                }
+            }
+            return count;
+        }
+    }
+    
+    
+    /**
+     * @return latencies per function and throughput, shared with the transporter
+     */
+    TransactionStatistics getStatistics() {
+        return statistics;
+    }
+    
+    
     /**
      * Starts messenger. The messenger is ready to send and receive until close is called;
      * @see #stop()
@@ -53,28 +177,118 @@ class Messenger {
         transactionThread.start();
     }
     
-
+    
     /**
      * Stop sending and receiving messages.
+     * The futures of the transactions that did not get their responses are cancelled.
      * @see #start()
      * @throws bka.communication.ChannelException
      */
     void stop() throws bka.communication.ChannelException {
+        transactions.clear().forEach(transaction -> transaction.fail(new CancellationException()));
         transactionTask.stop();
         receiveTask.stop();
         transporter.close();
+        abortOutstanding();
     }
     
     
     /**
      * Put message in queue for sending. Received responses will be notified through Listener.
      * When this Messenger is not open the message will not be sent.
+     * The Id of the transaction is put into the frame when it is sent, message
+     * itself is not changed. A fire message is sent without Id, its future
+     * completes with null once it is sent.
+     * The message is sent with interactive write priority.
      * @see #start()
      * @see #setListener(Listener)
      * @param message
+     * @return future response
+     */
+    CompletableFuture<JSONObject> send(JSONObject message) {
+        Transaction transaction = new Transaction(message, Priority.INTERACTIVE_WRITE);
+        transactions.add(transaction, Priority.INTERACTIVE_WRITE);
+        return transaction.future;
+    }
+    
+    
+    /**
+     * Put request in queue for sending. Its frame is sent as encoded by the request.
+     * A read request is not queued if the same request is queued already.
+     * @see #send(JSONObject)
+     * @param request
+     * @return future response
+     */
+    CompletableFuture<JSONObject> send(EncodedRequest request) {
+        return send(request, (request.isRead()) ? Priority.INTERACTIVE_READ : Priority.INTERACTIVE_WRITE);
+    }
+    
+    
+    CompletableFuture<JSONObject> send(EncodedRequest request, Priority priority) {
+        Transaction transaction = new Transaction(request, priority);
+        if (request.isRead()) {
+            Transaction queued = transactions.addRead(transaction, request, priority);
+            if (queued != transaction) {
+                queued.inherit(transaction);
+            }
+        }
+        else {
+            transactions.add(transaction, priority);
+        }
+        return transaction.future;
+    }
+    
+    
+    /**
+     * Put call in queue for sending. It is encoded when sent, the listener
+     * is notified of its response with a null message.
+     * A call replaces a queued call to the same target.
+     * @see #send(JSONObject)
+     * @see Call#getTarget()
+     * The future of a replaced call completes with the response to the call that replaced it.
+     * @param call
+     * @return future response
      */
-    void send(JSONObject message) {
-        transactions.add(new Transaction(message));
+    CompletableFuture<JSONObject> send(Call call) {
+        return send(call, Priority.INTERACTIVE_WRITE);
+    }
+    
+    
+    CompletableFuture<JSONObject> send(Call call, Priority priority) {
+        Transaction transaction = new Transaction(call, priority);
+        Object target = call.getTarget();
+        if (target != null) {
+            Transaction replaced = transactions.addWrite(transaction, target, priority);
+            if (replaced != null) {
+                transaction.inherit(replaced);
+            }
+        }
+        else {
+            transactions.add(transaction, priority);
+        }
+        return transaction.future;
+    }
+    
+    
+    /**
+     * Stops waiting for the responses to the transactions in progress, if any.
+     * The next transaction in the queue will be sent. Transactions wait for their
+     * responses one by one until the ECU echoes an Id again, and batches are
+     * tried again.
+     * The futures of the aborted transactions are cancelled.
+     */
+    void abortOutstanding() {
+        synchronized (inFlight) {
+            if (! inFlight.isEmpty()) {
+                logger.log(Level.FINE, "{0} transactions aborted", inFlight.size());
+                inFlight.values().forEach(transaction -> transaction.fail(new CancellationException()));
+                inFlight.clear();
+            }
+            correlating = false;
+            batchesAccepted = false;
+            batchesRejected = false;
+            inFlight.notifyAll();
+        }
     }
     
     
@@ -85,7 +299,7 @@ class Messenger {
             try {
                 while (running && transporter != null) {
                     JSONObject receivedObject = transporter.nextReceivedObject();
-                    if (receivedObject.length() > 0) {
+                    if (receivedObject != null && receivedObject.length() > 0) {
                         handleReceivedObject(receivedObject);
                     }
                 }
@@ -102,11 +316,14 @@ class Messenger {
 
         private void handleReceivedObject(JSONObject receivedObject) {
             logger.log(Level.FINEST, "<< {0}", receivedObject);
-            boolean tranactionHandled = false;
-            if (outstanding.transaction != null) {
-                tranactionHandled = handleTransaction(receivedObject);
+            Transaction transaction = completeTransaction(receivedObject);
+            if (transaction != null && transaction.members != null) {
+                completeBatch(transaction);
             }
-            if (! tranactionHandled && listener != null) {
+            else if (transaction != null) {
+                complete(transaction);
+            }
+            else if (listener != null) {
                 try {
                     listener.notifyMessage(receivedObject);
                 }
@@ -116,23 +333,129 @@ class Messenger {
             }
         }
 
-        private boolean handleTransaction(JSONObject receivedObject) {
-            if (isResponse(receivedObject, outstanding.transaction.message.optString(FUNCTION))) {
-                synchronized (outstanding) {
-                    outstanding.transaction.response = receivedObject;
-                    outstanding.notify();
-                    return true;
+        private void complete(Transaction transaction) {
+            try {
+                long start = System.nanoTime();
+                notifyResponse(transaction);
+                functionStatistics(transaction).getListenerTime().record(System.nanoTime() - start);
+                transaction.complete();
+            }
+            catch (RuntimeException ex) {
+                logger.log(Level.WARNING, "notifyResponse", ex);
+                transaction.fail(ex);
+            }
+        }
+
+        /**
+         * Completes the members of a batch with the returns in its return value.
+         */
+        private void completeBatch(Transaction batch) {
+            JSONArray returns = batchReturns(batch);
+            if (returns == null) {
+                return;
+            }
+            long roundTrip = System.nanoTime() - batch.sendTime;
+            for (int i = 0; i < returns.length(); ++i) {
+                Transaction member = batch.members.get(i);
+                member.response = returns.optJSONObject(i);
+                if (member.response != null) {
+                    functionStatistics(member).getRoundTrip().record(roundTrip);
+                    complete(member);
+                }
+                else {
+                    member.fail(new IllegalStateException("No return in batch for " + member));
                 }
             }
-            return false;
         }
-        
-        private boolean isResponse(JSONObject object, String function) {
-            return 
-                object != null &&
-                function != null &&
-                function.equals(object.opt(FUNCTION)) &&
-                RETURN.equals(object.opt(DIRECTION));
+
+        /**
+         * A response with an Id belongs to the transaction with that Id only, a response
+         * without Id to the oldest transaction of its function.
+         * @return transaction that receivedObject responds to, null if there is none
+         */
+        private Transaction completeTransaction(JSONObject receivedObject) {
+            if (! RETURN.equals(receivedObject.opt(DIRECTION))) {
+                return null;
+            }
+            synchronized (inFlight) {
+                Transaction transaction;
+                if (receivedObject.has(ID)) {
+                    transaction = inFlight.remove(receivedObject.optInt(ID, NO_ID));
+                    correlating |= transaction != null;
+                }
+                else {
+                    transaction = removeOldest(receivedObject.opt(FUNCTION));
+                }
+                if (transaction == null) {
+                    statistics.unmatched();
+                }
+                else {
+                    transaction.response = receivedObject;
+                    sampleRoundTrip(transaction);
+                    if (transaction.members != null) {
+                        acknowledgeBatch(transaction);
+                    }
+                    inFlight.notifyAll();
+                }
+                return transaction;
+            }
+        }
+
+        /**
+         * If the ECU did not handle the batch its members are queued again, in front,
+         * to be sent one by one. This happens before the window opens, so no other
+         * transaction goes first.
+         */
+        private void acknowledgeBatch(Transaction batch) {
+            if (batchReturns(batch) != null) {
+                batchesAccepted = true;
+                return;
+            }
+            logger.log(Level.INFO, "Batch not handled, calls are sent one by one: {0}", batch.response.opt(STATUS));
+            batchesRejected = true;
+            for (int i = batch.members.size() - 1; i >= 0; --i) {
+                Transaction member = batch.members.get(i);
+                member.queueTime = System.nanoTime();
+                transactions.addFirst(member, member.priority);
+            }
+        }
+
+        /**
+         * @return returns of the members of batch, null if the ECU did not handle batch
+         */
+        private JSONArray batchReturns(Transaction batch) {
+            JSONArray returns = (OK.equals(batch.response.opt(STATUS))) ? batch.response.optJSONArray(RETURN_VALUE) : null;
+            return (returns != null && returns.length() == batch.members.size()) ? returns : null;
+        }
+
+        private void sampleRoundTrip(Transaction transaction) {
+            long roundTrip = System.nanoTime() - transaction.sendTime;
+            functionStatistics(transaction).getRoundTrip().record(roundTrip);
+            if (transaction.retries == 0) {
+                roundTripEstimator.sample(transaction.function, roundTrip, TimeUnit.NANOSECONDS);
+            }
+            else {
+                recoveredCount++;
+                logger.log(Level.INFO, "Response timeout recovered after {0} retries: {1}", new Object[] { transaction.retries, transaction });
+            }
+        }
+
+        private Transaction removeOldest(Object function) {
+            Iterator<Transaction> iterator = inFlight.values().iterator();
+            while (iterator.hasNext()) {
+                Transaction transaction = iterator.next();
+                if (transaction.function != null && transaction.function.equals(function)) {
+                    iterator.remove();
+                    return transaction;
+                }
+            }
+            return null;
+        }
+
+        private void notifyResponse(Transaction transaction) {
+            if (listener != null) {
+                listener.notifyResponse(transaction.message, transaction.response);
+            }
         }
 
         private volatile boolean running = true;
@@ -143,18 +466,31 @@ class Messenger {
     private class TransactionTask implements Runnable {
 
         /**
-         * Sends transactions in queue and waits for response.
-         * Assigns response to transaction if received within MAXIMUM_RESPONSE_TIME.
-         * Assigns timeout object otherwise.
-         * Next transaction in queue is sent after previous is responded or timed out. 
+         * Sends transactions in queue as soon as the window allows.
+         * The next transaction is only taken from the queue when it can be sent,
+         * so a more urgent transaction queued in the meantime goes first.
+         * Transactions without response within their timeout are dropped from the window.
+         * The transporter is flushed once the window is full or the queue is empty, so the
+         * transactions sent in one go can leave in one write of a coalescing channel.
+         * In stop-and-wait mode the window is full after every transaction, nothing coalesces.
          */
         @Override
         public void run() {
             try {
+                boolean unflushed = false;
                 while (running) {
-                    Transaction transaction = transactions.take();
-                    if (transaction.message != null) {
-                        sendAndWait(transaction);
+                    awaitWindow();
+                    Transaction transaction = transactions.poll(pollTimeout(), TimeUnit.NANOSECONDS);
+                    if (transaction != null && ! transaction.isEmpty() && ! transaction.abandon()) {
+                        transmit(batch(transaction));
+                        unflushed = true;
+                    }
+                    if (unflushed && (transactions.size() == 0 || isWindowFull())) {
+                        transporter.flush();
+                        unflushed = false;
+                    }
+                    synchronized (inFlight) {
+                        expireTransactions();
                     }
                 }
             }
@@ -166,81 +502,398 @@ class Messenger {
 
         void stop() {
             running = false;
-            transactions.add(new Transaction(null)); // deblock if waiting for transaction
+            transactions.add(new Transaction((JSONObject) null, Priority.INTERACTIVE_WRITE), Priority.INTERACTIVE_WRITE); // deblock if waiting for transaction
+            synchronized (inFlight) {
+                inFlight.notifyAll();
+            }
         }
 
-        private void sendAndWait(Transaction transaction) {
-            logger.log(Level.FINEST, ">> {0}", transaction.message);
-            transportAndWait(transaction);
-            if (transaction.response != null) {
-                outstanding.transaction = null;
-                try {
-                    notifyResponse(transaction);
-                }
-                catch (RuntimeException ex) {
-                    logger.log(Level.WARNING, "notifyResponse", ex);
+        private void awaitWindow() throws InterruptedException {
+            synchronized (inFlight) {
+                while (running && inFlight.size() >= currentWindowSize()) {
+                    long waitNanos = nextDeadline() - System.nanoTime();
+                    if (waitNanos > 0) {
+                        TimeUnit.NANOSECONDS.timedWait(inFlight, waitNanos);
+                    }
+                    expireTransactions();
                 }
             }
-            else {
-                logger.log(
-                    Level.WARNING,
-                    "Response timeout\nmessage = {0}\ntimeout = {1} ms",
-                    new Object[] { transaction.message, MAXIMUM_RESPONSE_TIME });
+        }
+
+        /**
+         * @return nanoseconds until the first transaction in flight expires,
+         * MAXIMUM_RESPONSE_TIME if none is in flight
+         */
+        private long pollTimeout() {
+            synchronized (inFlight) {
+                if (inFlight.isEmpty()) {
+                    return TimeUnit.MILLISECONDS.toNanos(MAXIMUM_RESPONSE_TIME);
+                }
+                return Math.max(0, nextDeadline() - System.nanoTime());
             }
         }
-        
-        private void transportAndWait(Transaction transaction) {
-            try {
-                synchronized (outstanding) {
-                    outstanding.transaction = transaction;
-                    transporter.send(transaction.message);
-                    outstanding.wait(MAXIMUM_RESPONSE_TIME);
+
+        /**
+         * @return batch of transaction and the batchable transactions queued after it,
+         * transaction itself if there are none
+         */
+        private Transaction batch(Transaction transaction) {
+            if (! batching || batchesRejected || ! transaction.isBatchable()) {
+                return transaction;
+            }
+            List<Transaction> members = new ArrayList<>();
+            members.add(transaction);
+            while (members.size() < MAXIMUM_BATCH_SIZE) {
+                Transaction next = transactions.poll(Transaction::isBatchable);
+                if (next == null) {
+                    break;
+                }
+                if (! next.abandon()) {
+                    members.add(next);
                 }
             }
-            catch (InterruptedException ex) {
-                logger.log(Level.WARNING, "sendAndWait", ex);
+            return (members.size() > 1) ? new Transaction(members) : transaction;
+        }
+
+        /**
+         * The transaction is in flight before it is sent, so its response can not be missed.
+         */
+        private void transmit(Transaction transaction) {
+            if (! transaction.expectsResponse()) {
+                fire(transaction);
+                return;
+            }
+            synchronized (inFlight) {
+                transaction.id = nextId();
+                transaction.sendTime = System.nanoTime();
+                transaction.timeout = roundTripEstimator.getTimeout(transaction.function, TimeUnit.NANOSECONDS);
+                transaction.deadline = transaction.sendTime + transaction.timeout;
+                inFlight.put(transaction.id, transaction);
+            }
+            recordSent(transaction);
+            if (transaction.members != null) {
+                transaction.members.forEach(this::recordSent);
+            }
+            logger.log(Level.FINEST, ">> {0}", transaction);
+            if (transaction.request != null) {
+                transporter.send(transaction.request, transaction.id);
+            }
+            else if (transaction.call != null) {
+                transporter.send(transaction.call, transaction.id);
+            }
+            else {
+                transporter.send(transaction.message, transaction.id);
             }
         }
-        
-        private void notifyResponse(Transaction transaction) {
-            if (listener != null) {
-                listener.notifyResponse(transaction.message, transaction.response);
+
+        /**
+         * A fire message is not answered, so it takes no place in the window.
+         */
+        private void fire(Transaction transaction) {
+            transaction.sendTime = System.nanoTime();
+            recordSent(transaction);
+            logger.log(Level.FINEST, ">> {0}", transaction);
+            transporter.send(transaction.message);
+            transaction.complete();
+        }
+
+        /**
+         * Nothing is sent while a batch is waiting for its response until the ECU
+         * has shown to handle batches, so rejected batch calls can be sent again in order.
+         */
+        private int currentWindowSize() {
+            if (! correlating || ! batchesAccepted && inFlight.values().stream().anyMatch(transaction -> transaction.members != null)) {
+                return 1;
             }
+            return windowSize;
         }
 
-        private volatile boolean running = true;
+        private boolean isWindowFull() {
+            synchronized (inFlight) {
+                return inFlight.size() >= currentWindowSize();
+            }
+        }
 
-    }
+        private void recordSent(Transaction transaction) {
+            functionStatistics(transaction).sent(transaction.sendTime - transaction.queueTime);
+        }
 
+        private int nextId() {
+            do {
+                lastId = (lastId + 1) & MAXIMUM_ID;
+            } while (inFlight.containsKey(lastId));
+            return lastId;
+        }
+
+        private volatile boolean running = true;
+        private int lastId = MAXIMUM_ID;
 
+    }
+    
+    
+    /**
+     * Removes the transactions of which the response time has passed.
+     * Timed out reads are queued again while they have retries left.
+     * Must be called while synchronized on inFlight.
+     */
+    private void expireTransactions() {
+        long now = System.nanoTime();
+        Iterator<Transaction> iterator = inFlight.values().iterator();
+        while (iterator.hasNext()) {
+            Transaction transaction = iterator.next();
+            if (transaction.deadline - now <= 0) {
+                iterator.remove();
+                timeoutCount++;
+                roundTripEstimator.backOff(transaction.function);
+                if (transaction.members != null) {
+                    functionStatistics(transaction).timedOut();
+                    transaction.members.forEach(member -> timeout(member, transaction.timeout));
+                }
+                else {
+                    timeout(transaction, transaction.timeout);
+                }
+            }
+        }
+    }
+    
+    
+    private void timeout(Transaction transaction, long timeout) {
+        functionStatistics(transaction).timedOut();
+        if (transaction.isRetryable() && transaction.retries < MAXIMUM_RETRIES) {
+            transaction.retries++;
+            transaction.queueTime = System.nanoTime();
+            logger.log(Level.FINE, "Response timeout, retry {0}: {1}", new Object[] { transaction.retries, transaction });
+            Transaction queued = transactions.addRead(transaction, transaction.request, transaction.priority);
+            if (queued != transaction) {
+                queued.inherit(transaction);
+            }
+        }
+        else {
+            logger.log(
+                Level.WARNING,
+                "Response timeout\nmessage = {0}\ntimeout = {1} ms",
+                new Object[] { transaction, TimeUnit.NANOSECONDS.toMillis(timeout) });
+            transaction.fail(new TimeoutException("No response to " + transaction));
+        }
+    }
+    
+    
+    private FunctionStatistics functionStatistics(Transaction transaction) {
+        return statistics.function((transaction.function != null) ? transaction.function : ANONYMOUS);
+    }
+    
+    
+    /**
+     * Must be called while synchronized on inFlight.
+     * @return earliest deadline of the transactions in flight
+     */
+    private long nextDeadline() {
+        Iterator<Transaction> iterator = inFlight.values().iterator();
+        long deadline = iterator.next().deadline;
+        while (iterator.hasNext()) {
+            long next = iterator.next().deadline;
+            if (next - deadline < 0) {
+                deadline = next;
+            }
+        }
+        return deadline;
+    }
+    
+    
     private class Transaction {
         
-        Transaction(JSONObject message) {
+        Transaction(JSONObject message, Priority priority) {
             this.message = message;
+            this.request = null;
+            this.call = null;
+            this.function = (message != null) ? message.optString(FUNCTION, null) : null;
+            this.priority = priority;
+            this.members = null;
+        }
+        
+        Transaction(EncodedRequest request, Priority priority) {
+            this.message = request.getMessage();
+            this.request = request;
+            this.call = null;
+            this.function = request.getFunction();
+            this.priority = priority;
+            this.members = null;
+        }
+        
+        Transaction(Call call, Priority priority) {
+            this.message = null;
+            this.request = null;
+            this.call = call;
+            this.function = call.getFunction();
+            this.priority = priority;
+            this.members = null;
+        }
+        
+        Transaction(List<Transaction> members) {
+            this.message = batchMessage(members);
+            this.request = null;
+            this.call = null;
+            this.function = BATCH;
+            this.priority = members.get(0).priority;
+            this.members = members;
         }
         
-        JSONObject message;
+        boolean isEmpty() {
+            return message == null && call == null;
+        }
+        
+        boolean expectsResponse() {
+            return message == null || ! FIRE.equals(message.opt(DIRECTION));
+        }
+        
+        /**
+         * Only reads may be sent again, their responses do not depend on how often they are sent.
+         */
+        boolean isRetryable() {
+            return request != null && request.isRead();
+        }
+        
+        /**
+         * Polls keep their own frames, so their returns can be decoded directly.
+         * @return true if this transaction may be sent in a batch
+         */
+        boolean isBatchable() {
+            return message != null && call == null && members == null && priority != Priority.POLL && CALL.equals(message.opt(DIRECTION));
+        }
+        
+        /**
+         * Takes over the futures of a transaction that will not be sent.
+         */
+        void inherit(Transaction transaction) {
+            List<CompletableFuture<JSONObject>> inherited;
+            synchronized (transaction) {
+                inherited = new ArrayList<>(transaction.futures);
+                transaction.futures.clear();
+            }
+            inherited.forEach(this::addFuture);
+        }
+        
+        /**
+         * A transaction is abandoned when all its futures are done before it is sent,
+         * for instance because their deadlines passed. Its futures added later are cancelled.
+         * @return true if the transaction is abandoned
+         */
+        synchronized boolean abandon() {
+            if (futures.isEmpty() || ! futures.stream().allMatch(CompletableFuture::isDone)) {
+                return false;
+            }
+            logger.log(Level.FINE, "Abandoned {0}", this);
+            fail(new CancellationException());
+            return true;
+        }
+        
+        synchronized void complete() {
+            settled = true;
+            futures.forEach(this::settle);
+        }
+        
+        synchronized void fail(Throwable failure) {
+            this.failure = failure;
+            complete();
+            if (members != null) {
+                members.forEach(member -> member.fail(failure));
+            }
+        }
+        
+        private synchronized void addFuture(CompletableFuture<JSONObject> future) {
+            if (settled) {
+                settle(future);
+            }
+            else {
+                futures.add(future);
+            }
+        }
+        
+        private void settle(CompletableFuture<JSONObject> future) {
+            if (failure != null) {
+                future.completeExceptionally(failure);
+            }
+            else {
+                future.complete(response);
+            }
+        }
+        
+        @Override
+        public String toString() {
+            return ID + ' ' + id + ": " + ((call != null) ? call.toString() : String.valueOf(message));
+        }
+        
+        final JSONObject message;
+        final EncodedRequest request;
+        final Call call;
+        final String function;
+        final Priority priority;
+        final List<Transaction> members;
+        int id = NO_ID;
+        int retries;
+        long queueTime = System.nanoTime();
+        long sendTime;
+        long timeout;
+        long deadline;
         JSONObject response = null;
+        final CompletableFuture<JSONObject> future = new CompletableFuture<>();
+        private final List<CompletableFuture<JSONObject>> futures = new ArrayList<>(Collections.singleton(future));
+        private boolean settled;
+        private Throwable failure;
     }
     
     
-    private class Outstanding {
-        Transaction transaction = null;
+    private static JSONObject batchMessage(List<Transaction> members) {
+        try {
+            JSONArray calls = new JSONArray();
+            members.forEach(member -> calls.put(member.message));
+            JSONObject parameters = new JSONObject();
+            parameters.put(CALLS, calls);
+            JSONObject message = new JSONObject();
+            message.put(DIRECTION, CALL);
+            message.put(FUNCTION, BATCH);
+            message.put(PARAMETERS, parameters);
+            return message;
+        }
+        catch (JSONException ex) {
+            throw new IllegalStateException(ex);
+        }
     }
     
     
     private final Transporter transporter;
-
+    
     private Listener listener = null;
     
     private final TransactionTask transactionTask = new TransactionTask();
     private final ReceiveTask receiveTask = new ReceiveTask();
-    private final BlockingQueue<Transaction> transactions = new LinkedBlockingQueue<>();
+    private final TransactionQueue<Transaction> transactions = new TransactionQueue<>(MAXIMUM_QUEUE_TIME, TimeUnit.MILLISECONDS);
+    
+    /**
+     * Transactions waiting for their response by Id, oldest first.
+     */
+    private final Map<Integer, Transaction> inFlight = new LinkedHashMap<>();
+    private int windowSize = DEFAULT_WINDOW_SIZE;
+    private volatile boolean correlating = false;
+    private volatile boolean batching = true;
+    private volatile boolean batchesAccepted = false;
+    private volatile boolean batchesRejected = false;
+    private final RoundTripEstimator roundTripEstimator = new RoundTripEstimator(INITIAL_RESPONSE_TIME, MINIMUM_RESPONSE_TIME, MAXIMUM_RESPONSE_TIME, TimeUnit.MILLISECONDS);
+    private long timeoutCount;
+    private long recoveredCount;
+    private final TransactionStatistics statistics = new TransactionStatistics();
     
-    private final Outstanding outstanding = new Outstanding();
-
     private static final Logger logger = Logger.getLogger(Messenger.class.getName());
     
+    private static final long INITIAL_RESPONSE_TIME = 1000; // ms
+    private static final long MINIMUM_RESPONSE_TIME = 20; // ms
     private static final long MAXIMUM_RESPONSE_TIME = 5000; // ms
+    private static final int MAXIMUM_RETRIES = 2;
+    private static final int MAXIMUM_BATCH_SIZE = 16;
+    private static final long MAXIMUM_QUEUE_TIME = 500; // ms
+    private static final int DEFAULT_WINDOW_SIZE = 8;
+    private static final int MAXIMUM_ID = 0x7FFF;
+    private static final int NO_ID = -1;
+    private static final String ANONYMOUS = "";
 
 }
@@ -0,0 +1,26 @@
+/*
+** Copyright © Bart Kampers
+*/
+
+package randd.motormanagement.communication;
+
+
+/**
+ * Receives the tokens of the return value of one function and applies them to the model
+ * without building a JSON tree. Tokens are staged until the frame is complete,
+ * so an invalid frame, or a return that is not OK, leaves the model unchanged.
+ * The decoder runs on the thread that receives the frames, the model is updated
+ * on the thread that handles the responses.
+ */
+interface PayloadDecoder extends JsonTokenizer.Handler {
+
+    /**
+     * Called when the frame containing the return value is complete and its status is OK.
+     * Prepares for the next return value.
+     * @return update that applies the staged values to the model, null if there is nothing to apply.
+     * The update runs on another thread after this decoder may have staged the next return value,
+     * so it holds its own copy of the values.
+     */
+    Runnable commit();
+
+}
@@ -0,0 +1,36 @@
+/*
+** Copyright © Bart Kampers
+*/
+
+package randd.motormanagement.communication;
+
+
+/**
+ * Lanes of the transaction queue, most urgent first.
+ * Transactions in the same lane are sent in order, a transaction in a lane
+ * is sent before the transactions in the lanes below it unless one of
+ * those has waited too long, or is a write that was queued before it.
+ */
+public enum Priority {
+
+    /**
+     * Changes made by the user.
+     */
+    INTERACTIVE_WRITE,
+
+    /**
+     * Reads requested by the user.
+     */
+    INTERACTIVE_READ,
+
+    /**
+     * Flash transfers, reads and writes together so they stay in order.
+     */
+    BULK,
+
+    /**
+     * Background polling of measurements and table indices.
+     */
+    POLL
+
+}
@@ -0,0 +1,97 @@
+/*
+** Copyright © Bart Kampers
+*/
+
+package randd.motormanagement.communication;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+
+/**
+ * Counts events in a sliding time window divided in a fixed number of buckets,
+ * so counting never allocates and old events expire bucket by bucket.
+ */
+final class RateCounter {
+
+
+    RateCounter(long window, TimeUnit unit, int bucketCount) {
+        if (bucketCount <= 0 || unit.toNanos(window) < bucketCount) {
+            throw new IllegalArgumentException("Invalid window");
+        }
+        bucketNanos = unit.toNanos(window) / bucketCount;
+        counts = new long[bucketCount];
+        epochs = new long[bucketCount];
+        Arrays.fill(epochs, Long.MIN_VALUE);
+    }
+
+
+    void increment() {
+        increment(System.nanoTime());
+    }
+
+
+    void increment(long nanos) {
+        add(1, nanos);
+    }
+
+
+    /**
+     * Counts a number of events at once, for instance bytes.
+     */
+    void add(int count) {
+        add(count, System.nanoTime());
+    }
+
+
+    synchronized void add(int count, long nanos) {
+        long epoch = nanos / bucketNanos;
+        int index = bucketIndex(epoch);
+        if (epochs[index] != epoch) {
+            epochs[index] = epoch;
+            counts[index] = 0;
+        }
+        counts[index] += count;
+        total += count;
+    }
+
+
+    /**
+     * @return number of events counted in the window up to now
+     */
+    int getRate() {
+        return getRate(System.nanoTime());
+    }
+
+
+    synchronized int getRate(long nanos) {
+        long epoch = nanos / bucketNanos;
+        long rate = 0;
+        for (int i = 0; i < counts.length; ++i) {
+            if (epoch - counts.length < epochs[i] && epochs[i] <= epoch) {
+                rate += counts[i];
+            }
+        }
+        return (int) Math.min(rate, Integer.MAX_VALUE);
+    }
+
+
+    /**
+     * @return number of events counted since creation
+     */
+    synchronized long getTotal() {
+        return total;
+    }
+
+
+    private int bucketIndex(long epoch) {
+        return (int) Math.floorMod(epoch, (long) counts.length);
+    }
+
+
+    private final long bucketNanos;
+    private final long[] counts;
+    private final long[] epochs;
+    private long total;
+
+}
@@ -0,0 +1,310 @@
+/*
+** Copyright © Bart Kampers
+*/
+
+package randd.motormanagement.communication;
+
+import java.util.*;
+import java.util.concurrent.locks.*;
+import java.util.function.*;
+import java.util.logging.*;
+import org.json.*;
+
+
+/**
+ * Bounded queue of received objects between the channel and the messenger.
+ * What happens when a frame arrives while the queue is full depends on the
+ * overflow policy. Objects with an Id are never dropped, a transaction waits
+ * for them. Neither are the returns without Id that a transaction in flight
+ * still needs. Closing the queue releases waiting threads, take returns null
+ * when the queue is closed.
+ */
+class ReceiveQueue {
+
+
+    ReceiveQueue(int capacity, Transporter.OverflowPolicy policy) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive");
+        }
+        this.capacity = capacity;
+        this.policy = Objects.requireNonNull(policy);
+    }
+
+
+    /**
+     * @param awaitedReturns number of transactions in flight that wait for a return
+     * without Id of the given function
+     */
+    void setAwaitedReturns(ToIntFunction<String> awaitedReturns) {
+        this.awaitedReturns = Objects.requireNonNull(awaitedReturns);
+    }
+
+
+    /**
+     * Empties the queue and makes it accept objects again.
+     */
+    void open() {
+        lock.lock();
+        try {
+            objects.clear();
+            closed = false;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+
+    void close() {
+        lock.lock();
+        try {
+            closed = true;
+            notEmpty.signalAll();
+            notFull.signalAll();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * Adds object, blocks while the queue is full and the policy can not make room.
+     * Objects put in a closed queue are discarded.
+     * @param object
+     * @throws InterruptedException
+     */
+    void put(JSONObject object) throws InterruptedException {
+        lock.lock();
+        try {
+            while (! closed && objects.size() >= capacity && ! makeRoom(object)) {
+                blockedCount++;
+                notFull.await();
+            }
+            if (closed) {
+                return;
+            }
+            objects.add(object);
+            highWaterMark = Math.max(highWaterMark, objects.size());
+            notEmpty.signal();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * @return oldest object in queue, null if the queue is closed
+     * @throws InterruptedException
+     */
+    JSONObject take() throws InterruptedException {
+        lock.lock();
+        try {
+            while (! closed && objects.isEmpty()) {
+                notEmpty.await();
+            }
+            if (closed) {
+                return null;
+            }
+            notFull.signal();
+            return objects.remove();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+
+    int getDepth() {
+        lock.lock();
+        try {
+            return objects.size();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+
+    int getCapacity() {
+        return capacity;
+    }
+
+
+    Transporter.OverflowPolicy getPolicy() {
+        return policy;
+    }
+
+
+    int getHighWaterMark() {
+        lock.lock();
+        try {
+            return highWaterMark;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+
+    long getDroppedCount() {
+        lock.lock();
+        try {
+            return droppedCount;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * @return number of times a producer had to wait for room
+     */
+    long getBlockedCount() {
+        lock.lock();
+        try {
+            return blockedCount;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+
+    private boolean makeRoom(JSONObject incoming) {
+        switch (policy) {
+            case DROP_OLDEST_MEASUREMENTS:
+                return dropOldestMeasurement(incoming);
+            case LATEST_PER_FUNCTION:
+                return dropSuperseded(incoming);
+            default:
+                return false;
+        }
+    }
+
+
+    /**
+     * A measurement return is only dropped if enough returns of its function remain,
+     * the incoming object included, for the transactions in flight that wait for one.
+     */
+    private boolean dropOldestMeasurement(JSONObject incoming) {
+        Iterator<JSONObject> iterator = objects.iterator();
+        while (iterator.hasNext()) {
+            JSONObject object = iterator.next();
+            String function = object.optString(Messenger.FUNCTION);
+            if (isIdlessReturn(object) && MEASUREMENT_FUNCTIONS.contains(function) && returnCount(function, incoming) > awaitedReturns.applyAsInt(function)) {
+                drop(iterator, object);
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+    /**
+     * @return number of returns without Id of function in the queue and incoming
+     */
+    private int returnCount(String function, JSONObject incoming) {
+        int count = 0;
+        for (JSONObject object : objects) {
+            if (isIdlessReturn(object) && function.equals(object.optString(Messenger.FUNCTION))) {
+                count++;
+            }
+        }
+        if (isIdlessReturn(incoming) && function.equals(incoming.optString(Messenger.FUNCTION))) {
+            count++;
+        }
+        return count;
+    }
+
+
+    private static boolean isIdlessReturn(JSONObject object) {
+        return ! object.has(Messenger.ID) && Messenger.RETURN.equals(object.optString(Messenger.DIRECTION));
+    }
+
+
+    /**
+     * Removes every object followed by a newer object with the same supersession key,
+     * the incoming object included.
+     */
+    private boolean dropSuperseded(JSONObject incoming) {
+        Set<String> newer = new HashSet<>();
+        newer.add(supersessionKey(incoming));
+        boolean dropped = false;
+        Iterator<JSONObject> iterator = objects.descendingIterator();
+        while (iterator.hasNext()) {
+            JSONObject object = iterator.next();
+            String key = supersessionKey(object);
+            if (key != null && ! newer.add(key)) {
+                drop(iterator, object);
+                dropped = true;
+            }
+        }
+        return dropped;
+    }
+
+
+    private void drop(Iterator<JSONObject> iterator, JSONObject object) {
+        iterator.remove();
+        droppedCount++;
+        LOGGER.log(Level.FINE, "Dropped {0}", object);
+    }
+
+
+    /**
+     * Only notifications and returns of reads that no transaction can be identified for
+     * may be superseded. Returns of writes and batches are never superseded, even without Id.
+     * @return key identifying direction, function and table or measurement,
+     * null for objects that must not be dropped
+     */
+    private static String supersessionKey(JSONObject object) {
+        String function = object.optString(Messenger.FUNCTION, null);
+        if (function == null || object.has(Messenger.ID)) {
+            return null;
+        }
+        String direction = object.optString(Messenger.DIRECTION);
+        if (Messenger.RETURN.equals(direction) && ! EncodedRequest.isRead(function)) {
+            return null;
+        }
+        return direction + ':' + function + ':' + subject(object);
+    }
+
+
+    /**
+     * @return name of the table or measurement that object is about, empty if there is none
+     */
+    private static String subject(JSONObject object) {
+        JSONObject returnValue = object.optJSONObject(Messenger.RETURN_VALUE);
+        if (returnValue != null) {
+            for (String name : SUBJECT_NAMES) {
+                if (returnValue.has(name)) {
+                    return returnValue.optString(name);
+                }
+            }
+        }
+        return "";
+    }
+
+
+    private final int capacity;
+    private final Transporter.OverflowPolicy policy;
+
+    private final ArrayDeque<JSONObject> objects = new ArrayDeque<>();
+    private final Lock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private boolean closed;
+    private volatile ToIntFunction<String> awaitedReturns = function -> 0;
+
+    private int highWaterMark;
+    private long droppedCount;
+    private long blockedCount;
+
+    private static final String[] SUBJECT_NAMES = { "TableName", "MeasurementName" };
+    private static final Set<String> MEASUREMENT_FUNCTIONS = new HashSet<>(Arrays.asList("GetMeasurements", "GetTableActualValues"));
+
+    private static final Logger LOGGER = Logger.getLogger(ReceiveQueue.class.getName());
+
+}
@@ -7,12 +7,23 @@ package randd.motormanagement.communication;
 import randd.motormanagement.system.*;
 
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.logging.*;
 import java.util.stream.Collectors;
 import java.util.stream.StreamSupport;
 import org.json.*;
 
 
+/**
+ * Model of the ECU, kept up to date through a messenger.
+ * Requests and modifications return a future that completes with the model
+ * object involved, after the ECU's return is applied to it. The future fails
+ * with a CallException when the ECU does not return OK, and with a
+ * TimeoutException when no return came. Dependent actions run on the
+ * communication threads, use the async variants of CompletableFuture to block
+ * or to do lengthy work.
+ * @see #withDeadline(CompletableFuture, long, TimeUnit)
+ */
 public class RemoteSystem {
     
  
@@ -23,6 +34,26 @@ public class RemoteSystem {
     }
     
     
+    /**
+     * Failure of a call that the ECU returned with a status other than OK.
+     */
+    public static class CallException extends Exception {
+
+        CallException(String function, String status) {
+            super(function + ": " + status);
+            this.status = status;
+        }
+
+        public String getStatus() {
+            return status;
+        }
+
+        private final String status;
+
+        private static final long serialVersionUID = 1L;
+    }
+    
+    
     RemoteSystem(Messenger messenger) {
         if (messenger == null) {
             throw new IllegalArgumentException();
@@ -34,8 +65,68 @@ public class RemoteSystem {
 
     public RemoteSystem(Transporter transporter) {
         this(new Messenger(transporter));
+        transporter.addConnectionListener(new ConnectionHandler());
+        transporter.setPayloadDecoder(GET_MEASUREMENTS, new MeasurementsDecoder(names -> listeners.forEach(listener -> listener.measurementNames(names))));
+        transporter.setPayloadDecoder(GET_TABLE_FIELDS, new TableFieldsDecoder());
+        transporter.setPayloadDecoder(GET_TABLE_ACTUAL_VALUES, new TableActualValuesDecoder());
     }
 
+    /**
+     * @param size maximum number of calls waiting for their returns at the same time,
+     * used as soon as the ECU echoes call Ids
+     */
+    public void setTransactionWindow(int size) {
+        messenger.setWindowSize(size);
+    }
+    
+    /**
+     * Batching is on by default. Calls made one after another, for instance requests
+     * for the properties and fields of every table, then go to the ECU in one frame.
+     * @param enabled true to send calls that are queued together in one batch
+     */
+    public void setBatching(boolean enabled) {
+        messenger.setBatching(enabled);
+    }
+    
+    /**
+     * @param priority
+     * @param unit
+     * @return average time that calls of priority waited before they were sent
+     */
+    public long getAverageQueueTime(Priority priority, TimeUnit unit) {
+        return messenger.getAverageQueueTime(priority, unit);
+    }
+    
+    /**
+     * @param priority
+     * @param unit
+     * @return longest time that a call of priority waited before it was sent
+     */
+    public long getMaximumQueueTime(Priority priority, TimeUnit unit) {
+        return messenger.getMaximumQueueTime(priority, unit);
+    }
+    
+    /**
+     * @return number of calls of which the return timed out, including retries
+     */
+    public long getTimeoutCount() {
+        return messenger.getTimeoutCount();
+    }
+    
+    /**
+     * @return number of timed out reads that returned after a retry
+     */
+    public long getRecoveredTimeoutCount() {
+        return messenger.getRecoveredCount();
+    }
+    
+    /**
+     * @return latency histograms per function and throughput of the connection
+     */
+    public TransactionStatistics getStatistics() {
+        return messenger.getStatistics();
+    }
+    
     public void connect() throws bka.communication.ChannelException  {
         messenger.start();
     }
@@ -45,21 +136,44 @@ public class RemoteSystem {
         messenger.stop();
     }
     
-    public void startPolling(int pollInterval) {
+    public synchronized void startPolling(int pollInterval) {
         if (pollTimer == null) {
             PollTask pollTask = new PollTask();
             pollTimer = new Timer();
             pollTimer.schedule(pollTask, 0, pollInterval);
+            this.pollInterval = pollInterval;
         }
     }
     
-    public void stopPolling() {
+    public synchronized void stopPolling() {
+        pollingSuspended = false;
+        cancelPollTimer();
+    }
+    
+    private void cancelPollTimer() {
         if (pollTimer != null) {
             pollTimer.cancel();
             pollTimer = null;
         }
     }
     
+    /**
+     * Stops polling while the connection is down, index polls are kept.
+     */
+    private synchronized void suspendPolling() {
+        if (pollTimer != null) {
+            cancelPollTimer();
+            pollingSuspended = true;
+        }
+    }
+    
+    private synchronized void resumePolling() {
+        if (pollingSuspended) {
+            pollingSuspended = false;
+            startPolling(pollInterval);
+        }
+    }
+    
     public void startIndexPoll(Table table) {
         synchronized (tablesToPoll) {
             if (! tablesToPoll.contains(table)) {
@@ -74,78 +188,83 @@ public class RemoteSystem {
         }
     }
     
-    public void requestMeasurementNames() throws InterruptedException {
-        call(GET_MEASUREMENTS);
+    public CompletableFuture<Void> requestMeasurementNames() {
+        return result(call(GET_MEASUREMENTS), null);
     }
     
-    public void requestTableNames() throws InterruptedException {
-        call(GET_TABLE_NAMES);
+    public CompletableFuture<Void> requestTableNames() {
+        return result(call(GET_TABLE_NAMES), null);
     }
     
-    public void requestTableProperties(Table table) throws InterruptedException {
-        call(GET_TABLE_PROPERTIES, TABLE_NAME, table.getName());
+    public CompletableFuture<Table> requestTableProperties(Table table) {
+        return result(call(GET_TABLE_PROPERTIES, TABLE_NAME, table.getName()), table);
     }
     
-    public void requestTableFields(Table table) throws InterruptedException {
-        call(GET_TABLE_FIELDS, TABLE_NAME, table.getName());
+    public CompletableFuture<Table> requestTableFields(Table table) {
+        return result(call(GET_TABLE_FIELDS, TABLE_NAME, table.getName()), table);
     }
     
-    public void enableTable(Table table, boolean enabled) throws InterruptedException {
-        call(SET_TABLE_ENABLED, TABLE_NAME, table.getName(), ENABLED, enabled);
+    public CompletableFuture<Table> enableTable(Table table, boolean enabled) {
+        return result(call(SET_TABLE_ENABLED, TABLE_NAME, table.getName(), ENABLED, enabled), table);
     }
   
-    public void modifyTable(Table table, int column, int row, float value) throws InterruptedException {
-        call(SET_TABLE_FIELD, TABLE_NAME, table.getName(), COLUMN, column, ROW, row, VALUE, value);
+    public CompletableFuture<Table> modifyTable(Table table, int column, int row, float value) {
+        return result(messenger.send(new TableFieldCall(table.getName(), column, row, value)), table);
     }
     
-    public void requestEngine() throws InterruptedException {
-        call(GET_ENGINE_PROPERTIES);
+    public CompletableFuture<Engine> requestEngine() {
+        return result(call(GET_ENGINE_PROPERTIES), engine);
     }
     
-    public void modifyCylinderCount(int count) throws InterruptedException {
-        call(SET_CYLINDER_COUNT, CYLINDER_COUNT, count);
+    public CompletableFuture<Engine> modifyCylinderCount(int count) {
+        return result(call(SET_CYLINDER_COUNT, CYLINDER_COUNT, count), engine);
     }
     
-    public void modifyCogwheel(int cogTotal, int gapSize, int offset) throws InterruptedException {
-        call(SET_COGWHEEL_PROPERTIES, COG_TOTAL, cogTotal, GAP_SIZE, gapSize, OFFSET, offset);
+    public CompletableFuture<Engine> modifyCogwheel(int cogTotal, int gapSize, int offset) {
+        return result(call(SET_COGWHEEL_PROPERTIES, COG_TOTAL, cogTotal, GAP_SIZE, gapSize, OFFSET, offset), engine);
     }
 
-    public void requestMeasurementProperties(Measurement measurement) throws InterruptedException {
-        call(GET_MEASUREMENT_PROPERTIES, MEASUREMENT_NAME, measurement.getName());
+    public CompletableFuture<Measurement> requestMeasurementProperties(Measurement measurement) {
+        return result(call(GET_MEASUREMENT_PROPERTIES, MEASUREMENT_NAME, measurement.getName()), measurement);
     }
 
-    public void enableMeasurementSimulation(Measurement measurement, float simulationValue) throws InterruptedException {
-        call(SET_MEASUREMENT_SIMULATION, MEASUREMENT_NAME, measurement.getName(), SIMULATION_VALUE, simulationValue);
+    public CompletableFuture<Measurement> enableMeasurementSimulation(Measurement measurement, float simulationValue) {
+        return result(call(SET_MEASUREMENT_SIMULATION, MEASUREMENT_NAME, measurement.getName(), SIMULATION_VALUE, simulationValue), measurement);
     }
     
-    public void disableMeasurementSimulation(Measurement measurement) throws InterruptedException {
-        call(RESET_MEASUREMENT_SIMULATION, MEASUREMENT_NAME, measurement.getName());
+    public CompletableFuture<Measurement> disableMeasurementSimulation(Measurement measurement) {
+        return result(call(RESET_MEASUREMENT_SIMULATION, MEASUREMENT_NAME, measurement.getName()), measurement);
     }
     
-    public void requestFlash() throws InterruptedException {
-        call(GET_PERSISTENT_MEMORY_BYTES);
-        call(GET_PERSISTENT_ELEMENTS);
+    /**
+     * Flash is read with bulk priority, so it is read after preceding flash modifications.
+     */
+    public CompletableFuture<Flash> requestFlash() {
+        return result(
+            Arrays.asList(
+                messenger.send(requestCache.call(GET_PERSISTENT_MEMORY_BYTES), Priority.BULK),
+                messenger.send(requestCache.call(GET_PERSISTENT_ELEMENTS), Priority.BULK)),
+            flash);
     }
     
-    public void setProgrammerActivated(Table table, boolean activated) {
-        call(SET_PROGRAMMER_ACTIVATED, TABLE_NAME, table.getName(), ACTIVATED, activated);
+    public CompletableFuture<Table> setProgrammerActivated(Table table, boolean activated) {
+        return result(call(SET_PROGRAMMER_ACTIVATED, TABLE_NAME, table.getName(), ACTIVATED, activated), table);
     }
     
-    public void applyProgrammerValue(Table table) {
-        call(APPLY_PROGRAMMER_VALUE, TABLE_NAME, table.getName());
+    public CompletableFuture<Table> applyProgrammerValue(Table table) {
+        return result(call(APPLY_PROGRAMMER_VALUE, TABLE_NAME, table.getName()), table);
     }
 
-    public void modifyFlash(int reference, int[] values) throws InterruptedException {
+    public CompletableFuture<Flash> modifyFlash(int reference, int[] values) {
+        int[] valuesToSend = values.clone();
+        List<CompletableFuture<JSONObject>> responses = new ArrayList<>();
         int index = 0;
-        int total = values.length;
-        int referenceToSend = reference;
-        while (index < total) {
-            int count = Math.min(total - index, MAX_FLASH_SIZE_TO_SEND);
-            int[] valuesToSend = Arrays.copyOfRange(values, index, index + count);
-            call(SET_PERSISTENT_MEMORY_BYTES, REFERENCE, referenceToSend, VALUE, valuesToSend);
-            referenceToSend += count;
+        while (index < valuesToSend.length) {
+            int count = Math.min(valuesToSend.length - index, MAX_FLASH_SIZE_TO_SEND);
+            responses.add(messenger.send(new FlashCall(reference + index, valuesToSend, index, count), Priority.BULK));
             index += count;
         }
+        return result(responses, flash);
     }
     
     public Optional<Table> getCorrectionTable(Measurement measurement) {
@@ -195,9 +314,83 @@ public class RemoteSystem {
     }
 
 
-    private void call(String function, Object ... arguments) {
-        JSONObject message = callObject(function, arguments);
-        messenger.send(message);
+    /**
+     * Java 8 replacement for CompletableFuture.orTimeout.
+     * A call of which the future failed before it was sent, is not sent at all.
+     * @param <T> type of result
+     * @param future returned by this remote system
+     * @param timeout
+     * @param unit
+     * @return future, completed exceptionally with TimeoutException if it did not complete within timeout
+     */
+    public static <T> CompletableFuture<T> withDeadline(CompletableFuture<T> future, long timeout, TimeUnit unit) {
+        if (! future.isDone()) {
+            ScheduledFuture<?> expiry = DEADLINE_SCHEDULER.schedule(
+                () -> future.completeExceptionally(new TimeoutException("Deadline of " + timeout + ' ' + unit + " passed")),
+                timeout, unit);
+            future.whenComplete((result, failure) -> expiry.cancel(false));
+        }
+        return future;
+    }
+
+
+    private CompletableFuture<JSONObject> call(String function, Object ... arguments) {
+        if (arguments.length == 0) {
+            return messenger.send(requestCache.call(function));
+        }
+        else if (arguments.length == 2 && EncodedRequest.isRead(function)) {
+            return messenger.send(requestCache.call(function, arguments[0].toString(), arguments[1]));
+        }
+        else {
+            return messenger.send(callObject(function, arguments));
+        }
+    }
+
+
+    /**
+     * The result fails if the ECU did not return OK. When the result fails first,
+     * for instance by its deadline, the response is no longer waited for.
+     * @return future that completes with model after the response is applied to it
+     */
+    private static <T> CompletableFuture<T> result(CompletableFuture<JSONObject> response, T model) {
+        return result(Collections.singletonList(response), model);
+    }
+
+
+    private static <T> CompletableFuture<T> result(List<CompletableFuture<JSONObject>> responses, T model) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        CompletableFuture.allOf(responses.toArray(new CompletableFuture<?>[responses.size()])).whenComplete((done, failure) -> {
+            if (failure != null) {
+                result.completeExceptionally((failure instanceof CompletionException) ? failure.getCause() : failure);
+                return;
+            }
+            for (CompletableFuture<JSONObject> response : responses) {
+                JSONObject message = response.join();
+                String status = (message != null) ? message.optString(Messenger.STATUS, Messenger.OK) : Messenger.OK;
+                if (! Messenger.OK.equals(status)) {
+                    result.completeExceptionally(new CallException(message.optString(Messenger.FUNCTION), status));
+                    return;
+                }
+            }
+            result.complete(model);
+        });
+        result.whenComplete((value, failure) -> {
+            if (failure != null) {
+                responses.forEach(response -> response.cancel(false));
+            }
+        });
+        return result;
+    }
+
+
+    private static ScheduledExecutorService createDeadlineScheduler() {
+        ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "RemoteSystem deadlines");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.setRemoveOnCancelPolicy(true);
+        return scheduler;
     }
 
 
@@ -219,7 +412,14 @@ public class RemoteSystem {
     }
     
     
-    private void updateMeasurements(JSONObject measurementsObject)throws JSONException {
+    /**
+     * @return true if the return value was left out because a PayloadDecoder applied it
+     */
+    private static boolean isDecoded(JSONObject response) {
+        return ! response.has(Messenger.RETURN_VALUE);
+    }
+    
+    private void updateMeasurements(JSONObject measurementsObject) throws JSONException {
         listeners.forEach(listener -> listener.measurementNames(keySet(measurementsObject)));
         Iterator names = measurementsObject.keys();
         while (names.hasNext()) {
@@ -350,51 +550,70 @@ public class RemoteSystem {
     }
     
     
+    /**
+     * Keeps the session over a lost connection. Polling and index polls continue where
+     * they were when the connection is restored, the model keeps its state meanwhile.
+     */
+    private class ConnectionHandler implements bka.communication.ConnectionListener {
+
+        @Override
+        public void connectionLost(Exception cause) {
+            suspendPolling();
+            messenger.abortOutstanding();
+        }
+
+        @Override
+        public void connectionRestored() {
+            resumePolling();
+        }
+
+    }
+    
+    
+    /**
+     * Sends cached requests, so polling encodes nothing once every request has been sent.
+     */
     private class PollTask extends TimerTask {
         
         @Override
         public void run() {
-            message = nextMessage();
-            if (message != null) {
-                LOGGER.log(Level.FINEST, ">> {0}", message);
-                messenger.send(message);
-            }
+            request = nextRequest();
+            LOGGER.log(Level.FINEST, ">> {0}", request);
+            messenger.send(request, Priority.POLL);
         }
         
-        private JSONObject nextMessage()  {
-            if (message != null && IS_ENGINE_RUNNING.equals(message.optString(Messenger.FUNCTION))) {
-                return callObject(GET_MEASUREMENTS);
+        private EncodedRequest nextRequest()  {
+            if (request != null && IS_ENGINE_RUNNING.equals(request.getFunction())) {
+                return requestCache.call(GET_MEASUREMENTS);
             }
             else {
-                JSONObject tableMessage = nextTableMessage();
-                if (tableMessage != null) {
-                    return tableMessage;
+                EncodedRequest tableRequest = nextTableRequest();
+                if (tableRequest != null) {
+                    return tableRequest;
                 }
                 else {
-                    return callObject(IS_ENGINE_RUNNING);
+                    return requestCache.call(IS_ENGINE_RUNNING);
                 }
             }
         }
 
-        private JSONObject nextTableMessage() {
-            JSONObject pollMessage = null;
-            List<Table> tables;
+        private EncodedRequest nextTableRequest() {
+            Table table = null;
             synchronized (tablesToPoll) {
-                tables = new ArrayList<>(tablesToPoll);
+                if (tableIndex < tablesToPoll.size()) {
+                    table = tablesToPoll.get(tableIndex);
+                }
             }
-            if (tableIndex < tables.size()) {
-                Table table = tables.get(tableIndex);
-                pollMessage = callObject(GET_TABLE_ACTUAL_VALUES, TABLE_NAME, table.getName());
+            if (table != null) {
                 tableIndex++;
+                return requestCache.call(GET_TABLE_ACTUAL_VALUES, TABLE_NAME, table.getName());
             }
-            else {
-                tableIndex = 0;
-            }
-            return pollMessage;
+            tableIndex = 0;
+            return null;
         }
         
         private int tableIndex;
-        private JSONObject message;
+        private EncodedRequest request;
     }
 
 
@@ -423,7 +642,9 @@ public class RemoteSystem {
             try {
                 switch (response.getString(Messenger.FUNCTION)) {
                     case GET_MEASUREMENTS:
-                        updateMeasurements(response.getJSONObject(Messenger.RETURN_VALUE));
+                        if (! isDecoded(response)) {
+                            updateMeasurements(response.getJSONObject(Messenger.RETURN_VALUE));
+                        }
                         break;
                     case GET_MEASUREMENT_PROPERTIES:
                         updateMeasurementProperties(response.getJSONObject(Messenger.RETURN_VALUE));
@@ -432,10 +653,14 @@ public class RemoteSystem {
                         updateTableProperties(response.getJSONObject(Messenger.RETURN_VALUE));
                         break;
                     case GET_TABLE_ACTUAL_VALUES:
-                        updateTableActualValues(response.getJSONObject(Messenger.RETURN_VALUE));
+                        if (! isDecoded(response)) {
+                            updateTableActualValues(response.getJSONObject(Messenger.RETURN_VALUE));
+                        }
                         break;
                     case GET_TABLE_FIELDS:
-                        updateTableFields(response.getJSONObject(Messenger.RETURN_VALUE));
+                        if (! isDecoded(response)) {
+                            updateTableFields(response.getJSONObject(Messenger.RETURN_VALUE));
+                        }
                         break;
                     case SET_TABLE_FIELD:
                         updateTableField(response.getJSONObject(Messenger.RETURN_VALUE));
@@ -517,13 +742,98 @@ public class RemoteSystem {
     }
 
     
+    private static class TableFieldCall implements Call {
+
+        TableFieldCall(String tableName, int column, int row, float value) {
+            this.tableName = tableName;
+            this.column = column;
+            this.row = row;
+            this.value = value;
+        }
+
+        @Override
+        public String getFunction() {
+            return SET_TABLE_FIELD;
+        }
+
+        @Override
+        public void writeParameters(RequestWriter writer) {
+            writer.parameter(TABLE_NAME, tableName);
+            writer.parameter(COLUMN, column);
+            writer.parameter(ROW, row);
+            writer.parameter(VALUE, value);
+        }
+
+        @Override
+        public Object getTarget() {
+            return Arrays.asList(SET_TABLE_FIELD, tableName, column, row);
+        }
+
+        @Override
+        public String toString() {
+            return SET_TABLE_FIELD + ' ' + tableName + '[' + column + ", " + row + "] = " + value;
+        }
+
+        private final String tableName;
+        private final int column;
+        private final int row;
+        private final float value;
+    }
+    
+    
+    /**
+     * Shares the values array with the other calls of a modifyFlash, each call sends its own range.
+     */
+    private static class FlashCall implements Call {
+
+        FlashCall(int reference, int[] values, int offset, int count) {
+            this.reference = reference;
+            this.values = values;
+            this.offset = offset;
+            this.count = count;
+        }
+
+        @Override
+        public String getFunction() {
+            return SET_PERSISTENT_MEMORY_BYTES;
+        }
+
+        @Override
+        public void writeParameters(RequestWriter writer) {
+            writer.parameter(REFERENCE, reference);
+            writer.parameter(VALUE, values, offset, count);
+        }
+
+        /**
+         * Only a write of the same range replaces this one.
+         */
+        @Override
+        public Object getTarget() {
+            return Arrays.asList(SET_PERSISTENT_MEMORY_BYTES, reference, count);
+        }
+
+        @Override
+        public String toString() {
+            return SET_PERSISTENT_MEMORY_BYTES + ' ' + reference + ' ' + Arrays.toString(Arrays.copyOfRange(values, offset, offset + count));
+        }
+
+        private final int reference;
+        private final int[] values;
+        private final int offset;
+        private final int count;
+    }
+
+    
     private final Engine engine = new Engine();
     private final Flash flash = new Flash();
     
-    private final Collection<Table> tablesToPoll = new ArrayList<>();
+    private final List<Table> tablesToPoll = new ArrayList<>();
+    private final RequestCache requestCache = new RequestCache();
     private final Collection<Listener> listeners = new ArrayList<>();
 
     private Timer pollTimer;
+    private int pollInterval;
+    private boolean pollingSuspended;
 
     private final Messenger messenger;
         
@@ -578,6 +888,8 @@ public class RemoteSystem {
     private static final String CYLINDER_COUNT = "CylinderCount";
     
     private static final int MAX_FLASH_SIZE_TO_SEND = 0x10;
+
+    private static final ScheduledExecutorService DEADLINE_SCHEDULER = createDeadlineScheduler();
     
     private static final Logger LOGGER = Logger.getLogger(RemoteSystem.class.getName());
 
@@ -0,0 +1,84 @@
+/*
+** Copyright © Bart Kampers
+*/
+
+package randd.motormanagement.communication;
+
+import java.util.concurrent.*;
+import java.util.logging.*;
+import org.json.*;
+
+
+/**
+ * Encoded requests for calls without parameters and calls with one fixed parameter.
+ * Looking up a cached request allocates nothing.
+ */
+class RequestCache {
+
+
+    EncodedRequest call(String function) {
+        EncodedRequest request = calls.get(function);
+        if (request == null) {
+            request = new EncodedRequest(callObject(function, null, null));
+            EncodedRequest existing = calls.putIfAbsent(function, request);
+            if (existing != null) {
+                request = existing;
+            }
+        }
+        return request;
+    }
+
+
+    EncodedRequest call(String function, String parameterName, Object value) {
+        ConcurrentMap<String, ConcurrentMap<Object, EncodedRequest>> parameters = parameterizedCalls.get(function);
+        if (parameters == null) {
+            parameterizedCalls.putIfAbsent(function, new ConcurrentHashMap<>());
+            parameters = parameterizedCalls.get(function);
+        }
+        ConcurrentMap<Object, EncodedRequest> values = parameters.get(parameterName);
+        if (values == null) {
+            parameters.putIfAbsent(parameterName, new ConcurrentHashMap<>());
+            values = parameters.get(parameterName);
+        }
+        EncodedRequest request = values.get(value);
+        if (request == null) {
+            request = new EncodedRequest(callObject(function, parameterName, value));
+            EncodedRequest existing = values.putIfAbsent(value, request);
+            if (existing != null) {
+                request = existing;
+            }
+        }
+        return request;
+    }
+
+
+    void clear() {
+        calls.clear();
+        parameterizedCalls.clear();
+    }
+
+
+    private static JSONObject callObject(String function, String parameterName, Object value) {
+        JSONObject object = new JSONObject();
+        try {
+            JSONObject parameters = new JSONObject();
+            if (parameterName != null) {
+                parameters.put(parameterName, value);
+            }
+            object.put(Messenger.DIRECTION, Messenger.CALL);
+            object.put(Messenger.FUNCTION, function);
+            object.put(Messenger.PARAMETERS, parameters);
+        }
+        catch (JSONException ex) {
+            LOGGER.log(Level.SEVERE, Messenger.CALL, ex);
+        }
+        return object;
+    }
+
+
+    private final ConcurrentMap<String, EncodedRequest> calls = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, ConcurrentMap<String, ConcurrentMap<Object, EncodedRequest>>> parameterizedCalls = new ConcurrentHashMap<>();
+
+    private static final Logger LOGGER = Logger.getLogger(RequestCache.class.getName());
+
+}
@@ -0,0 +1,314 @@
+/*
+** Copyright © Bart Kampers
+*/
+
+package randd.motormanagement.communication;
+
+import java.util.*;
+
+
+/**
+ * Encodes calls in any framing without building JSONObjects or boxing parameter values.
+ * Parameters are written into buffers that are reused for every call, only the
+ * returned frame is allocated, because channels may hold on to sent frames.
+ * Not thread safe.
+ */
+final class RequestWriter {
+
+
+    /**
+     * @param call
+     * @param id of the transaction
+     * @param framing
+     * @return complete frame of call in framing
+     */
+    byte[] encode(Call call, int id, Framing framing) {
+        encoder = (framing == Framing.BINARY) ? binaryEncoder : jsonEncoder;
+        encoder.start(id, call.getFunction());
+        call.writeParameters(this);
+        return encoder.end();
+    }
+
+
+    void parameter(String name, String value) {
+        encoder.key(name);
+        encoder.string(value);
+    }
+
+
+    void parameter(String name, int value) {
+        encoder.key(name);
+        encoder.integer(value);
+    }
+
+
+    void parameter(String name, float value) {
+        encoder.key(name);
+        encoder.real(value);
+    }
+
+
+    void parameter(String name, boolean value) {
+        encoder.key(name);
+        encoder.bool(value);
+    }
+
+
+    /**
+     * Writes count values starting at offset as array.
+     */
+    void parameter(String name, int[] values, int offset, int count) {
+        encoder.key(name);
+        encoder.integerArray(values, offset, count);
+    }
+
+
+    private interface Encoder {
+        void start(int id, String function);
+        void key(String key);
+        void string(String value);
+        void integer(int value);
+        void real(float value);
+        void bool(boolean value);
+        void integerArray(int[] values, int offset, int count);
+        byte[] end();
+    }
+
+
+    private static class JsonEncoder implements Encoder {
+
+        @Override
+        public void start(int id, String function) {
+            size = 0;
+            ascii("{\"");
+            ascii(Messenger.ID);
+            ascii("\":");
+            integer(id);
+            ascii(",\"");
+            ascii(Messenger.DIRECTION);
+            ascii("\":\"");
+            ascii(Messenger.CALL);
+            ascii("\",\"");
+            ascii(Messenger.FUNCTION);
+            ascii("\":");
+            string(function);
+            ascii(",\"");
+            ascii(Messenger.PARAMETERS);
+            ascii("\":{");
+            first = true;
+        }
+
+        @Override
+        public void key(String key) {
+            if (! first) {
+                put(',');
+            }
+            first = false;
+            string(key);
+            put(':');
+        }
+
+        @Override
+        public void string(String value) {
+            put('"');
+            for (int i = 0; i < value.length(); ++i) {
+                character(value.charAt(i));
+            }
+            put('"');
+        }
+
+        @Override
+        public void integer(int value) {
+            if (value < 0) {
+                put('-');
+            }
+            int start = size;
+            do {
+                put((char) ('0' + Math.abs(value % 10)));
+                value /= 10;
+            } while (value != 0);
+            for (int low = start, high = size - 1; low < high; ++low, --high) {
+                byte swap = bytes[low];
+                bytes[low] = bytes[high];
+                bytes[high] = swap;
+            }
+        }
+
+        /**
+         * Integral values are written without fraction. NaN and infinity are not valid JSON,
+         * they are written as null.
+         */
+        @Override
+        public void real(float value) {
+            if (Float.isNaN(value) || Float.isInfinite(value)) {
+                ascii("null");
+            }
+            else if (value == (int) value) {
+                integer((int) value);
+            }
+            else {
+                ascii(Float.toString(value));
+            }
+        }
+
+        @Override
+        public void bool(boolean value) {
+            ascii((value) ? "true" : "false");
+        }
+
+        @Override
+        public void integerArray(int[] values, int offset, int count) {
+            put('[');
+            for (int i = offset; i < offset + count; ++i) {
+                if (i > offset) {
+                    put(',');
+                }
+                integer(values[i]);
+            }
+            put(']');
+        }
+
+        @Override
+        public byte[] end() {
+            ascii("}}");
+            put(Framing.TRANSMISSION_END);
+            return Arrays.copyOf(bytes, size);
+        }
+
+        private void character(char c) {
+            switch (c) {
+                case '"':
+                case '\\':
+                    put('\\');
+                    put(c);
+                    break;
+                case '\n':
+                    ascii("\\n");
+                    break;
+                case '\r':
+                    ascii("\\r");
+                    break;
+                case '\t':
+                    ascii("\\t");
+                    break;
+                default:
+                    if (c < ' ' || c >= 0x80) {
+                        unicodeEscape(c);
+                    }
+                    else {
+                        put(c);
+                    }
+            }
+        }
+
+        /**
+         * Non ASCII characters are escaped, so the frame is ASCII and never contains a transmission end.
+         */
+        private void unicodeEscape(char c) {
+            ascii("\\u");
+            for (int shift = 12; shift >= 0; shift -= 4) {
+                put(HEX_DIGITS.charAt((c >> shift) & 0xF));
+            }
+        }
+
+        private void ascii(String string) {
+            for (int i = 0; i < string.length(); ++i) {
+                put(string.charAt(i));
+            }
+        }
+
+        private void put(char c) {
+            if (size == bytes.length) {
+                bytes = Arrays.copyOf(bytes, size * 2);
+            }
+            bytes[size++] = (byte) c;
+        }
+
+        private byte[] bytes = new byte[INITIAL_CAPACITY];
+        private int size;
+        private boolean first;
+
+    }
+
+
+    /**
+     * The call object has 4 keys, the parameter count is filled in at the end.
+     */
+    private static class BinaryEncoder implements Encoder {
+
+        @Override
+        public void start(int id, String function) {
+            writer.clear();
+            writer.startObject(4);
+            writer.key(Messenger.ID);
+            writer.integer(id);
+            writer.key(Messenger.DIRECTION);
+            writer.string(Messenger.CALL);
+            writer.key(Messenger.FUNCTION);
+            writer.string(function);
+            writer.key(Messenger.PARAMETERS);
+            writer.startObject(0);
+            countIndex = writer.size() - 1;
+            count = 0;
+        }
+
+        @Override
+        public void key(String key) {
+            if (count == MAXIMUM_PARAMETER_COUNT) {
+                throw new IllegalStateException("Too many parameters");
+            }
+            count++;
+            writer.key(key);
+        }
+
+        @Override
+        public void string(String value) {
+            writer.string(value);
+        }
+
+        @Override
+        public void integer(int value) {
+            writer.integer(value);
+        }
+
+        @Override
+        public void real(float value) {
+            writer.real(value);
+        }
+
+        @Override
+        public void bool(boolean value) {
+            writer.bool(value);
+        }
+
+        @Override
+        public void integerArray(int[] values, int offset, int count) {
+            writer.integerArray(values, offset, count);
+        }
+
+        @Override
+        public byte[] end() {
+            writer.set(countIndex, (byte) count);
+            return writer.frame();
+        }
+
+        private final BinaryCodec.Writer writer = new BinaryCodec.Writer();
+        private int countIndex;
+        private int count;
+
+        /**
+         * Largest count that fits in the single varint byte reserved for it.
+         */
+        private static final int MAXIMUM_PARAMETER_COUNT = 0x7F;
+
+    }
+
+
+    private final Encoder jsonEncoder = new JsonEncoder();
+    private final Encoder binaryEncoder = new BinaryEncoder();
+    private Encoder encoder;
+
+    private static final int INITIAL_CAPACITY = 0x100;
+    private static final String HEX_DIGITS = "0123456789ABCDEF";
+
+}
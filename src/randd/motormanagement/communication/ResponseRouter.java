@@ -0,0 +1,217 @@
+/*
+** Copyright © Bart Kampers
+*/
+
+package randd.motormanagement.communication;
+
+import java.util.*;
+import java.util.function.*;
+
+
+/**
+ * Passes the tokens of a received frame to a handler building the message,
+ * except the return value of a function that has a PayloadDecoder. That value
+ * goes to the decoder and is left out of the message, so the messenger still
+ * matches the response to its call. Only a return value that follows the
+ * function name can be routed, any other is built into the message as usual.
+ * The decoded value only updates the model if the Status of the return is OK.
+ */
+class ResponseRouter implements JsonTokenizer.Handler {
+
+
+    /**
+     * @param builder handler building the message
+     * @param decoders payload decoders by function name, may be modified while routing
+     * @param updates receives the model update of a decoded return value before its message is built
+     */
+    ResponseRouter(JsonTokenizer.Handler builder, Map<String, PayloadDecoder> decoders, Consumer<Runnable> updates) {
+        this.builder = builder;
+        this.decoders = decoders;
+        this.updates = updates;
+    }
+
+
+    @Override
+    public void startObject() {
+        if (routing) {
+            payloadDepth++;
+            decoder.startObject();
+        }
+        else {
+            depth++;
+            builder.startObject();
+        }
+    }
+
+
+    @Override
+    public void endObject() {
+        if (routing) {
+            decoder.endObject();
+            endContainer();
+        }
+        else {
+            depth--;
+            if (depth == 0) {
+                endFrame();
+            }
+            builder.endObject();
+        }
+    }
+
+
+    @Override
+    public void startArray() {
+        if (routing) {
+            payloadDepth++;
+            decoder.startArray();
+        }
+        else {
+            depth++;
+            builder.startArray();
+        }
+    }
+
+
+    @Override
+    public void endArray() {
+        if (routing) {
+            decoder.endArray();
+            endContainer();
+        }
+        else {
+            depth--;
+            builder.endArray();
+        }
+    }
+
+
+    @Override
+    public void key(String key) {
+        if (routing) {
+            decoder.key(key);
+            return;
+        }
+        if (depth == 1) {
+            if (Messenger.RETURN_VALUE.equals(key) && function != null && decoder == null) {
+                decoder = decoders.get(function);
+                if (decoder != null) {
+                    routing = true;
+                    payloadDepth = 0;
+                    return;
+                }
+            }
+            topLevelKey = key;
+        }
+        builder.key(key);
+    }
+
+
+    @Override
+    public void value(Object value) {
+        if (routing) {
+            decoder.value(value);
+            endScalar();
+            return;
+        }
+        if (depth == 1 && Messenger.FUNCTION.equals(topLevelKey) && value instanceof String) {
+            function = (String) value;
+        }
+        else if (depth == 1 && Messenger.STATUS.equals(topLevelKey)) {
+            status = value;
+        }
+        builder.value(value);
+    }
+
+
+    @Override
+    public void integer(long value) {
+        if (routing) {
+            decoder.integer(value);
+            endScalar();
+        }
+        else {
+            builder.integer(value);
+        }
+    }
+
+
+    @Override
+    public void real(double value) {
+        if (routing) {
+            decoder.real(value);
+            endScalar();
+        }
+        else {
+            builder.real(value);
+        }
+    }
+
+
+    @Override
+    public void invalid(String reason) {
+        if (decoder != null) {
+            decoder.invalid(reason);
+        }
+        reset();
+        builder.invalid(reason);
+    }
+
+
+    private void endContainer() {
+        payloadDepth--;
+        if (payloadDepth == 0) {
+            routing = false;
+        }
+    }
+
+
+    private void endScalar() {
+        if (payloadDepth == 0) {
+            routing = false;
+        }
+    }
+
+
+    /**
+     * Commits before the message is built, so the model is updated before the messenger handles the response.
+     */
+    private void endFrame() {
+        if (decoder != null) {
+            if (Messenger.OK.equals(status)) {
+                Runnable update = decoder.commit();
+                if (update != null) {
+                    updates.accept(update);
+                }
+            }
+            else {
+                decoder.invalid("Status " + status);
+            }
+        }
+        reset();
+    }
+
+
+    private void reset() {
+        depth = 0;
+        topLevelKey = null;
+        function = null;
+        status = null;
+        decoder = null;
+        routing = false;
+    }
+
+
+    private final JsonTokenizer.Handler builder;
+    private final Map<String, PayloadDecoder> decoders;
+    private final Consumer<Runnable> updates;
+
+    private int depth;
+    private String topLevelKey;
+    private String function;
+    private Object status;
+    private PayloadDecoder decoder;
+    private boolean routing;
+    private int payloadDepth;
+
+}
@@ -0,0 +1,109 @@
+/*
+** Copyright © Bart Kampers
+*/
+
+package randd.motormanagement.communication;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+
+/**
+ * Smoothed round trip time and its variation per function, from which the
+ * response timeout of the function is derived as in TCP (RFC 6298).
+ * Until a function has a round trip sample its timeout is the initial timeout.
+ * Not thread safe.
+ */
+final class RoundTripEstimator {
+
+
+    /**
+     * @param initial timeout for functions without round trip samples
+     * @param minimum timeout
+     * @param maximum timeout
+     * @param unit
+     */
+    RoundTripEstimator(long initial, long minimum, long maximum, TimeUnit unit) {
+        initialNanos = unit.toNanos(initial);
+        minimumNanos = unit.toNanos(minimum);
+        maximumNanos = unit.toNanos(maximum);
+    }
+
+
+    /**
+     * @param function
+     * @param unit
+     * @return time to wait for the response to a call of function
+     */
+    long getTimeout(String function, TimeUnit unit) {
+        Estimate estimate = estimates.get(function);
+        return unit.convert((estimate != null) ? estimate.timeout : initialNanos, TimeUnit.NANOSECONDS);
+    }
+
+
+    /**
+     * @param function
+     * @param unit
+     * @return smoothed round trip time of function, 0 if there are no samples
+     */
+    long getRoundTripTime(String function, TimeUnit unit) {
+        Estimate estimate = estimates.get(function);
+        return unit.convert((estimate != null) ? estimate.smoothed : 0, TimeUnit.NANOSECONDS);
+    }
+
+
+    /**
+     * Only the round trip of a call that was sent once may be sampled, the
+     * response to a retry can not be told apart from a late response.
+     * @param function
+     * @param roundTrip
+     * @param unit
+     */
+    void sample(String function, long roundTrip, TimeUnit unit) {
+        long nanos = unit.toNanos(roundTrip);
+        Estimate estimate = estimates.get(function);
+        if (estimate == null) {
+            estimate = new Estimate();
+            estimate.smoothed = nanos;
+            estimate.variation = nanos / 2;
+            estimates.put(function, estimate);
+        }
+        else {
+            estimate.variation += (Math.abs(estimate.smoothed - nanos) - estimate.variation) / 4;
+            estimate.smoothed += (nanos - estimate.smoothed) / 8;
+        }
+        estimate.timeout = clamp(estimate.smoothed + 4 * estimate.variation);
+    }
+
+
+    /**
+     * Doubles the timeout of function after a call of it timed out,
+     * until the next sample.
+     * @param function
+     */
+    void backOff(String function) {
+        Estimate estimate = estimates.get(function);
+        if (estimate != null) {
+            estimate.timeout = clamp(2 * estimate.timeout);
+        }
+    }
+
+
+    private long clamp(long nanos) {
+        return Math.max(minimumNanos, Math.min(maximumNanos, nanos));
+    }
+
+
+    private static class Estimate {
+        long smoothed;
+        long variation;
+        long timeout;
+    }
+
+
+    private final long initialNanos;
+    private final long minimumNanos;
+    private final long maximumNanos;
+    private final Map<String, Estimate> estimates = new HashMap<>();
+
+}
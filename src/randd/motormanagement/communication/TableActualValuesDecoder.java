@@ -0,0 +1,149 @@
+/*
+** Copyright © Bart Kampers
+*/
+
+package randd.motormanagement.communication;
+
+import randd.motormanagement.system.*;
+
+
+/**
+ * Decodes the return value of GetTableActualValues into the indices and
+ * programmer state of a Table.
+ */
+class TableActualValuesDecoder implements PayloadDecoder {
+
+
+    @Override
+    public void startObject() {
+        depth++;
+    }
+
+
+    @Override
+    public void endObject() {
+        depth--;
+        if (depth == 0) {
+            complete = true;
+        }
+    }
+
+
+    @Override
+    public void startArray() {
+        depth++;
+    }
+
+
+    @Override
+    public void endArray() {
+        depth--;
+    }
+
+
+    @Override
+    public void key(String key) {
+        if (depth == 1) {
+            topLevelKey = key;
+        }
+    }
+
+
+    @Override
+    public void value(Object value) {
+        if (depth != 1) {
+            return;
+        }
+        if (TABLE_NAME.equals(topLevelKey) && value instanceof String) {
+            tableName = (String) value;
+        }
+        else if (PROGRAMMER_ACTIVATED.equals(topLevelKey) && value instanceof Boolean) {
+            programmerActivated = (Boolean) value;
+            hasProgrammerActivated = true;
+        }
+    }
+
+
+    @Override
+    public void integer(long value) {
+        if (depth != 1) {
+            return;
+        }
+        if (CURRENT_COLUMN.equals(topLevelKey)) {
+            column = (int) value;
+            hasColumn = true;
+        }
+        else if (CURRENT_ROW.equals(topLevelKey)) {
+            row = (int) value;
+            hasRow = true;
+        }
+    }
+
+
+    @Override
+    public void real(double value) {
+        integer((long) value);
+    }
+
+
+    @Override
+    public void invalid(String reason) {
+        clear();
+    }
+
+
+    @Override
+    public Runnable commit() {
+        Runnable update = null;
+        if (complete && tableName != null) {
+            String name = tableName;
+            Integer currentColumn = (hasColumn) ? column : null;
+            Integer currentRow = (hasRow) ? row : null;
+            Boolean activated = (hasProgrammerActivated) ? programmerActivated : null;
+            update = () -> {
+                Table table = Table.getInstance(name);
+                if (currentColumn != null) {
+                    table.setColumnIndex(currentColumn);
+                }
+                if (currentRow != null) {
+                    table.setRowIndex(currentRow);
+                }
+                if (activated != null) {
+                    table.setProgrammerActivated(activated);
+                }
+            };
+        }
+        clear();
+        return update;
+    }
+
+
+    private void clear() {
+        depth = 0;
+        topLevelKey = null;
+        tableName = null;
+        hasColumn = false;
+        hasRow = false;
+        hasProgrammerActivated = false;
+        complete = false;
+    }
+
+
+    private int depth;
+    private String topLevelKey;
+    private boolean complete;
+
+    private String tableName;
+    private int column;
+    private boolean hasColumn;
+    private int row;
+    private boolean hasRow;
+    private boolean programmerActivated;
+    private boolean hasProgrammerActivated;
+
+    private static final String TABLE_NAME = "TableName";
+    private static final String CURRENT_COLUMN = "CurrentColumn";
+    private static final String CURRENT_ROW = "CurrentRow";
+    private static final String PROGRAMMER_ACTIVATED = "ProgrammerActivated";
+
+}
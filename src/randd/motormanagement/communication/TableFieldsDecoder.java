@@ -0,0 +1,175 @@
+/*
+** Copyright © Bart Kampers
+*/
+
+package randd.motormanagement.communication;
+
+import java.util.*;
+import randd.motormanagement.system.*;
+
+
+/**
+ * Decodes the return value of GetTableFields into the fields of a Table.
+ * Fields are staged row by row in a primitive buffer that is reused for every table.
+ * Rows of unequal length are cut to the shortest row.
+ */
+class TableFieldsDecoder implements PayloadDecoder {
+
+
+    @Override
+    public void startObject() {
+        depth++;
+    }
+
+
+    @Override
+    public void endObject() {
+        depth--;
+        if (depth == 0) {
+            complete = true;
+        }
+    }
+
+
+    @Override
+    public void startArray() {
+        depth++;
+        if (depth == ROW_DEPTH && isInFields()) {
+            if (rowCount == rowStarts.length) {
+                rowStarts = Arrays.copyOf(rowStarts, rowCount * 2);
+            }
+            rowStarts[rowCount++] = valueCount;
+        }
+        else if (depth == ROW_DEPTH - 1 && isInFields()) {
+            fieldsReceived = true;
+        }
+    }
+
+
+    @Override
+    public void endArray() {
+        depth--;
+    }
+
+
+    @Override
+    public void key(String key) {
+        if (depth == 1) {
+            topLevelKey = key;
+        }
+    }
+
+
+    @Override
+    public void value(Object value) {
+        if (depth == 1 && TABLE_NAME.equals(topLevelKey) && value instanceof String) {
+            tableName = (String) value;
+        }
+    }
+
+
+    @Override
+    public void integer(long value) {
+        real(value);
+    }
+
+
+    @Override
+    public void real(double value) {
+        if (depth == ROW_DEPTH && isInFields()) {
+            if (valueCount == values.length) {
+                values = Arrays.copyOf(values, valueCount * 2);
+            }
+            values[valueCount++] = (float) value;
+        }
+    }
+
+
+    @Override
+    public void invalid(String reason) {
+        clear();
+    }
+
+
+    @Override
+    public Runnable commit() {
+        Runnable update = null;
+        if (complete && tableName != null && fieldsReceived) {
+            int columnCount = (rowCount > 0) ? Integer.MAX_VALUE : 0;
+            for (int row = 0; row < rowCount; ++row) {
+                columnCount = Math.min(columnCount, rowLength(row));
+            }
+            for (int row = 0; row < rowCount; ++row) {
+                if (rowStarts[row] != row * columnCount) {
+                    System.arraycopy(values, rowStarts[row], values, row * columnCount, columnCount);
+                }
+            }
+            update = new FieldsUpdate(tableName, columnCount, rowCount, Arrays.copyOf(values, columnCount * rowCount));
+        }
+        clear();
+        return update;
+    }
+
+
+    private boolean isInFields() {
+        return FIELDS.equals(topLevelKey);
+    }
+
+
+    private int rowLength(int row) {
+        int end = (row + 1 < rowCount) ? rowStarts[row + 1] : valueCount;
+        return end - rowStarts[row];
+    }
+
+
+    private void clear() {
+        depth = 0;
+        topLevelKey = null;
+        tableName = null;
+        fieldsReceived = false;
+        rowCount = 0;
+        valueCount = 0;
+        complete = false;
+    }
+
+
+    private static class FieldsUpdate implements Runnable {
+
+        FieldsUpdate(String tableName, int columnCount, int rowCount, float[] values) {
+            this.tableName = tableName;
+            this.columnCount = columnCount;
+            this.rowCount = rowCount;
+            this.values = values;
+        }
+
+        @Override
+        public void run() {
+            Table.getInstance(tableName).setFields(columnCount, rowCount, values);
+        }
+
+        private final String tableName;
+        private final int columnCount;
+        private final int rowCount;
+        private final float[] values;
+    }
+
+
+    private int depth;
+    private String topLevelKey;
+    private String tableName;
+    private boolean fieldsReceived;
+    private boolean complete;
+
+    private float[] values = new float[INITIAL_VALUE_CAPACITY];
+    private int valueCount;
+    private int[] rowStarts = new int[INITIAL_ROW_CAPACITY];
+    private int rowCount;
+
+    private static final String TABLE_NAME = "TableName";
+    private static final String FIELDS = "Fields";
+
+    private static final int ROW_DEPTH = 3;
+    private static final int INITIAL_VALUE_CAPACITY = 0x200;
+    private static final int INITIAL_ROW_CAPACITY = 0x20;
+
+}
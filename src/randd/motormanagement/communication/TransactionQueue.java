@@ -0,0 +1,467 @@
+/*
+** Copyright © Bart Kampers
+*/
+
+package randd.motormanagement.communication;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
+import java.util.function.*;
+
+
+/**
+ * Queue of transactions waiting to be sent that coalesces redundant transactions.
+ * A read is merged into an equal read that is still queued, unless a write was
+ * queued after that read. A write replaces a queued write to the same target in
+ * its place in the queue, so only the newest value is sent.
+ * Transactions are queued in lanes by priority. The most urgent lane is served
+ * first, but a transaction that has waited longer than the maximum wait is taken
+ * before any other, oldest first, so no lane starves.
+ * Writes keep their place in program order, whatever lane they are in: no read queued
+ * after a write is taken before it, nor a write to the same target. So a read returns
+ * what was written before it and writes to the same data arrive in the order they were
+ * made. Writes to different targets may overtake each other, so an interactive write
+ * does not wait for queued bulk writes. A transaction that may write anything is taken
+ * after all writes queued before it, and nothing queued after it is taken before it.
+ * @param <T> transaction type
+ */
+class TransactionQueue<T> {
+
+
+    /**
+     * @param maximumWait time after which a transaction is taken regardless of its priority
+     * @param unit
+     */
+    TransactionQueue(long maximumWait, TimeUnit unit) {
+        maximumWaitNanos = unit.toNanos(maximumWait);
+        for (int i = 0; i < Priority.values().length; ++i) {
+            lanes.add(new ArrayDeque<>());
+        }
+    }
+
+
+    /**
+     * Adds a transaction that neither merges nor replaces, it may write anything.
+     * So no queued read or write is merged or replaced by one added later.
+     * @param transaction
+     * @param priority
+     */
+    void add(T transaction, Priority priority) {
+        lock.lock();
+        try {
+            readSlots.clear();
+            writeSlots.clear();
+            enqueue(new Slot<>(transaction, null, priority, ++lastSequence, true));
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * Adds a read without side effects, unless an equal read is queued already.
+     * A merged read is moved up to priority if it was queued with a lower one.
+     * @param transaction
+     * @param key equal for reads that return the same
+     * @param priority
+     * @return transaction that will be sent for this read, the queued one if merged
+     */
+    T addRead(T transaction, Object key, Priority priority) {
+        lock.lock();
+        try {
+            Slot<T> queued = readSlots.get(key);
+            if (queued != null) {
+                mergedCount++;
+                promote(queued, priority);
+                return queued.transaction;
+            }
+            Slot<T> slot = new Slot<>(transaction, key, priority, ++lastSequence, false);
+            readSlots.put(key, slot);
+            enqueue(slot);
+            return transaction;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * Adds a write, replacing a queued write to the same target.
+     * A replaced write is moved up to priority if it was queued with a lower one.
+     * @param transaction
+     * @param key equal for writes to the same target
+     * @param priority
+     * @return replaced transaction, null if none was replaced
+     */
+    T addWrite(T transaction, Object key, Priority priority) {
+        lock.lock();
+        try {
+            readSlots.clear();
+            Slot<T> queued = writeSlots.get(key);
+            if (queued != null) {
+                supersededCount++;
+                T replaced = queued.transaction;
+                queued.transaction = transaction;
+                promote(queued, priority);
+                return replaced;
+            }
+            Slot<T> slot = new Slot<>(transaction, key, priority, ++lastSequence, true);
+            writeSlots.put(key, slot);
+            enqueue(slot);
+            return null;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * Puts a transaction that was taken from the queue back in front of its lane.
+     * It goes before all queued transactions in program order and may write anything.
+     * @param transaction
+     * @param priority
+     */
+    void addFirst(T transaction, Priority priority) {
+        lock.lock();
+        try {
+            readSlots.clear();
+            writeSlots.clear();
+            Slot<T> slot = new Slot<>(transaction, null, priority, --firstSequence, true);
+            lanes.get(priority.ordinal()).addFirst(slot);
+            addWriteSequence(slot);
+            size++;
+            notEmpty.signal();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * @param timeout
+     * @param unit
+     * @return next transaction to send, null if none was added within timeout
+     * @throws InterruptedException
+     */
+    T poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lock();
+        try {
+            while (size == 0) {
+                if (nanos <= 0) {
+                    return null;
+                }
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            long now = System.nanoTime();
+            return take(nextLane(now), now);
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * Does not wait.
+     * @param condition
+     * @return next transaction to send if it meets condition, null otherwise
+     */
+    T poll(Predicate<? super T> condition) {
+        lock.lock();
+        try {
+            if (size == 0) {
+                return null;
+            }
+            long now = System.nanoTime();
+            Deque<Slot<T>> lane = nextLane(now);
+            if (! condition.test(lane.peek().transaction)) {
+                return null;
+            }
+            return take(lane, now);
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * Removes all queued transactions.
+     * @return removed transactions
+     */
+    List<T> clear() {
+        lock.lock();
+        try {
+            List<T> removed = new ArrayList<>(size);
+            for (Deque<Slot<T>> lane : lanes) {
+                for (Slot<T> slot : lane) {
+                    removed.add(slot.transaction);
+                }
+                lane.clear();
+            }
+            readSlots.clear();
+            writeSlots.clear();
+            writeSequences.clear();
+            barrierSequences.clear();
+            targetSequences.clear();
+            size = 0;
+            return removed;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+
+    int size() {
+        lock.lock();
+        try {
+            return size;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * @return number of reads merged into a queued read
+     */
+    long getMergedCount() {
+        lock.lock();
+        try {
+            return mergedCount;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * @return number of writes replaced by a newer write
+     */
+    long getSupersededCount() {
+        lock.lock();
+        try {
+            return supersededCount;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * @param priority
+     * @return number of transactions taken from the lane of priority
+     */
+    long getSentCount(Priority priority) {
+        lock.lock();
+        try {
+            return sentCounts[priority.ordinal()];
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * @param priority
+     * @param unit
+     * @return average time that transactions taken from the lane of priority were queued
+     */
+    long getAverageWait(Priority priority, TimeUnit unit) {
+        lock.lock();
+        try {
+            int lane = priority.ordinal();
+            return (sentCounts[lane] > 0) ? unit.convert(totalWaits[lane] / sentCounts[lane], TimeUnit.NANOSECONDS) : 0;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * @param priority
+     * @param unit
+     * @return longest time that a transaction taken from the lane of priority was queued
+     */
+    long getMaximumWait(Priority priority, TimeUnit unit) {
+        lock.lock();
+        try {
+            return unit.convert(maximumWaits[priority.ordinal()], TimeUnit.NANOSECONDS);
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+
+    private T take(Deque<Slot<T>> lane, long now) {
+        Slot<T> slot = lane.remove();
+        size--;
+        if (slot.key != null) {
+            readSlots.remove(slot.key, slot);
+            writeSlots.remove(slot.key, slot);
+        }
+        if (slot.write) {
+            removeWriteSequence(slot);
+        }
+        int index = slot.priority.ordinal();
+        long wait = now - slot.queueTime;
+        sentCounts[index]++;
+        totalWaits[index] += wait;
+        maximumWaits[index] = Math.max(maximumWaits[index], wait);
+        return slot.transaction;
+    }
+
+
+    private void enqueue(Slot<T> slot) {
+        lanes.get(slot.priority.ordinal()).add(slot);
+        if (slot.write) {
+            addWriteSequence(slot);
+        }
+        size++;
+        notEmpty.signal();
+    }
+
+
+    private void addWriteSequence(Slot<T> slot) {
+        writeSequences.add(slot.sequence);
+        if (slot.key == null) {
+            barrierSequences.add(slot.sequence);
+        }
+        else {
+            targetSequences.computeIfAbsent(slot.key, key -> new TreeSet<>()).add(slot.sequence);
+        }
+    }
+
+
+    private void removeWriteSequence(Slot<T> slot) {
+        writeSequences.remove(slot.sequence);
+        if (slot.key == null) {
+            barrierSequences.remove(slot.sequence);
+        }
+        else {
+            NavigableSet<Long> sequences = targetSequences.get(slot.key);
+            sequences.remove(slot.sequence);
+            if (sequences.isEmpty()) {
+                targetSequences.remove(slot.key);
+            }
+        }
+    }
+
+
+    /**
+     * A read waits for all writes queued before it, a write to a target for the writes
+     * to that target and for the transactions that may write anything queued before it,
+     * a transaction that may write anything for all writes queued before it.
+     * @return true if no queued write must be taken before slot
+     */
+    private boolean isInProgramOrder(Slot<T> slot) {
+        if (! slot.write || slot.key == null) {
+            return isFirst(writeSequences, slot);
+        }
+        return isFirst(barrierSequences, slot) && isFirst(targetSequences.get(slot.key), slot);
+    }
+
+
+    private static boolean isFirst(NavigableSet<Long> sequences, Slot<?> slot) {
+        return sequences == null || sequences.isEmpty() || sequences.first() >= slot.sequence;
+    }
+
+
+    /**
+     * Moves a queued slot to the lane of priority if that is more urgent.
+     * It keeps its queue time, so it will not wait longer than the maximum wait,
+     * and its place in program order, so it goes before the slots queued after it.
+     */
+    private void promote(Slot<T> slot, Priority priority) {
+        if (priority.compareTo(slot.priority) < 0) {
+            lanes.get(slot.priority.ordinal()).removeFirstOccurrence(slot);
+            slot.priority = priority;
+            Deque<Slot<T>> lane = lanes.get(priority.ordinal());
+            Deque<Slot<T>> later = new ArrayDeque<>();
+            while (! lane.isEmpty() && lane.peekLast().sequence > slot.sequence) {
+                later.push(lane.removeLast());
+            }
+            lane.add(slot);
+            lane.addAll(later);
+        }
+    }
+
+
+    /**
+     * Only lanes of which the head is in program order are eligible.
+     * The lane of the oldest queued transaction always is, nothing was queued before its head.
+     * @return eligible lane of which the head has waited longest beyond the maximum wait,
+     * the most urgent eligible lane if no transaction waited that long
+     */
+    private Deque<Slot<T>> nextLane(long now) {
+        Deque<Slot<T>> urgent = null;
+        Deque<Slot<T>> overdue = null;
+        for (Deque<Slot<T>> lane : lanes) {
+            Slot<T> head = lane.peek();
+            if (head != null && isInProgramOrder(head)) {
+                if (urgent == null) {
+                    urgent = lane;
+                }
+                if (now - head.queueTime > maximumWaitNanos && (overdue == null || head.queueTime - overdue.peek().queueTime < 0)) {
+                    overdue = lane;
+                }
+            }
+        }
+        return (overdue != null) ? overdue : urgent;
+    }
+
+
+    private static class Slot<T> {
+
+        Slot(T transaction, Object key, Priority priority, long sequence, boolean write) {
+            this.transaction = transaction;
+            this.key = key;
+            this.priority = priority;
+            this.sequence = sequence;
+            this.write = write;
+        }
+
+        T transaction;
+        Priority priority;
+        final Object key;
+        final long sequence;
+        final boolean write;
+        final long queueTime = System.nanoTime();
+    }
+
+
+    private final long maximumWaitNanos;
+
+    private final List<Deque<Slot<T>>> lanes = new ArrayList<>(Priority.values().length);
+    private final Map<Object, Slot<T>> readSlots = new HashMap<>();
+    private final Map<Object, Slot<T>> writeSlots = new HashMap<>();
+    private final NavigableSet<Long> writeSequences = new TreeSet<>();
+    private final NavigableSet<Long> barrierSequences = new TreeSet<>();
+    private final Map<Object, NavigableSet<Long>> targetSequences = new HashMap<>();
+    private long lastSequence;
+    private long firstSequence;
+    private int size;
+    private long mergedCount;
+    private long supersededCount;
+
+    private final long[] sentCounts = new long[Priority.values().length];
+    private final long[] totalWaits = new long[Priority.values().length];
+    private final long[] maximumWaits = new long[Priority.values().length];
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+
+}
@@ -0,0 +1,128 @@
+/*
+** Copyright © Bart Kampers
+*/
+
+package randd.motormanagement.communication;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+
+/**
+ * Latencies per protocol function and throughput of a connection with the ECU.
+ * Statistics are recorded while transactions are handled, they can be queried
+ * from any thread at any time.
+ */
+public final class TransactionStatistics {
+
+
+    /**
+     * @return names of the functions of which statistics were recorded
+     */
+    public Set<String> getFunctionNames() {
+        return Collections.unmodifiableSet(new TreeSet<>(functions.keySet()));
+    }
+
+
+    /**
+     * @param name
+     * @return statistics of function name, null if none were recorded
+     */
+    public FunctionStatistics getFunction(String name) {
+        return functions.get(name);
+    }
+
+
+    /**
+     * @return number of bytes sent since creation
+     */
+    public long getBytesSent() {
+        return bytesSent.getTotal();
+    }
+
+
+    /**
+     * @return number of bytes sent during the last second
+     */
+    public int getBytesSentPerSecond() {
+        return bytesSent.getRate();
+    }
+
+
+    /**
+     * @return number of bytes received since creation
+     */
+    public long getBytesReceived() {
+        return bytesReceived.getTotal();
+    }
+
+
+    /**
+     * @return number of bytes received during the last second
+     */
+    public int getBytesReceivedPerSecond() {
+        return bytesReceived.getRate();
+    }
+
+
+    /**
+     * @return number of returns that did not belong to a transaction in flight,
+     * for instance because it timed out
+     */
+    public long getUnmatchedResponseCount() {
+        return unmatchedResponses.get();
+    }
+
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append(String.format(
+            "sent=%dB received=%dB unmatched=%d",
+            getBytesSent(), getBytesReceived(), getUnmatchedResponseCount()));
+        for (String name : getFunctionNames()) {
+            builder.append('\n').append(name).append(": ").append(functions.get(name));
+        }
+        return builder.toString();
+    }
+
+
+    /**
+     * @param name
+     * @return statistics of function name, created when none were recorded before
+     */
+    FunctionStatistics function(String name) {
+        FunctionStatistics statistics = functions.get(name);
+        if (statistics == null) {
+            statistics = new FunctionStatistics();
+            FunctionStatistics existing = functions.putIfAbsent(name, statistics);
+            if (existing != null) {
+                statistics = existing;
+            }
+        }
+        return statistics;
+    }
+
+
+    void sent(int byteCount) {
+        bytesSent.add(byteCount);
+    }
+
+
+    void received(int byteCount) {
+        bytesReceived.add(byteCount);
+    }
+
+
+    void unmatched() {
+        unmatchedResponses.incrementAndGet();
+    }
+
+
+    private final ConcurrentMap<String, FunctionStatistics> functions = new ConcurrentHashMap<>();
+    private final RateCounter bytesSent = new RateCounter(1, TimeUnit.SECONDS, 10);
+    private final RateCounter bytesReceived = new RateCounter(1, TimeUnit.SECONDS, 10);
+    private final AtomicLong unmatchedResponses = new AtomicLong();
+
+}
@@ -6,7 +6,13 @@ package randd.motormanagement.communication;
 
 
 import bka.communication.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Queue;
 import java.util.concurrent.*;
+import java.util.function.ToIntFunction;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.json.*;
@@ -15,6 +21,32 @@ import org.json.*;
 public class Transporter {
 
     
+    /**
+     * What to do with a received frame when the receive queue is full.
+     * Returns with an Id belong to a transaction waiting for them and are never dropped.
+     * Neither are returns without Id that a transaction in flight waits for, as in
+     * stop-and-wait mode before the ECU echoes Ids.
+     */
+    public enum OverflowPolicy {
+        /**
+         * Block decoding until the messenger takes a frame, the default.
+         * The channel's receiving thread is never blocked, it hands received data over
+         * to the decoding thread, which drops data when it falls too far behind.
+         */
+        BLOCK,
+        /**
+         * Drop the oldest GetMeasurements or GetTableActualValues return without Id that no
+         * transaction in flight needs, block if there is none.
+         */
+        DROP_OLDEST_MEASUREMENTS,
+        /**
+         * Drop notifications and read returns without Id superseded by a newer frame of the same
+         * direction, function and table or measurement, block if there are none.
+         */
+        LATEST_PER_FUNCTION
+    }
+
+    
     public Transporter(Channel channel, String applicationName) {
         this.channel = channel;
         this.applicationName = applicationName;
@@ -26,81 +58,543 @@ public class Transporter {
     }
     
     
+    /**
+     * Makes open select the fastest reliable baud rate from the candidates
+     * when the channel is a serial port, instead of switching to a fixed rate.
+     * Only the baud rate of the serial port changes, the ECU has no call to
+     * change its own rate and stays at 115200 baud. So this is only of use
+     * for a device that detects the baud rate itself, like a USB adapter
+     * with auto baud detection, or one that is set to a rate by other means.
+     * @param candidates baud rates to try, null for no negotiation
+     */
+    public void setBaudNegotiation(int[] candidates) {
+        baudCandidates = (candidates != null) ? candidates.clone() : null;
+    }
+    
+    
+    /**
+     * @return result of the link probe at the negotiated baud rate, null if no baud rate was negotiated
+     */
+    public LinkProbe.Result getLinkProbeResult() {
+        return linkProbeResult;
+    }
+    
+    
+    /**
+     * Sets the framing that open negotiates with the ECU. The connection keeps
+     * JSON framing if the ECU does not support it.
+     * The default is JSON. Binary framing needs a channel that passes every byte
+     * unchanged.
+     * @param framing to negotiate, JSON for no negotiation
+     */
+    public void setPreferredFraming(Framing framing) {
+        preferredFraming = framing;
+    }
+    
+    
+    /**
+     * Makes open request compression of frames as well, useful for slow links.
+     * The connection stays uncompressed if the ECU does not support it.
+     * Compression is meant to be combined with JSON framing, its dictionary holds JSON text.
+     * Compressed frames are binary, so the channel must pass every byte unchanged.
+     * @param compression
+     * @see FrameCompressor
+     */
+    public void setCompression(boolean compression) {
+        this.compression = compression;
+    }
+    
+    
+    /**
+     * @return true if frames are compressed when that makes them smaller
+     */
+    public boolean isCompressing() {
+        return compressor != null;
+    }
+    
+    
+    /**
+     * @return framing currently used to send messages
+     */
+    public Framing getFraming() {
+        return framing;
+    }
+    
+    
+    /**
+     * Replaces the receive queue, only allowed while closed.
+     * @param capacity maximum number of received objects waiting for the messenger
+     * @param policy what to do when a frame arrives while the queue is full
+     */
+    public void setReceiveQueue(int capacity, OverflowPolicy policy) {
+        if (objectReceiver != null) {
+            throw new IllegalStateException("Transporter is open");
+        }
+        receivedObjects = new ReceiveQueue(capacity, policy);
+        receivedObjects.setAwaitedReturns(awaitedReturns);
+    }
+    
+    
+    /**
+     * Lets the receive queue keep the returns without Id that transactions in flight wait for.
+     * @param awaitedReturns number of transactions in flight waiting for a return of the given function
+     */
+    void setAwaitedReturns(ToIntFunction<String> awaitedReturns) {
+        this.awaitedReturns = awaitedReturns;
+        receivedObjects.setAwaitedReturns(awaitedReturns);
+    }
+    
+    
+    public int getReceiveQueueDepth() {
+        return receivedObjects.getDepth();
+    }
+    
+    
+    public int getReceiveQueueHighWaterMark() {
+        return receivedObjects.getHighWaterMark();
+    }
+    
+    
+    /**
+     * @return number of received objects dropped by the overflow policy
+     */
+    public long getReceiveDropCount() {
+        return receivedObjects.getDroppedCount();
+    }
+    
+    
+    /**
+     * @return number of times the channel waited for room in the receive queue
+     */
+    public long getReceiveBlockedCount() {
+        return receivedObjects.getBlockedCount();
+    }
+    
+    
+    /**
+     * @return number of received frames that could not be decoded since creation
+     */
+    public long getCorruptedFrameCount() {
+        return corruptedFrames.getTotal();
+    }
+    
+    
+    /**
+     * @return number of received frames that could not be decoded during the last minute
+     */
+    public int getCorruptedFramesPerMinute() {
+        return corruptedFrames.getRate();
+    }
+    
+    
+    /**
+     * Makes the transporter record byte counts and decode times in statistics.
+     * @param statistics
+     */
+    void setStatistics(TransactionStatistics statistics) {
+        this.statistics = Objects.requireNonNull(statistics);
+    }
+    
+    
+    /**
+     * Makes the return values of function go to decoder instead of into the received objects.
+     * @param function
+     * @param decoder
+     * @see ResponseRouter
+     */
+    void setPayloadDecoder(String function, PayloadDecoder decoder) {
+        payloadDecoders.put(function, decoder);
+    }
+    
+    
+    /**
+     * Adds a listener for connection loss and restoration when the channel reconnects by itself.
+     * @param listener
+     * @return false if the channel does not reconnect
+     */
+    boolean addConnectionListener(ConnectionListener listener) {
+        Channel decorator = channel;
+        while (decorator instanceof ChannelDecorator) {
+            if (decorator instanceof ReconnectingChannel) {
+                ((ReconnectingChannel) decorator).addConnectionListener(listener);
+                return true;
+            }
+            decorator = ((ChannelDecorator) decorator).getChannel();
+        }
+        return false;
+    }
+    
+    
     void open() throws ChannelException {
         channel.open(applicationName);
-        if (channel instanceof SerialPortChannel) {
-            ((SerialPortChannel) channel).setBaud(115200);
+        Channel port = decoratedChannel(channel);
+        if (port instanceof SerialPortChannel) {
+            initializeBaud((SerialPortChannel) port);
         }
+        receivedObjects.open();
         objectReceiver = new ObjectReceiver();
-        channel.addListener(objectReceiver);
+        decodeExecutor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, Transporter.class.getSimpleName() + " " + getName());
+            thread.setDaemon(true);
+            return thread;
+        });
+        channel.addListener(objectReceiver, decodeExecutor, DISPATCH_CAPACITY);
+        addConnectionListener(framingRestorer);
+        if (isNegotiating()) {
+            negotiateFraming();
+        }
     }
     
     
     void close() throws ChannelException {
-        receivedObjects.add(new JSONObject()); // deblock thread waiting in nextReceivedObject
+        receivedObjects.close();
         channel.removeListener(objectReceiver);
         objectReceiver = null;
+        if (decodeExecutor != null) {
+            decodeExecutor.shutdown();
+            decodeExecutor = null;
+        }
+        framing = Framing.JSON;
+        compressor = null;
         channel.close();
     }
     
     
     void send(JSONObject message) {
-        StringBuilder builder = new StringBuilder(message.toString());
-        builder.append(TRANSMISSION_END);
-        channel.send(builder.toString().getBytes());
+        transmit(compress(framing.encode(message)));
+    }
+    
+    
+    /**
+     * Encodes message in current framing with the Id of its transaction.
+     * The message itself is not changed.
+     * @param message
+     * @param id of the transaction
+     */
+    void send(JSONObject message, int id) {
+        transmit(framing.withId(framing.encode(message), id));
+    }
+    
+    
+    /**
+     * Sends the frame of request in current framing without encoding it again,
+     * only the Id is put in.
+     * @param request 
+     * @param id of the transaction
+     */
+    void send(EncodedRequest request, int id) {
+        transmit(framing.withId(request.getFrame(framing), id));
     }
     
     
+    /**
+     * Encodes call in current framing without building a message.
+     * @param call
+     * @param id of the transaction
+     */
+    void send(Call call, int id) {
+        byte[] frame;
+        synchronized (requestWriter) {
+            frame = requestWriter.encode(call, id, framing);
+        }
+        transmit(compress(frame));
+    }
+    
+    
+    /**
+     * Makes the channel transmit messages it may have held back.
+     */
+    void flush() {
+        channel.flush();
+    }
+    
+    
+    /**
+     * Applies the model updates of the return values that payload decoders received
+     * up to the returned object, so the model listeners are notified on the calling
+     * thread and the model is up to date before the object is handled.
+     * @return next received object, null after close
+     * @throws InterruptedException 
+     */
     JSONObject nextReceivedObject() throws InterruptedException {
-          return receivedObjects.take();
+        JSONObject object = receivedObjects.take();
+        Runnable update = modelUpdates.poll();
+        while (update != null) {
+            update.run();
+            update = modelUpdates.poll();
+        }
+        return object;
     }
     
     
-    private class ObjectReceiver implements ChannelListener {
-
-        @Override
-        public void receive(byte[] bytes) {
-            LOGGER.log(Level.FINE, new String(bytes));
-            for (int i = 0; i < bytes.length; ++i) {
-                char character = (char) bytes[i];
-                if (character != TRANSMISSION_END) {
-                    receivedCharacters.append(character);
-                }
-                else {
-                    processReceivedCharacters();
-                }
+    private void initializeBaud(SerialPortChannel port) throws ChannelException {
+        if (baudCandidates == null) {
+            port.setBaud(FIXED_BAUD_RATE);
+        }
+        else {
+            try {
+                linkProbeResult = port.negotiateBaud(baudCandidates, new JsonLinkProbe(PROBE_EXCHANGE_COUNT, PROBE_TIMEOUT, TimeUnit.MILLISECONDS));
+            }
+            catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new ChannelException(ex);
             }
         }
-
-        private void processReceivedCharacters() {
+    }
+    
+    
+    private void transmit(byte[] frame) {
+        statistics.sent(frame.length);
+        channel.send(frame);
+    }
+    
+    
+    /**
+     * Sends buffers as they are, they are only joined when compression needs the whole frame.
+     */
+    private void transmit(ByteBuffer[] buffers) {
+        if (compressor != null) {
+            transmit(compress(join(buffers)));
+            return;
+        }
+        int size = 0;
+        for (ByteBuffer buffer : buffers) {
+            size += buffer.remaining();
+        }
+        statistics.sent(size);
+        channel.send(buffers);
+    }
+    
+    
+    private static byte[] join(ByteBuffer[] buffers) {
+        int size = 0;
+        for (ByteBuffer buffer : buffers) {
+            size += buffer.remaining();
+        }
+        ByteBuffer joined = ByteBuffer.allocate(size);
+        for (ByteBuffer buffer : buffers) {
+            joined.put(buffer.duplicate());
+        }
+        return joined.array();
+    }
+    
+    
+    private byte[] compress(byte[] frame) {
+        FrameCompressor frameCompressor = compressor;
+        if (frameCompressor == null) {
+            return frame;
+        }
+        synchronized (frameCompressor) {
+            return frameCompressor.compress(frame);
+        }
+    }
+    
+    
+    private boolean isNegotiating() {
+        return preferredFraming != Framing.JSON || compression;
+    }
+    
+    
+    private JSONObject framingRequest() {
+        JSONObject request = Framing.request(preferredFraming);
+        if (compression) {
             try {
-                receivedObjects.add(new JSONObject(receivedCharacters.toString()));
-                receivedCharacters.setLength(0);
+                request.getJSONObject(Messenger.PARAMETERS).put(FrameCompressor.COMPRESSION, FrameCompressor.DEFLATE);
+            }
+            catch (JSONException ex) {
+                throw new IllegalStateException(ex);
             }
-            catch (org.json.JSONException ex) {
-                handleException(ex);
+        }
+        return request;
+    }
+    
+    
+    private void negotiateFraming() throws ChannelException {
+        CompletableFuture<Framing> negotiation = new CompletableFuture<>();
+        framingNegotiation = negotiation;
+        send(framingRequest());
+        flush();
+        try {
+            negotiation.get(NEGOTIATION_TIMEOUT, TimeUnit.MILLISECONDS);
+        }
+        catch (TimeoutException ex) {
+            LOGGER.log(Level.INFO, "No framing negotiation response from {0}", getName());
+        }
+        catch (ExecutionException ex) {
+            throw new IllegalStateException(ex);
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new ChannelException(ex);
+        }
+        finally {
+            framingNegotiation = null;
+        }
+        LOGGER.log(Level.INFO, "{0} framing on {1}, compression {2}", new Object[] { framing.getName(), getName(), isCompressing() });
+    }
+    
+    
+    /**
+     * Both sides switch framing on the return of SetFraming, so it is handled here
+     * instead of being passed to the messenger. A late return is still honored.
+     */
+    private void framingResponse(JSONObject response) {
+        Framing accepted = Framing.accepted(response);
+        framing = (accepted != null) ? accepted : Framing.JSON;
+        if (! FrameCompressor.isAccepted(response)) {
+            compressor = null;
+        }
+        else if (compressor == null) {
+            compressor = new FrameCompressor();
+        }
+        CompletableFuture<Framing> negotiation = framingNegotiation;
+        if (negotiation != null) {
+            negotiation.complete(framing);
+        }
+    }
+    
+    
+    private static Channel decoratedChannel(Channel channel) {
+        while (channel instanceof ChannelDecorator) {
+            channel = ((ChannelDecorator) channel).getChannel();
+        }
+        return channel;
+    }
+    
+    
+    /**
+     * Parses received bytes as they arrive, so no frame is copied or scanned twice.
+     * The time spent decoding is measured per object, a frame received in parts
+     * includes the time spent on each of its parts.
+     */
+    private class ObjectReceiver implements BufferListener {
+
+        @Override
+        public void receive(ByteBuffer buffer) {
+            if (LOGGER.isLoggable(Level.FINE)) {
+                LOGGER.log(Level.FINE, StandardCharsets.UTF_8.decode(buffer.duplicate()).toString());
             }
+            statistics.received(buffer.remaining());
+            decodeStart = System.nanoTime();
+            decoder.decode(buffer);
+            partialDecodeTime += System.nanoTime() - decodeStart;
         }
 
+        /**
+         * Discards the frame received so far, it can not be completed after a failing channel.
+         */
         @Override
         public void handleException(Exception ex) {
             LOGGER.log(Level.WARNING, "ObjectReceiver", ex);
+            decoder.reset();
+            partialDecodeTime = 0;
+        }
+        
+        private void received(JSONObject object) {
+            recordDecodeTime(object);
+            if (Framing.isResponse(object)) {
+                framingResponse(object);
+            }
+            else {
+                try {
+                    receivedObjects.put(object);
+                }
+                catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    LOGGER.log(Level.WARNING, "Received object discarded", ex);
+                }
+            }
+            decodeStart = System.nanoTime();
+        }
+        
+        private void recordDecodeTime(JSONObject object) {
+            long decodeTime = partialDecodeTime + System.nanoTime() - decodeStart;
+            partialDecodeTime = 0;
+            String function = object.optString(Messenger.FUNCTION, null);
+            if (function != null) {
+                statistics.function(function).getDecodeTime().record(decodeTime);
+            }
         }
         
-        private final StringBuilder receivedCharacters = new StringBuilder();
+        /**
+         * Noise can corrupt many frames per second, so each one is only logged at FINE
+         * and a summary is logged at WARNING at most once per minute.
+         */
+        private void invalidFrame(String reason) {
+            corruptedFrames.increment();
+            partialDecodeTime = 0;
+            decodeStart = System.nanoTime();
+            LOGGER.log(Level.FINE, "Invalid frame received: {0}", reason);
+            long now = System.nanoTime();
+            if (! corruptionReported || now - corruptionReportTime >= CORRUPTION_REPORT_INTERVAL) {
+                corruptionReported = true;
+                corruptionReportTime = now;
+                LOGGER.log(Level.WARNING, "{0} corrupted frames per minute on {1}, last: {2}", new Object[] { corruptedFrames.getRate(), getName(), reason });
+            }
+        }
+        
+        private final FrameDecoder decoder = new FrameDecoder(new ResponseRouter(new JsonObjectBuilder(this::received, this::invalidFrame), payloadDecoders, modelUpdates::add));
+        private boolean corruptionReported;
+        private long corruptionReportTime;
+        private long decodeStart;
+        private long partialDecodeTime;
         
     }
     
     
+    /**
+     * A restored connection starts uncompressed with JSON framing, the preferred framing is requested again
+     * without waiting for the return.
+     */
+    private class FramingRestorer implements ConnectionListener {
+
+        @Override
+        public void connectionLost(Exception exception) {
+            framing = Framing.JSON;
+            compressor = null;
+        }
+
+        @Override
+        public void connectionRestored() {
+            if (isNegotiating()) {
+                send(framingRequest());
+                flush();
+            }
+        }
+
+    }
+    
+    
     private final Channel channel;
     private final String applicationName;
 
     private ChannelListener objectReceiver = null;
+    private int[] baudCandidates = null;
+    private LinkProbe.Result linkProbeResult = null;
+    private Framing preferredFraming = Framing.JSON;
+    private volatile Framing framing = Framing.JSON;
+    private volatile CompletableFuture<Framing> framingNegotiation = null;
+    private boolean compression = false;
+    private volatile FrameCompressor compressor = null;
+    private final ConnectionListener framingRestorer = new FramingRestorer();
+    private final Map<String, PayloadDecoder> payloadDecoders = new ConcurrentHashMap<>();
+    private final Queue<Runnable> modelUpdates = new ConcurrentLinkedQueue<>();
+    private final RequestWriter requestWriter = new RequestWriter();
     
-    private final BlockingQueue<JSONObject> receivedObjects = new LinkedBlockingQueue<>();
+    private volatile TransactionStatistics statistics = new TransactionStatistics();
+    private final RateCounter corruptedFrames = new RateCounter(1, TimeUnit.MINUTES, 60);
+    private ReceiveQueue receivedObjects = new ReceiveQueue(DEFAULT_RECEIVE_CAPACITY, OverflowPolicy.BLOCK);
+    private ToIntFunction<String> awaitedReturns = function -> 0;
+    private ExecutorService decodeExecutor;
     
     private static final Logger LOGGER = Logger.getLogger(Transporter.class.getName());
     
-    private static final char TRANSMISSION_END = '\n';
+    private static final int FIXED_BAUD_RATE = 115200;
+    private static final int PROBE_EXCHANGE_COUNT = 8;
+    private static final long PROBE_TIMEOUT = 1000; // ms
+    private static final long NEGOTIATION_TIMEOUT = 1000; // ms
+    private static final int DEFAULT_RECEIVE_CAPACITY = 64;
+    private static final int DISPATCH_CAPACITY = 256;
+    private static final long CORRUPTION_REPORT_INTERVAL = TimeUnit.MINUTES.toNanos(1);
    
 }
\ No newline at end of file
@@ -0,0 +1,760 @@
+/*
+** Copyright © Bart Kampers
+*/
+
+package randd.motormanagement.emulator;
+
+import java.util.*;
+import java.util.logging.*;
+import org.json.*;
+import randd.motormanagement.communication.*;
+
+
+/**
+ * Emulates the JSON function set of the motor management ECU.
+ * Measurements follow a simple time based engine model unless simulated.
+ * Tables, engine properties and persistent memory are kept in memory.
+ */
+public class EcuEmulator {
+
+
+    public EcuEmulator() {
+        addMeasurement("RPM", "%d", 0.0f, 8000.0f);
+        addMeasurement("Load", "%d", 0.0f, 100.0f);
+        addMeasurement("Water", "%d", -40.0f, 120.0f);
+        addMeasurement("Air", "%d", -40.0f, 120.0f);
+        addMeasurement("Battery", "%.1f", 0.0f, 20.0f);
+        addMeasurement("Map", "%d", 0.0f, 300.0f);
+        addMeasurement("Lambda", "%.2f", 0.0f, 2.0f);
+        addMeasurement("Aux1", "%d", 0.0f, 100.0f);
+        addMeasurement("Aux2", "%d", 0.0f, 100.0f);
+        addMeasurement("Programmer", "%.2f", 0.0f, 1.0f);
+        addTable("Ignition", 20, 20, 0.0f, 60.0f, 0, "RPM", "Load", true);
+        addTable("Injection", 20, 20, 0.0f, 20.0f, 1, "RPM", "Load", true);
+        addTable("WaterCorrection", 10, 1, -50.0f, 50.0f, 0, "Water", null, false);
+        addTable("AirCorrection", 10, 1, -50.0f, 50.0f, 0, "Air", null, false);
+        addTable("BatteryCorrection", 10, 1, -50.0f, 50.0f, 0, "Battery", null, false);
+        addTable("MapCorrection", 10, 1, -50.0f, 50.0f, 0, "Map", null, false);
+        initializeFields();
+        initializeFlash();
+    }
+
+
+    /**
+     * Handles a received message.
+     * @param message
+     * @return response or notification to send back, null if no reply is required
+     */
+    public synchronized JSONObject handle(JSONObject message) {
+        try {
+            if (! message.has(DIRECTION)) {
+                return notification(INVALID_MESSAGE_RECEIVED);
+            }
+            String direction = message.optString(DIRECTION);
+            if (FIRE.equals(direction)) {
+                return null;
+            }
+            if (! CALL.equals(direction)) {
+                return notification(INVALID_DIRECTION);
+            }
+            if (! message.has(FUNCTION)) {
+                JSONObject response = new JSONObject();
+                response.put(DIRECTION, RETURN);
+                response.put(STATUS, NO_FUNCTION);
+                return withId(response, message);
+            }
+            return withId(call(message.optString(FUNCTION), parameters(message)), message);
+        }
+        catch (JSONException ex) {
+            LOGGER.log(Level.WARNING, message.toString(), ex);
+            return null;
+        }
+    }
+
+
+    /**
+     * @return notification for a received frame that could not be parsed
+     */
+    public JSONObject invalidMessage() {
+        try {
+            return notification(INVALID_MESSAGE_RECEIVED);
+        }
+        catch (JSONException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+
+    public synchronized boolean isEngineRunning() {
+        return measurementValue("RPM") > 0.0f;
+    }
+
+
+    /**
+     * Sets the time between two cog pulses of the crankshaft, as the signal
+     * generator on the control port does. The RPM follows from the pulse
+     * period and the cog total.
+     * @param nanos pulse period, 0 stops the engine
+     */
+    public synchronized void setPulseNanos(long nanos) {
+        if (nanos < 0) {
+            throw new IllegalArgumentException("Negative pulse period");
+        }
+        pulseNanos = nanos;
+    }
+
+
+    /**
+     * Batch is supported by default, without support Batch calls return
+     * UnknownFunction like firmware that predates them.
+     * @param supported
+     */
+    public synchronized void setBatchSupported(boolean supported) {
+        batchSupported = supported;
+    }
+
+
+    /**
+     * Echoes the Id of the call, so the caller can match the response to it.
+     */
+    private static JSONObject withId(JSONObject response, JSONObject message) throws JSONException {
+        if (message.has(ID)) {
+            response.put(ID, message.get(ID));
+        }
+        return response;
+    }
+
+
+    private JSONObject call(String function, JSONObject parameters) throws JSONException {
+        JSONObject response = new JSONObject();
+        response.put(DIRECTION, RETURN);
+        response.put(FUNCTION, function);
+        try {
+            response.put(RETURN_VALUE, returnValue(function, parameters));
+            response.put(STATUS, OK);
+        }
+        catch (CallException ex) {
+            response.put(RETURN_VALUE, JSONObject.NULL);
+            response.put(STATUS, ex.getMessage());
+        }
+        return response;
+    }
+
+
+    private Object returnValue(String function, JSONObject parameters) throws JSONException, CallException {
+        switch (function) {
+            case "GetMeasurements":
+                return getMeasurements();
+            case "GetMeasurementProperties":
+                return getMeasurementProperties(measurement(parameters));
+            case "SetMeasurementSimulation":
+                return setMeasurementSimulation(measurement(parameters), (float) number(parameters, "SimulationValue"));
+            case "ResetMeasurementSimulation":
+                return resetMeasurementSimulation(measurement(parameters));
+            case "GetTableNames":
+                return new JSONArray(tables.keySet());
+            case "GetTableProperties":
+                return getTableProperties(table(parameters, NO_SUCH_TABLE));
+            case "GetTableFields":
+                return getTableFields(table(parameters, NO_SUCH_TABLE));
+            case "GetTableActualValues":
+                return getTableActualValues(table(parameters, NO_SUCH_TABLE));
+            case "SetTableField":
+                return setTableField(table(parameters, INVALID_ID), parameters);
+            case "SetTableEnabled":
+                return setTableEnabled(table(parameters, INVALID_ID), bool(parameters, "Enabled"));
+            case "SetProgrammerActivated":
+                return setProgrammerActivated(table(parameters, INVALID_ID), bool(parameters, "Activated"));
+            case "ApplyProgrammerValue":
+                return applyProgrammerValue(table(parameters, INVALID_ID));
+            case "IsEngineRunning":
+                return isEngineRunning();
+            case "GetEngineProperties":
+                return getEngineProperties();
+            case "SetCylinderCount":
+                return setCylinderCount(integer(parameters, "CylinderCount"));
+            case "SetCogwheelProperties":
+                return setCogwheelProperties(integer(parameters, "CogTotal"), integer(parameters, "GapSize"), integer(parameters, "Offset"));
+            case "GetPersistentElements":
+                return getPersistentElements();
+            case "GetPersistentMemoryBytes":
+                return getPersistentMemoryBytes();
+            case "SetPersistentMemoryByte":
+                return setPersistentMemoryBytes(integer(parameters, "Reference"), new int[] { integer(parameters, "Value") });
+            case "SetPersistentMemoryBytes":
+                return setPersistentMemoryBytes(integer(parameters, "Reference"), integers(parameters, "Value"));
+            case Framing.SET_FRAMING:
+                return setFraming(parameters);
+            case "Batch":
+                return batch(parameters);
+            default:
+                throw new CallException(UNKNOWN_FUNCTION);
+        }
+    }
+
+
+    /**
+     * Handles the calls of a batch in order, as if they were received one by one.
+     * @return returns of the calls in the order of the calls
+     */
+    private JSONArray batch(JSONObject parameters) throws JSONException, CallException {
+        if (! batchSupported) {
+            throw new CallException(UNKNOWN_FUNCTION);
+        }
+        JSONArray calls = parameters.optJSONArray("Calls");
+        if (calls == null) {
+            throw new CallException(INVALID_PARAMETER);
+        }
+        for (int i = 0; i < calls.length(); ++i) {
+            JSONObject call = calls.optJSONObject(i);
+            if (call == null || "Batch".equals(call.optString(FUNCTION))) {
+                throw new CallException(INVALID_PARAMETER);
+            }
+        }
+        JSONArray returns = new JSONArray();
+        for (int i = 0; i < calls.length(); ++i) {
+            JSONObject response = handle(calls.getJSONObject(i));
+            returns.put((response != null) ? response : JSONObject.NULL);
+        }
+        return returns;
+    }
+
+
+    private JSONObject getMeasurements() throws JSONException {
+        JSONObject measurementsObject = new JSONObject();
+        for (MeasurementState measurement : measurements.values()) {
+            JSONObject measurementObject = new JSONObject();
+            measurementObject.put("Value", round(measurementValue(measurement.name)));
+            measurementObject.put("Simulation", measurement.simulation);
+            measurementsObject.put(measurement.name, measurementObject);
+        }
+        return measurementsObject;
+    }
+
+
+    private JSONObject getMeasurementProperties(MeasurementState measurement) throws JSONException {
+        JSONObject object = new JSONObject();
+        object.put("MeasurementName", measurement.name);
+        object.put("Format", measurement.format);
+        object.put("Minimum", measurement.minimum);
+        object.put("Maximum", measurement.maximum);
+        object.put("SimulationValue", (measurement.simulation) ? (Object) measurement.simulationValue : JSONObject.NULL);
+        return object;
+    }
+
+
+    private JSONObject setMeasurementSimulation(MeasurementState measurement, float value) throws JSONException {
+        measurement.simulation = true;
+        measurement.simulationValue = value;
+        return simulationObject(measurement);
+    }
+
+
+    private JSONObject resetMeasurementSimulation(MeasurementState measurement) throws JSONException {
+        measurement.simulation = false;
+        return simulationObject(measurement);
+    }
+
+
+    private JSONObject simulationObject(MeasurementState measurement) throws JSONException {
+        JSONObject object = new JSONObject();
+        object.put("MeasurementName", measurement.name);
+        object.put("Simulation", measurement.simulation);
+        object.put("SimulationValue", measurement.simulationValue);
+        return object;
+    }
+
+
+    private JSONObject getTableProperties(TableState table) throws JSONException {
+        JSONObject object = new JSONObject();
+        object.put(TABLE_NAME, table.name);
+        object.put("Enabled", table.enabled);
+        object.put("Decimals", table.decimals);
+        object.put("Minimum", table.minimum);
+        object.put("Maximum", table.maximum);
+        object.put("Precision", Math.pow(10.0, -table.decimals));
+        object.put("ColumnMeasurementName", table.columnMeasurement);
+        if (table.rowMeasurement != null) {
+            object.put("RowMeasurementName", table.rowMeasurement);
+        }
+        object.put("Programmable", table.programmable);
+        return object;
+    }
+
+
+    private JSONObject getTableFields(TableState table) throws JSONException {
+        JSONArray rows = new JSONArray();
+        for (float[] row : table.fields) {
+            JSONArray columns = new JSONArray();
+            for (float field : row) {
+                columns.put(round(field));
+            }
+            rows.put(columns);
+        }
+        JSONObject object = new JSONObject();
+        object.put(TABLE_NAME, table.name);
+        object.put("Fields", rows);
+        return object;
+    }
+
+
+    private JSONObject getTableActualValues(TableState table) throws JSONException {
+        JSONObject object = new JSONObject();
+        object.put(TABLE_NAME, table.name);
+        object.put("CurrentColumn", currentColumn(table));
+        object.put("CurrentRow", currentRow(table));
+        object.put("ProgrammerActivated", table.programmerActivated);
+        return object;
+    }
+
+
+    private JSONObject setTableField(TableState table, JSONObject parameters) throws JSONException, CallException {
+        int column = integer(parameters, "Column");
+        int row = integer(parameters, "Row");
+        float value = (float) number(parameters, "Value");
+        if (column < 0 || column >= table.columnCount() || row < 0 || row >= table.rowCount() || value < table.minimum || value > table.maximum) {
+            throw new CallException(INVALID_PARAMETER);
+        }
+        table.fields[row][column] = value;
+        return fieldObject(table, column, row);
+    }
+
+
+    private JSONObject setTableEnabled(TableState table, boolean enabled) throws JSONException {
+        table.enabled = enabled;
+        JSONObject object = new JSONObject();
+        object.put(TABLE_NAME, table.name);
+        object.put("Enabled", table.enabled);
+        return object;
+    }
+
+
+    private JSONObject setProgrammerActivated(TableState table, boolean activated) throws JSONException, CallException {
+        if (! table.programmable) {
+            throw new CallException(INVALID_PARAMETER);
+        }
+        table.programmerActivated = activated;
+        JSONObject object = new JSONObject();
+        object.put(TABLE_NAME, table.name);
+        object.put("Activated", table.programmerActivated);
+        return object;
+    }
+
+
+    private JSONObject applyProgrammerValue(TableState table) throws JSONException, CallException {
+        if (! table.programmerActivated) {
+            throw new CallException(INVALID_PARAMETER);
+        }
+        int column = currentColumn(table);
+        int row = currentRow(table);
+        table.fields[row][column] = measurementValue("Programmer") * table.maximum;
+        return fieldObject(table, column, row);
+    }
+
+
+    private JSONObject fieldObject(TableState table, int column, int row) throws JSONException {
+        JSONObject object = new JSONObject();
+        object.put(TABLE_NAME, table.name);
+        object.put("Column", column);
+        object.put("Row", row);
+        object.put("Value", round(table.fields[row][column]));
+        return object;
+    }
+
+
+    private JSONObject getEngineProperties() throws JSONException {
+        JSONObject cogwheel = new JSONObject();
+        cogwheel.put("CogTotal", cogTotal);
+        cogwheel.put("GapSize", gapSize);
+        cogwheel.put("Offset", offset);
+        JSONArray deadPoints = new JSONArray();
+        int deadPointCount = cylinderCount / 2;
+        for (int i = 0; i < deadPointCount; ++i) {
+            deadPoints.put((offset + i * cogTotal / deadPointCount) % cogTotal);
+        }
+        JSONObject object = new JSONObject();
+        object.put("CylinderCount", cylinderCount);
+        object.put("Cogwheel", cogwheel);
+        object.put("DeadPoints", deadPoints);
+        return object;
+    }
+
+
+    private JSONObject setCylinderCount(int count) throws JSONException, CallException {
+        if (count != 4 && count != 6 && count != 8) {
+            throw new CallException(INVALID_PARAMETER);
+        }
+        if (isEngineRunning()) {
+            throw new CallException(ENGINE_IS_RUNNING);
+        }
+        cylinderCount = count;
+        return getEngineProperties();
+    }
+
+
+    private JSONObject setCogwheelProperties(int total, int gap, int offset) throws JSONException, CallException {
+        if (total < 2 || total > MAXIMUM_COG_TOTAL || gap < 0 || gap >= total / 2 || offset < 0 || offset >= total) {
+            throw new CallException(INVALID_PARAMETER);
+        }
+        if (isEngineRunning()) {
+            throw new CallException(ENGINE_IS_RUNNING);
+        }
+        cogTotal = total;
+        gapSize = gap;
+        this.offset = offset;
+        return getEngineProperties();
+    }
+
+
+    private JSONArray getPersistentElements() throws JSONException {
+        JSONArray array = new JSONArray();
+        for (int[] element : elements) {
+            JSONObject object = new JSONObject();
+            object.put("TypeId", element[0]);
+            object.put("Reference", element[1]);
+            object.put("Size", element[2]);
+            array.put(object);
+        }
+        return array;
+    }
+
+
+    private JSONArray getPersistentMemoryBytes() {
+        JSONArray array = new JSONArray();
+        for (byte b : flash) {
+            array.put(b & 0xFF);
+        }
+        return array;
+    }
+
+
+    private Object setPersistentMemoryBytes(int reference, int[] values) throws CallException {
+        if (reference < 0 || reference + values.length > flash.length) {
+            throw new CallException(INVALID_PARAMETER);
+        }
+        for (int i = 0; i < values.length; ++i) {
+            if (values[i] < 0 || values[i] > 0xFF) {
+                throw new CallException(INVALID_PARAMETER);
+            }
+        }
+        for (int i = 0; i < values.length; ++i) {
+            flash[reference + i] = (byte) values[i];
+        }
+        return JSONObject.NULL;
+    }
+
+
+    private float measurementValue(String name) {
+        MeasurementState measurement = measurements.get(name);
+        if (measurement.simulation) {
+            return measurement.simulationValue;
+        }
+        return modelValue(name);
+    }
+
+
+    /**
+     * Engine running at the speed of the cog pulses with slowly varying conditions.
+     */
+    private float modelValue(String name) {
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+        double wave = Math.sin(seconds / 3.0);
+        double rpm = rpm();
+        double load = (rpm > 0.0) ? 20.0 + 60.0 * Math.min(rpm, MAXIMUM_RPM) / MAXIMUM_RPM + 5.0 * wave : 0.0;
+        switch (name) {
+            case "RPM":
+                return (float) ((rpm > 0.0) ? rpm * (1.0 + 0.01 * wave) : 0.0);
+            case "Load":
+                return (float) load;
+            case "Water":
+                return (float) Math.min(90.0, 20.0 + seconds / 10.0);
+            case "Air":
+                return 25.0f;
+            case "Battery":
+                return (float) ((rpm > 0.0) ? 13.8 + 0.1 * wave : 12.6);
+            case "Map":
+                return (float) (100.0 - load + 10.0 * wave);
+            case "Lambda":
+                return (float) (1.0 + 0.02 * wave);
+            default:
+                return 0.0f;
+        }
+    }
+
+
+    private double rpm() {
+        if (pulseNanos == 0) {
+            return 0.0;
+        }
+        return NANOS_PER_MINUTE / ((double) pulseNanos * cogTotal);
+    }
+
+
+    private int currentColumn(TableState table) {
+        return index(table.columnMeasurement, table.columnCount());
+    }
+
+
+    private int currentRow(TableState table) {
+        return (table.rowMeasurement != null) ? index(table.rowMeasurement, table.rowCount()) : 0;
+    }
+
+
+    private int index(String measurementName, int count) {
+        MeasurementState measurement = measurements.get(measurementName);
+        float fraction = (measurementValue(measurementName) - measurement.minimum) / (measurement.maximum - measurement.minimum);
+        return Math.max(0, Math.min(count - 1, (int) (fraction * count)));
+    }
+
+
+    private MeasurementState measurement(JSONObject parameters) throws CallException {
+        Object name = parameters.opt("MeasurementName");
+        if (! (name instanceof String)) {
+            throw new CallException(INVALID_PARAMETER);
+        }
+        MeasurementState measurement = measurements.get(name);
+        if (measurement == null) {
+            throw new CallException(NO_SUCH_MEASUREMENT);
+        }
+        return measurement;
+    }
+
+
+    private TableState table(JSONObject parameters, String unknownStatus) throws CallException {
+        Object name = parameters.opt(TABLE_NAME);
+        if (! (name instanceof String)) {
+            throw new CallException(INVALID_PARAMETER);
+        }
+        TableState table = tables.get(name);
+        if (table == null) {
+            throw new CallException(unknownStatus);
+        }
+        return table;
+    }
+
+
+    private static JSONObject parameters(JSONObject message) {
+        JSONObject parameters = message.optJSONObject(PARAMETERS);
+        return (parameters != null) ? parameters : new JSONObject();
+    }
+
+
+    private static double number(JSONObject parameters, String key) throws CallException {
+        Object value = parameters.opt(key);
+        if (! (value instanceof Number)) {
+            throw new CallException(INVALID_PARAMETER);
+        }
+        return ((Number) value).doubleValue();
+    }
+
+
+    /**
+     * Only validates the requested framing, the connection switches after sending the return.
+     * Requested compression is accepted by returning it.
+     */
+    private JSONObject setFraming(JSONObject parameters) throws JSONException, CallException {
+        Framing framing = Framing.forName(parameters.optString(Framing.FRAMING));
+        if (framing == null) {
+            throw new CallException(INVALID_PARAMETER);
+        }
+        JSONObject object = new JSONObject();
+        object.put(Framing.FRAMING, framing.getName());
+        if (FrameCompressor.isRequested(parameters)) {
+            object.put(FrameCompressor.COMPRESSION, FrameCompressor.DEFLATE);
+        }
+        return object;
+    }
+
+
+    private static int integer(JSONObject parameters, String key) throws CallException {
+        double value = number(parameters, key);
+        if (value != Math.rint(value) || Math.abs(value) > Integer.MAX_VALUE) {
+            throw new CallException(INVALID_PARAMETER);
+        }
+        return (int) value;
+    }
+
+
+    private static int[] integers(JSONObject parameters, String key) throws CallException {
+        JSONArray array = parameters.optJSONArray(key);
+        if (array == null) {
+            throw new CallException(INVALID_PARAMETER);
+        }
+        int[] values = new int[array.length()];
+        for (int i = 0; i < values.length; ++i) {
+            Object value = array.opt(i);
+            if (! (value instanceof Integer)) {
+                throw new CallException(INVALID_PARAMETER);
+            }
+            values[i] = (Integer) value;
+        }
+        return values;
+    }
+
+
+    private static boolean bool(JSONObject parameters, String key) throws CallException {
+        Object value = parameters.opt(key);
+        if (! (value instanceof Boolean)) {
+            throw new CallException(INVALID_PARAMETER);
+        }
+        return (Boolean) value;
+    }
+
+
+    private static double round(float value) {
+        return Math.round(value * 1000.0) / 1000.0;
+    }
+
+
+    private static JSONObject notification(String status) throws JSONException {
+        JSONObject notification = new JSONObject();
+        notification.put(DIRECTION, FIRE);
+        notification.put(STATUS, status);
+        return notification;
+    }
+
+
+    private void addMeasurement(String name, String format, float minimum, float maximum) {
+        measurements.put(name, new MeasurementState(name, format, minimum, maximum));
+    }
+
+
+    private void addTable(String name, int columns, int rows, float minimum, float maximum, int decimals, String columnMeasurement, String rowMeasurement, boolean programmable) {
+        tables.put(name, new TableState(name, new float[rows][columns], minimum, maximum, decimals, columnMeasurement, rowMeasurement, programmable));
+    }
+
+
+    private void initializeFields() {
+        for (TableState table : tables.values()) {
+            for (int row = 0; row < table.rowCount(); ++row) {
+                for (int column = 0; column < table.columnCount(); ++column) {
+                    if (table.rowMeasurement != null) {
+                        float fraction = (float) (column + row) / (table.columnCount() + table.rowCount());
+                        table.fields[row][column] = table.minimum + fraction * (table.maximum - table.minimum) / 2.0f;
+                    }
+                }
+            }
+        }
+    }
+
+
+    private void initializeFlash() {
+        int reference = 0;
+        for (TableState table : tables.values()) {
+            int size = table.columnCount() * table.rowCount();
+            elements.add(new int[] { TABLE_TYPE_ID, reference, size });
+            reference += size;
+        }
+        flash = new byte[reference];
+        Arrays.fill(flash, (byte) 0xFF);
+    }
+
+
+    private static class MeasurementState {
+
+        MeasurementState(String name, String format, float minimum, float maximum) {
+            this.name = name;
+            this.format = format;
+            this.minimum = minimum;
+            this.maximum = maximum;
+        }
+
+        final String name;
+        final String format;
+        final float minimum;
+        final float maximum;
+        boolean simulation;
+        float simulationValue;
+    }
+
+
+    private static class TableState {
+
+        TableState(String name, float[][] fields, float minimum, float maximum, int decimals, String columnMeasurement, String rowMeasurement, boolean programmable) {
+            this.name = name;
+            this.fields = fields;
+            this.minimum = minimum;
+            this.maximum = maximum;
+            this.decimals = decimals;
+            this.columnMeasurement = columnMeasurement;
+            this.rowMeasurement = rowMeasurement;
+            this.programmable = programmable;
+        }
+
+        int columnCount() {
+            return fields[0].length;
+        }
+
+        int rowCount() {
+            return fields.length;
+        }
+
+        final String name;
+        final float[][] fields;
+        final float minimum;
+        final float maximum;
+        final int decimals;
+        final String columnMeasurement;
+        final String rowMeasurement;
+        final boolean programmable;
+        boolean enabled = true;
+        boolean programmerActivated;
+    }
+
+
+    private static class CallException extends Exception {
+
+        CallException(String status) {
+            super(status);
+        }
+
+        private static final long serialVersionUID = 1L;
+
+    }
+
+
+    private final Map<String, MeasurementState> measurements = new LinkedHashMap<>();
+    private final Map<String, TableState> tables = new LinkedHashMap<>();
+    private final List<int[]> elements = new ArrayList<>();
+    private byte[] flash;
+
+    private int cylinderCount = 4;
+    private int cogTotal = 60;
+    private int gapSize = 2;
+    private int offset = 20;
+    private long pulseNanos = (long) (NANOS_PER_MINUTE / (IDLE_RPM * cogTotal));
+    private boolean batchSupported = true;
+
+    private final long startNanos = System.nanoTime();
+
+    private static final String DIRECTION = "Direction";
+    private static final String FIRE = "Fire";
+    private static final String CALL = "Call";
+    private static final String RETURN = "Return";
+    private static final String FUNCTION = "Function";
+    private static final String PARAMETERS = "Parameters";
+    private static final String RETURN_VALUE = "ReturnValue";
+    private static final String STATUS = "Status";
+    private static final String TABLE_NAME = "TableName";
+
+    private static final String OK = "OK";
+    private static final String INVALID_MESSAGE_RECEIVED = "InvalidMessageReceived";
+    private static final String INVALID_DIRECTION = "InvalidDirection";
+    private static final String NO_FUNCTION = "NoFunction";
+    private static final String UNKNOWN_FUNCTION = "UnknownFunction";
+    private static final String INVALID_PARAMETER = "InvalidParameter";
+    private static final String INVALID_ID = "InvalidId";
+    private static final String ID = "Id";
+    private static final String NO_SUCH_MEASUREMENT = "NoSuchMeasurement";
+    private static final String NO_SUCH_TABLE = "NoSuchMeasurementTable";
+    private static final String ENGINE_IS_RUNNING = "EngineIsRunning";
+
+    private static final int TABLE_TYPE_ID = 1;
+    private static final int MAXIMUM_COG_TOTAL = 255;
+    private static final double IDLE_RPM = 900.0;
+    private static final double MAXIMUM_RPM = 8000.0;
+    private static final double NANOS_PER_MINUTE = 60e9;
+
+    private static final Logger LOGGER = Logger.getLogger(EcuEmulator.class.getName());
+
+}
@@ -0,0 +1,153 @@
+/*
+** Copyright © Bart Kampers
+*/
+
+package randd.motormanagement.emulator;
+
+import bka.communication.*;
+import java.nio.*;
+import java.util.concurrent.*;
+import java.util.logging.*;
+import org.json.*;
+import randd.motormanagement.communication.*;
+
+
+/**
+ * Channel connected to an in process EcuEmulator instead of a real ECU.
+ * Responses are delivered on a thread of the channel after the configured
+ * latency plus the time the response would take on a serial line of the
+ * configured baud rate.
+ */
+public class EmulatorChannel extends Channel {
+
+
+    public EmulatorChannel() {
+        this(new EcuEmulator());
+    }
+
+
+    public EmulatorChannel(EcuEmulator emulator) {
+        this(emulator, 0, TimeUnit.MILLISECONDS, UNLIMITED_BAUD_RATE);
+    }
+
+
+    /**
+     * @param emulator
+     * @param latency time between reception of a request and the start of its response
+     * @param unit of latency
+     * @param baudRate bandwidth of the emulated line, UNLIMITED_BAUD_RATE for no bandwidth limit
+     */
+    public EmulatorChannel(EcuEmulator emulator, long latency, TimeUnit unit, int baudRate) {
+        if (latency < 0 || baudRate < 0) {
+            throw new IllegalArgumentException();
+        }
+        this.emulator = emulator;
+        this.latencyNanos = unit.toNanos(latency);
+        this.baudRate = baudRate;
+    }
+
+
+    public EcuEmulator getEmulator() {
+        return emulator;
+    }
+
+
+    @Override
+    public synchronized void open(String name) throws ChannelException {
+        if (scheduler != null) {
+            throw new ChannelException("Emulator channel already open");
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, EmulatorChannel.class.getSimpleName());
+            thread.setDaemon(true);
+            return thread;
+        });
+        availableNanos = System.nanoTime();
+    }
+
+
+    @Override
+    public synchronized void send(byte[] bytes) {
+        if (scheduler == null) {
+            return;
+        }
+        frameDecoder.decode(bytes);
+    }
+
+
+    @Override
+    public void close() throws ChannelException {
+        synchronized (this) {
+            if (scheduler != null) {
+                scheduler.shutdownNow();
+                scheduler = null;
+            }
+            frameDecoder.reset();
+            framing = Framing.JSON;
+            compressor = null;
+        }
+        super.close();
+    }
+
+
+    @Override
+    public String toString() {
+        return NAME;
+    }
+
+
+    private void handle(JSONObject message) {
+        JSONObject response = emulator.handle(message);
+        if (response != null) {
+            schedule(response);
+            Framing accepted = Framing.accepted(response);
+            if (accepted != null) {
+                framing = accepted;
+                compressor = FrameCompressor.isAccepted(response) ? new FrameCompressor() : null;
+            }
+        }
+    }
+
+
+    private void invalidFrame(String reason) {
+        LOGGER.log(Level.FINE, reason);
+        schedule(emulator.invalidMessage());
+    }
+
+
+    private void schedule(JSONObject response) {
+        byte[] frame = framing.encode(response);
+        byte[] bytes = (compressor != null) ? compressor.compress(frame) : frame;
+        long now = System.nanoTime();
+        long start = Math.max(now + latencyNanos, availableNanos);
+        availableNanos = start + transmissionNanos(bytes.length);
+        scheduler.schedule(() -> notifyListeners(ByteBuffer.wrap(bytes)), availableNanos - now, TimeUnit.NANOSECONDS);
+    }
+
+
+    private long transmissionNanos(int byteCount) {
+        if (baudRate == UNLIMITED_BAUD_RATE) {
+            return 0;
+        }
+        return byteCount * BITS_PER_BYTE * TimeUnit.SECONDS.toNanos(1) / baudRate;
+    }
+
+
+    private final EcuEmulator emulator;
+    private final long latencyNanos;
+    private final int baudRate;
+
+    private final FrameDecoder frameDecoder = new FrameDecoder(this::handle, this::invalidFrame);
+    private Framing framing = Framing.JSON;
+    private FrameCompressor compressor;
+    private ScheduledExecutorService scheduler;
+    private long availableNanos;
+
+    public static final String NAME = "Emulator";
+    public static final int UNLIMITED_BAUD_RATE = 0;
+
+    private static final long BITS_PER_BYTE = 10;
+
+    private static final Logger LOGGER = Logger.getLogger(EmulatorChannel.class.getName());
+
+}
@@ -0,0 +1,305 @@
+/*
+** Copyright © Bart Kampers
+*/
+
+package randd.motormanagement.emulator;
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.logging.*;
+import org.json.*;
+import randd.motormanagement.communication.*;
+
+
+/**
+ * Headless ECU emulator serving any number of socket clients.
+ * Clients of the function port share one EcuEmulator. Messages on the control port
+ * set the pulse period of the emulated crankshaft signal and so drive the RPM.
+ * All connections are served by a single selector thread.
+ */
+public class EmulatorServer {
+
+
+    public EmulatorServer() {
+        this(new EcuEmulator(), DEFAULT_PORT, DEFAULT_CONTROL_PORT);
+    }
+
+
+    public EmulatorServer(EcuEmulator emulator, int port, int controlPort) {
+        this.emulator = Objects.requireNonNull(emulator);
+        this.port = port;
+        this.controlPort = controlPort;
+    }
+
+
+    public static void main(String[] arguments) {
+        try {
+            int port = (arguments.length > 0) ? Integer.parseInt(arguments[0]) : DEFAULT_PORT;
+            int controlPort = (arguments.length > 1) ? Integer.parseInt(arguments[1]) : port - 1;
+            EmulatorServer server = new EmulatorServer(new EcuEmulator(), port, controlPort);
+            server.start();
+            server.join();
+        }
+        catch (IOException | NumberFormatException ex) {
+            LOGGER.log(Level.SEVERE, "Emulator server failed", ex);
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+
+    public synchronized void start() throws IOException {
+        if (thread != null) {
+            throw new IllegalStateException("Emulator server already started");
+        }
+        selector = Selector.open();
+        listen(port, false);
+        listen(controlPort, true);
+        thread = new Thread(this::run, EmulatorServer.class.getSimpleName());
+        thread.setDaemon(true);
+        thread.start();
+        LOGGER.log(Level.INFO, "Emulator listening on ports {0,number,#} and {1,number,#}", new Object[] { port, controlPort });
+    }
+
+
+    public void stop() throws InterruptedException {
+        Thread serverThread;
+        synchronized (this) {
+            serverThread = thread;
+        }
+        if (serverThread != null) {
+            serverThread.interrupt();
+            selector.wakeup();
+            serverThread.join();
+        }
+    }
+
+
+    public void join() throws InterruptedException {
+        Thread serverThread;
+        synchronized (this) {
+            serverThread = thread;
+        }
+        if (serverThread != null) {
+            serverThread.join();
+        }
+    }
+
+
+    public EcuEmulator getEmulator() {
+        return emulator;
+    }
+
+
+    /**
+     * @return number of connected clients on both ports
+     */
+    public int getClientCount() {
+        return clientCount;
+    }
+
+
+    private void listen(int portNumber, boolean control) throws IOException {
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(portNumber));
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT, control);
+    }
+
+
+    private void run() {
+        try {
+            while (! Thread.currentThread().isInterrupted()) {
+                selector.select();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    handle(key);
+                }
+            }
+        }
+        catch (IOException ex) {
+            LOGGER.log(Level.SEVERE, EmulatorServer.class.getName(), ex);
+        }
+        finally {
+            closeAll();
+            synchronized (this) {
+                thread = null;
+            }
+        }
+    }
+
+
+    private void handle(SelectionKey key) throws IOException {
+        if (key.isValid() && key.isAcceptable()) {
+            accept(key);
+        }
+        else {
+            Connection connection = (Connection) key.attachment();
+            try {
+                if (key.isValid() && key.isReadable()) {
+                    connection.read();
+                }
+                if (key.isValid() && key.isWritable()) {
+                    connection.write();
+                }
+            }
+            catch (IOException ex) {
+                LOGGER.log(Level.FINE, connection.toString(), ex);
+                connection.close();
+            }
+        }
+    }
+
+
+    private void accept(SelectionKey key) throws IOException {
+        java.nio.channels.SocketChannel socketChannel = ((ServerSocketChannel) key.channel()).accept();
+        if (socketChannel != null) {
+            socketChannel.configureBlocking(false);
+            socketChannel.socket().setTcpNoDelay(true);
+            Connection connection = new Connection(socketChannel, (Boolean) key.attachment());
+            connection.key = socketChannel.register(selector, SelectionKey.OP_READ, connection);
+            clientCount++;
+            LOGGER.log(Level.FINE, "Accepted {0}", connection);
+        }
+    }
+
+
+    private void closeAll() {
+        for (SelectionKey key : selector.keys()) {
+            try {
+                key.channel().close();
+            }
+            catch (IOException ex) {
+                LOGGER.log(Level.FINE, EmulatorServer.class.getName(), ex);
+            }
+        }
+        try {
+            selector.close();
+        }
+        catch (IOException ex) {
+            LOGGER.log(Level.FINE, EmulatorServer.class.getName(), ex);
+        }
+        clientCount = 0;
+    }
+
+
+    private void handleControl(JSONObject message) {
+        try {
+            if (message.has(PULSE_NANOS)) {
+                emulator.setPulseNanos(message.getLong(PULSE_NANOS));
+            }
+        }
+        catch (JSONException | IllegalArgumentException ex) {
+            LOGGER.log(Level.WARNING, message.toString(), ex);
+        }
+    }
+
+
+    private void invalidControl(String reason) {
+        LOGGER.log(Level.WARNING, "Invalid control frame: {0}", reason);
+    }
+
+
+    private class Connection {
+
+        Connection(java.nio.channels.SocketChannel socketChannel, boolean control) {
+            this.socketChannel = socketChannel;
+            this.address = String.valueOf(socketChannel.socket().getRemoteSocketAddress());
+            this.frameDecoder = (control)
+                ? new FrameDecoder(EmulatorServer.this::handleControl, EmulatorServer.this::invalidControl)
+                : new FrameDecoder(this::respond, this::invalidFrame);
+        }
+
+        void read() throws IOException {
+            readBuffer.clear();
+            int count = socketChannel.read(readBuffer);
+            if (count < 0) {
+                throw new EOFException("Connection closed by " + this);
+            }
+            readBuffer.flip();
+            frameDecoder.decode(readBuffer);
+        }
+
+        void write() throws IOException {
+            socketChannel.write(outgoing.toArray(new ByteBuffer[outgoing.size()]));
+            while (! outgoing.isEmpty() && ! outgoing.peek().hasRemaining()) {
+                outgoing.remove();
+            }
+            key.interestOps((outgoing.isEmpty()) ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+
+        void close() {
+            key.cancel();
+            try {
+                socketChannel.close();
+            }
+            catch (IOException ex) {
+                LOGGER.log(Level.FINE, toString(), ex);
+            }
+            clientCount--;
+        }
+
+        private void respond(JSONObject message) {
+            JSONObject response = emulator.handle(message);
+            if (response != null) {
+                queue(response);
+                Framing accepted = Framing.accepted(response);
+                if (accepted != null) {
+                    framing = accepted;
+                    compressor = FrameCompressor.isAccepted(response) ? new FrameCompressor() : null;
+                }
+            }
+        }
+
+        private void invalidFrame(String reason) {
+            LOGGER.log(Level.FINE, "Invalid frame from {0}: {1}", new Object[] { this, reason });
+            queue(emulator.invalidMessage());
+        }
+
+        private void queue(JSONObject response) {
+            byte[] frame = framing.encode(response);
+            outgoing.add(ByteBuffer.wrap((compressor != null) ? compressor.compress(frame) : frame));
+            key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+
+        @Override
+        public String toString() {
+            return address;
+        }
+
+        private final java.nio.channels.SocketChannel socketChannel;
+        private final String address;
+        private final FrameDecoder frameDecoder;
+        private Framing framing = Framing.JSON;
+        private FrameCompressor compressor;
+        private final Queue<ByteBuffer> outgoing = new ArrayDeque<>();
+        private SelectionKey key;
+
+    }
+
+
+    private final EcuEmulator emulator;
+    private final int port;
+    private final int controlPort;
+
+    private Selector selector;
+    private Thread thread;
+    private volatile int clientCount;
+
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+
+    public static final int DEFAULT_PORT = 44252;
+    public static final int DEFAULT_CONTROL_PORT = DEFAULT_PORT - 1;
+
+    private static final String PULSE_NANOS = "PulseNanos";
+    private static final int READ_BUFFER_SIZE = 0x2000;
+
+    private static final Logger LOGGER = Logger.getLogger(EmulatorServer.class.getName());
+
+}
@@ -17,6 +17,7 @@ import javax.swing.*;
 import javax.swing.event.*;
 import org.json.*;
 import randd.motormanagement.communication.*;
+import randd.motormanagement.emulator.*;
 import randd.motormanagement.system.*;
 
 
@@ -155,7 +156,7 @@ public class Monitor extends bka.swing.FrameApplication {
                 if (! hosts.contains(host)) {
                     hosts.add(host);
                 }            
-                selectedItem = SocketChannel.create(selectedItem.toString(), RANDD_MM_PORT);
+                selectedItem = createSocketChannel(host);
             }
             if (!selectedItem.equals(selectedChannel)) {
                 disconnect();
@@ -177,7 +178,17 @@ public class Monitor extends bka.swing.FrameApplication {
             LOGGER.log(Level.INFO, "Serial communication not supported.");
             LOGGER.log(Level.FINEST, "", ex);
         }
-        socketHosts().forEach(host -> channelComboBox.addItem(SocketChannel.create(host, RANDD_MM_PORT)));
+        socketHosts().forEach(host -> channelComboBox.addItem(createSocketChannel(host)));
+        if (getBooleanProperty(DEVELOPER_MODE, false)) {
+            channelComboBox.addItem(new EmulatorChannel());
+        }
+    }
+    
+    private Channel createSocketChannel(String host) {
+        if (getBooleanProperty(SOCKET_MULTIPLEXING, false)) {
+            return NioSocketChannel.create(host, RANDD_MM_PORT);
+        }
+        return SocketChannel.create(host, RANDD_MM_PORT);
     }
     
     private Collection<String> socketHosts() {
@@ -218,7 +229,7 @@ public class Monitor extends bka.swing.FrameApplication {
     private void connect(Channel channel) {
         selectedChannel = channel;
         try {
-            Transporter transporter = new Transporter(channel, title());
+            Transporter transporter = new Transporter(outputStage(captureStage(reconnectStage(channel))), title());
             remoteSystem = new RemoteSystem(transporter);
             remoteSystem.connect();
             setProperty(SELECTED_CHANNEL, transporter.getName());
@@ -229,11 +240,34 @@ public class Monitor extends bka.swing.FrameApplication {
                 remoteSystem.startPolling(pollInterval);
             }
         }
-        catch (ChannelException | InterruptedException ex) {
+        catch (ChannelException ex) {
             handle(ex);
         }
     }
 
+    private Channel reconnectStage(Channel channel) {
+        if ((channel instanceof SocketChannel || channel instanceof NioSocketChannel) && getBooleanProperty(AUTO_RECONNECT, true)) {
+            return new ReconnectingChannel(channel, RECONNECT_INITIAL_DELAY, RECONNECT_MAXIMUM_DELAY, java.util.concurrent.TimeUnit.MILLISECONDS);
+        }
+        return channel;
+    }
+
+    private Channel captureStage(Channel channel) {
+        String directory = getProperty(CAPTURE_DIRECTORY);
+        if (directory != null) {
+            String sessionName = new java.text.SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date());
+            return new RecordingChannel(channel, new File(directory), sessionName, CAPTURE_FILE_SIZE);
+        }
+        return channel;
+    }
+
+    private Channel outputStage(Channel channel) {
+        if (getBooleanProperty(WRITE_COALESCING, false)) {
+            return new CoalescingChannel(channel, COALESCING_SIZE, COALESCING_IDLE_TIME, java.util.concurrent.TimeUnit.MILLISECONDS);
+        }
+        return channel;
+    }
+
     private void initializePanels(Channel channel) {
         if (getBooleanProperty(ENGINE_TAB_AVAILABLE, true)) {
             addEngineTabPanel();
@@ -250,6 +284,10 @@ public class Monitor extends bka.swing.FrameApplication {
             String host = ((SocketChannel) channel).getHost();
             addTabPanel(new ControlPanel(host), "Control");
         }
+        else if (channel instanceof NioSocketChannel) {
+            String host = ((NioSocketChannel) channel).getHost();
+            addTabPanel(new ControlPanel(host), "Control");
+        }
     }
 
     private void addMeasurementPanel(String measurementName, boolean developerMode) {
@@ -258,12 +296,7 @@ public class Monitor extends bka.swing.FrameApplication {
         MeasurementPanel panel = new MeasurementPanel(measurement, correctionTable, measurementPanelListener, developerMode, getAdapter());
         measurements.put(measurementName, panel);
         valuesPanel.add(panel);
-        try {
-            remoteSystem.requestMeasurementProperties(measurement);
-        }
-        catch (InterruptedException ex) {
-            handle(ex);
-        }
+        remoteSystem.requestMeasurementProperties(measurement);
     }
     
     private Function<Measurement, String> getAdapter() {
@@ -332,7 +365,7 @@ public class Monitor extends bka.swing.FrameApplication {
         panel.setName(titleKey);
     }
 
-    private void populatePanels() throws InterruptedException {
+    private void populatePanels() {
         memoryPanel.setMemory(remoteSystem.getFlash());
         statusPanel.setRemoteSystem(remoteSystem);
         remoteSystem.addListener(new RemoteSystemListener());
@@ -407,35 +440,30 @@ public class Monitor extends bka.swing.FrameApplication {
     
     private void activateSelectedTab() {
         if (remoteSystem != null) {
-            try {
-                if (selectedTab instanceof TablePanel) {
-                    Table table = ((TablePanel) selectedTab).getTable();
-                    remoteSystem.stopIndexPoll(table);
-                }
-                selectedTab = tabsPanel.getSelectedComponent();
-                if (selectedTab instanceof TablePanel) {
-                    Table table = ((TablePanel) selectedTab).getTable();
-                    if (! table.hasFields()) {
-                        remoteSystem.requestTableFields(table);
-                    }
-                    Optional<Boolean> enabled = table.isEnabled();
-                    if (!enabled.isPresent()) {
-                        remoteSystem.requestTableProperties(table);
-                    }
-                    else if (enabled.get()) {
-                        remoteSystem.startIndexPoll(table);
-                    }
+            if (selectedTab instanceof TablePanel) {
+                Table table = ((TablePanel) selectedTab).getTable();
+                remoteSystem.stopIndexPoll(table);
+            }
+            selectedTab = tabsPanel.getSelectedComponent();
+            if (selectedTab instanceof TablePanel) {
+                Table table = ((TablePanel) selectedTab).getTable();
+                if (! table.hasFields()) {
+                    remoteSystem.requestTableFields(table);
                 }
-                else if (selectedTab instanceof EnginePanel) {
-                    remoteSystem.requestEngine();
-                    ((EnginePanel) selectedTab).activate();
+                Optional<Boolean> enabled = table.isEnabled();
+                if (!enabled.isPresent()) {
+                    remoteSystem.requestTableProperties(table);
                 }
-                else if (selectedTab instanceof MemoryPanel) {
-                    remoteSystem.requestFlash();
+                else if (enabled.get()) {
+                    remoteSystem.startIndexPoll(table);
                 }
             }
-            catch (InterruptedException ex) {
-                handle(ex);
+            else if (selectedTab instanceof EnginePanel) {
+                remoteSystem.requestEngine();
+                ((EnginePanel) selectedTab).activate();
+            }
+            else if (selectedTab instanceof MemoryPanel) {
+                remoteSystem.requestFlash();
             }
         }
     }
@@ -473,41 +501,26 @@ public class Monitor extends bka.swing.FrameApplication {
         public void tableEnabled(MeasurementPanel panel, boolean enabled) {
             Measurement measurement = panel.getMeasurement();
             Optional<Table> table = remoteSystem.getCorrectionTable(measurement);
-            try {
-                remoteSystem.enableTable(table.get(), enabled);
-            }
-            catch (InterruptedException ex) {
-                handle(ex);
-            }
+            remoteSystem.enableTable(table.get(), enabled);
         }
 
         @Override
         public void simulationEnabled(MeasurementPanel panel, boolean enabled) {
             Measurement measurement = panel.getMeasurement();
-            try {
-                if (measurement.isSimulationEnabled() != enabled) {
-                    if (enabled) { 
-                        remoteSystem.enableMeasurementSimulation(measurement, measurement.getValue());
-                    }
-                    else {
-                        remoteSystem.disableMeasurementSimulation(measurement);
-                    }
+            if (measurement.isSimulationEnabled() != enabled) {
+                if (enabled) { 
+                    remoteSystem.enableMeasurementSimulation(measurement, measurement.getValue());
+                }
+                else {
+                    remoteSystem.disableMeasurementSimulation(measurement);
                 }
-            }
-            catch (InterruptedException ex) {
-                handle(ex);
             }
         }
 
         @Override
         public void simulationValueModified(MeasurementPanel panel, double value) {
             Measurement measurement = panel.getMeasurement();
-            try {
-                remoteSystem.enableMeasurementSimulation(measurement, (float) value);
-            }
-            catch (InterruptedException ex) {
-                handle(ex);
-            }
+            remoteSystem.enableMeasurementSimulation(measurement, (float) value);
         }
         
     }
@@ -523,12 +536,7 @@ public class Monitor extends bka.swing.FrameApplication {
         
         @Override
         public void setValue(Table table, int column, int row, float value) {
-            try {
-                remoteSystem.modifyTable(table, column, row, value);
-            }
-            catch (InterruptedException ex) {
-                handle(ex);
-            }
+            remoteSystem.modifyTable(table, column, row, value);
         }
         
         @Override
@@ -548,12 +556,7 @@ public class Monitor extends bka.swing.FrameApplication {
 
         @Override
         public void cylinderCountModified(int count) {
-            try {
-                remoteSystem.modifyCylinderCount(count);
-            }
-            catch (InterruptedException ex) {
-                handle(ex);
-            }
+            remoteSystem.modifyCylinderCount(count);
         }
 
         @Override
@@ -573,12 +576,7 @@ public class Monitor extends bka.swing.FrameApplication {
         }
         
         private void modifyCogwheel(int cogTotal, int gapSize, int offset) {
-            try {
-                remoteSystem.modifyCogwheel(cogTotal, gapSize, offset);
-            }
-            catch (InterruptedException ex) {
-                handle(ex);
-            }
+            remoteSystem.modifyCogwheel(cogTotal, gapSize, offset);
         }
         
     }
@@ -588,14 +586,9 @@ public class Monitor extends bka.swing.FrameApplication {
 
         @Override
         public void clearButtonPressed() {
-            try {
-                int[] clearMemory = new int[remoteSystem.getFlash().getSize()];
-                Arrays.fill(clearMemory, 0xAA);
-                remoteSystem.modifyFlash(0, clearMemory);
-            }
-            catch (InterruptedException ex) {
-                handle(ex);
-            }
+            int[] clearMemory = new int[remoteSystem.getFlash().getSize()];
+            Arrays.fill(clearMemory, 0xAA);
+            remoteSystem.modifyFlash(0, clearMemory);
             
         }
         
@@ -608,7 +601,7 @@ public class Monitor extends bka.swing.FrameApplication {
                 int[] values = getIntArray(jsonObject.getJSONArray("Value"));
                 remoteSystem.modifyFlash(reference, values);
             }
-            catch (JSONException | InterruptedException ex) {
+            catch (JSONException ex) {
                 LOGGER.log(Level.SEVERE, null, ex);
             }
         }        
@@ -715,8 +708,17 @@ public class Monitor extends bka.swing.FrameApplication {
     private static final String SELECTED_CHANNEL = "SelectedChannel";
     private static final String SELECTED_TAB = "SelectedTab";
     private static final String SOCKET_HOSTS = "SocketChannels";
+    private static final String SOCKET_MULTIPLEXING = "SocketMultiplexing";
+    private static final String WRITE_COALESCING = "WriteCoalescing";
+    private static final String CAPTURE_DIRECTORY = "CaptureDirectory";
+    private static final String AUTO_RECONNECT = "AutoReconnect";
 
     private static final int DEFAULT_POLL_INTERVAL = 100;
+    private static final int COALESCING_SIZE = 0x400;
+    private static final long COALESCING_IDLE_TIME = 2; // ms
+    private static final int CAPTURE_FILE_SIZE = 0x1000000;
+    private static final long RECONNECT_INITIAL_DELAY = 250; // ms
+    private static final long RECONNECT_MAXIMUM_DELAY = 10000; // ms
 
     private static final List<String> MEASUREMENT_ORDER = Arrays.asList("RPM", "Load", "Water", "Air", "Battery", "Map", "Lambda", "Spare", "Aux1", "Aux2", "Programmer");
 
@@ -73,16 +73,26 @@ public class Measurement {
     
     
     public Float getValue() {
-        return value;
+        return (hasValue) ? value : null;
     }
 
     
     public void setValue(Float value) {
-        if (! equal(value, this.value)) {
-            this.value = value;    
-            for (Listener listener : listeners) {
-                listener.valueUpdated();
-            }
+        if (value != null) {
+            setValue(value.floatValue());
+        }
+        else if (hasValue) {
+            hasValue = false;
+            notifyValueUpdated();
+        }
+    }
+
+    
+    public void setValue(float value) {
+        if (! hasValue || Float.floatToIntBits(value) != Float.floatToIntBits(this.value)) {
+            this.value = value;
+            hasValue = true;
+            notifyValueUpdated();
         }
     }
     
@@ -124,7 +134,7 @@ public class Measurement {
 
     @Override
     public String toString() {
-        return name + " = " + value;
+        return name + " = " + getValue();
     }
     
 
@@ -133,8 +143,10 @@ public class Measurement {
     }
 
     
-    private boolean equal(Object o1, Object o2) {
-        return (o1 == null) ? o2 == null : o1.equals(o2); 
+    private void notifyValueUpdated() {
+        for (Listener listener : listeners) {
+            listener.valueUpdated();
+        }
     }
     
     
@@ -143,7 +155,8 @@ public class Measurement {
     private float minimum = 0.0f;
     private float maximum = 100.0f;
     
-    private Float value;
+    private float value;
+    private boolean hasValue = false;
     
     private String format;
     
@@ -39,35 +39,51 @@ public class Table {
     }
     
     public void setFields(float[][] fields) {
-        columnCount = 0;
-        rowCount = 0;
-        if (fields != null) {
-            rowCount = fields.length;
-            this.fields = new float[rowCount][];
-            columnCount = Integer.MAX_VALUE;
-            for (int row = 0; row < rowCount; ++row) {
-                columnCount = Math.min(columnCount, fields[row].length);
+        if (fields == null) {
+            columnCount = 0;
+            rowCount = 0;
+        }
+        else {
+            int columns = (fields.length > 0) ? Integer.MAX_VALUE : 0;
+            for (float[] row : fields) {
+                columns = Math.min(columns, row.length);
             }
+            allocateFields(columns, fields.length);
             for (int row = 0; row < rowCount; ++row) {
-                this.fields[row] = new float[columnCount];
-                for (int column = 0; column < columnCount; ++ column) {
-                    this.fields[row][column] = fields[row][column];
-                }
-                
-            }
-            if (rowCount > 0) {
-                columnCount = fields[0].length;
-                for (int row = 1; row < rowCount; ++row) {
-                    columnCount = Math.min(columnCount, fields[row].length);
-                }
-            }
-            else {
-                this.fields = null;
+                System.arraycopy(fields[row], 0, this.fields[row], 0, columnCount);
             }
         }
         notifyPropertyChanged(Property.FIELDS);
     }
     
+    /**
+     * Copies fields into the storage of this table, reusing it if the size did not change.
+     * @param columnCount
+     * @param rowCount
+     * @param values fields row by row
+     */
+    public void setFields(int columnCount, int rowCount, float[] values) {
+        if (columnCount < 0 || rowCount < 0 || values.length < columnCount * rowCount) {
+            throw new IllegalArgumentException();
+        }
+        allocateFields(columnCount, rowCount);
+        for (int row = 0; row < rowCount; ++row) {
+            System.arraycopy(values, row * columnCount, fields[row], 0, columnCount);
+        }
+        notifyPropertyChanged(Property.FIELDS);
+    }
+    
+    private void allocateFields(int columnCount, int rowCount) {
+        if (rowCount == 0) {
+            fields = null;
+        }
+        else if (fields == null || rowCount != this.rowCount || columnCount != this.columnCount) {
+            fields = new float[rowCount][columnCount];
+        }
+        this.columnCount = (rowCount > 0) ? columnCount : 0;
+        this.rowCount = rowCount;
+    }
+    
     public boolean hasFields() {
         return fields != null;
     }
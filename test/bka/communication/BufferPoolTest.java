@@ -0,0 +1,64 @@
+/*
+** Copyright © Bart Kampers
+*/
+
+package bka.communication;
+
+import java.nio.*;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+
+public class BufferPoolTest {
+
+
+    @Test
+    public void testReuse() {
+        BufferPool pool = new BufferPool(16, 2);
+        ByteBuffer buffer = pool.acquire();
+        assertEquals(16, buffer.capacity());
+        assertTrue(buffer.hasArray());
+        buffer.put((byte) 1).flip();
+        pool.release(buffer);
+        ByteBuffer reused = pool.acquire();
+        assertSame(buffer, reused);
+        assertEquals(0, reused.position());
+        assertEquals(16, reused.limit());
+    }
+
+
+    @Test
+    public void testMaximumPoolSize() {
+        BufferPool pool = new BufferPool(16, 2);
+        ByteBuffer[] buffers = { pool.acquire(), pool.acquire(), pool.acquire() };
+        for (ByteBuffer buffer : buffers) {
+            pool.release(buffer);
+        }
+        assertSame(buffers[0], pool.acquire());
+        assertSame(buffers[1], pool.acquire());
+        ByteBuffer fresh = pool.acquire();
+        assertNotSame(buffers[2], fresh);
+        assertEquals(16, fresh.capacity());
+    }
+
+
+    @Test
+    public void testForeignBuffersNotPooled() {
+        BufferPool pool = new BufferPool(16, 2);
+        ByteBuffer other = ByteBuffer.allocate(32);
+        ByteBuffer readOnly = ByteBuffer.allocate(16).asReadOnlyBuffer();
+        pool.release(other);
+        pool.release(readOnly);
+        ByteBuffer buffer = pool.acquire();
+        assertNotSame(other, buffer);
+        assertNotSame(readOnly, buffer);
+        assertFalse(buffer.isReadOnly());
+    }
+
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testInvalidSize() {
+        new BufferPool(0, 2);
+    }
+
+}
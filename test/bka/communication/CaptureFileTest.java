@@ -0,0 +1,82 @@
+/*
+** Copyright © Bart Kampers
+*/
+
+package bka.communication;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.file.*;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+
+public class CaptureFileTest {
+
+
+    @Test
+    public void testRecords() throws IOException {
+        File file = write(CaptureFile.Direction.SENT.ordinal());
+        try (CaptureFile.Reader reader = new CaptureFile.Reader(file)) {
+            CaptureFile.Record record = reader.next();
+            assertEquals(CaptureFile.Direction.SENT, record.getDirection());
+            assertEquals(NANO_TIME, record.getNanoTime());
+            assertEquals(ByteBuffer.wrap(DATA), record.getData());
+            assertNull(reader.next());
+        }
+    }
+
+
+    @Test(expected=IOException.class)
+    public void testInvalidDirection() throws IOException {
+        try (CaptureFile.Reader reader = new CaptureFile.Reader(write(CaptureFile.Direction.values().length))) {
+            reader.next();
+        }
+    }
+
+
+    @Test(expected=IOException.class)
+    public void testNegativeDirection() throws IOException {
+        try (CaptureFile.Reader reader = new CaptureFile.Reader(write(-1))) {
+            reader.next();
+        }
+    }
+
+
+    @Test
+    public void testFiles() throws IOException {
+        File directory = folder.getRoot();
+        assertTrue(CaptureFile.files(directory, "Session").isEmpty());
+        Files.write(CaptureFile.file(directory, "Session", 0).toPath(), new byte[0]);
+        Files.write(CaptureFile.file(directory, "Session", 1).toPath(), new byte[0]);
+        Files.write(CaptureFile.file(directory, "Session", 3).toPath(), new byte[0]);
+        assertEquals(2, CaptureFile.files(directory, "Session").size());
+        assertEquals(CaptureFile.file(directory, "Session", 1), CaptureFile.files(directory, "Session").get(1));
+    }
+
+
+    /**
+     * @return capture file with one record of given direction byte
+     */
+    private File write(int direction) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(Long.BYTES + CaptureFile.RECORD_HEADER_SIZE + DATA.length);
+        buffer.putLong(CaptureFile.MAGIC);
+        buffer.putInt(DATA.length);
+        buffer.put((byte) direction);
+        buffer.putLong(NANO_TIME);
+        buffer.put(DATA);
+        File file = folder.newFile();
+        Files.write(file.toPath(), buffer.array());
+        return file;
+    }
+
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static final byte[] DATA = { 1, 2, 3 };
+    private static final long NANO_TIME = 123456789L;
+
+}
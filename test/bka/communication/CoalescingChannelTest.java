@@ -0,0 +1,103 @@
+/*
+** Copyright © Bart Kampers
+*/
+
+package bka.communication;
+
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.*;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+
+public class CoalescingChannelTest {
+
+
+    @Test
+    public void testSizeThreshold() {
+        CoalescingChannel channel = new CoalescingChannel(decorated, 10, 1, TimeUnit.HOURS);
+        channel.send(new byte[] { 1, 2, 3, 4 });
+        channel.send(new byte[] { 5, 6, 7, 8 });
+        assertTrue(decorated.sends.isEmpty());
+        channel.send(new byte[] { 9, 10 });
+        assertEquals(1, decorated.sends.size());
+        assertArrayEquals(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10 }, decorated.sends.peek());
+        assertEquals(1, channel.getGatheringSendCount());
+        assertEquals(3, channel.getFrameCount());
+    }
+
+
+    @Test(timeout=5000)
+    public void testIdleTime() throws InterruptedException {
+        CoalescingChannel channel = new CoalescingChannel(decorated, 100, 10, TimeUnit.MILLISECONDS);
+        channel.send(new byte[] { 1 });
+        channel.send(new byte[] { 2 });
+        assertArrayEquals(new byte[] { 1, 2 }, decorated.sends.take());
+        assertEquals(1, channel.getGatheringSendCount());
+    }
+
+
+    @Test
+    public void testFlush() throws ChannelException {
+        CoalescingChannel channel = new CoalescingChannel(decorated, 100, 1, TimeUnit.HOURS);
+        channel.flush();
+        assertTrue(decorated.sends.isEmpty());
+        channel.send(new byte[] { 1 });
+        channel.flush();
+        assertArrayEquals(new byte[] { 1 }, decorated.sends.poll());
+        assertEquals(2, decorated.flushCount);
+        channel.send(new byte[] { 2 });
+        channel.close();
+        assertArrayEquals(new byte[] { 2 }, decorated.sends.poll());
+        assertEquals(2, channel.getGatheringSendCount());
+    }
+
+
+    @Test
+    public void testBuffersFormOneFrame() {
+        CoalescingChannel channel = new CoalescingChannel(decorated, 100, 1, TimeUnit.HOURS);
+        ByteBuffer body = ByteBuffer.wrap(new byte[] { 0, 2, 3, 0 }, 1, 2);
+        channel.send(new ByteBuffer[] { ByteBuffer.wrap(new byte[] { 1 }), body });
+        channel.send(new byte[] { 4 });
+        channel.flush();
+        assertArrayEquals(new byte[] { 1, 2, 3, 4 }, decorated.sends.poll());
+        assertEquals(2, channel.getFrameCount());
+    }
+
+
+    private static class TestChannel extends Channel {
+
+        @Override
+        public void open(String name) {
+        }
+
+        @Override
+        public void send(byte[] bytes) {
+            sends.add(bytes);
+        }
+
+        @Override
+        public void send(ByteBuffer[] buffers) {
+            ByteArrayOutputStream stream = new ByteArrayOutputStream();
+            for (ByteBuffer buffer : buffers) {
+                stream.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            }
+            sends.add(stream.toByteArray());
+        }
+
+        @Override
+        public void flush() {
+            flushCount++;
+        }
+
+        final BlockingQueue<byte[]> sends = new LinkedBlockingQueue<>();
+        int flushCount;
+
+    }
+
+
+    private final TestChannel decorated = new TestChannel();
+
+}
@@ -0,0 +1,175 @@
+/*
+** Copyright © Bart Kampers
+*/
+
+package bka.communication;
+
+import java.nio.*;
+import java.nio.charset.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+
+public class DispatcherTest {
+
+
+    @Test
+    public void testOrder() {
+        RecordingListener listener = new RecordingListener();
+        Dispatcher dispatcher = new Dispatcher(listener, tasks::add, 4);
+        dispatcher.receive(buffer("a"));
+        dispatcher.handleException(new ChannelException("b"));
+        dispatcher.receive(buffer("c"));
+        assertEquals(1, tasks.size());
+        runTasks();
+        assertEquals(Arrays.asList("a", "b", "c"), listener.events);
+        assertEquals(3, dispatcher.getDispatchCount());
+        assertEquals(0, dispatcher.getQueueDepth());
+        assertEquals(3, dispatcher.getMaximumQueueDepth());
+    }
+
+
+    @Test
+    public void testOverflowAfterQueuedData() {
+        RecordingListener listener = new RecordingListener();
+        Dispatcher dispatcher = new Dispatcher(listener, tasks::add, 2);
+        dispatcher.receive(buffer("a"));
+        dispatcher.receive(buffer("b"));
+        dispatcher.receive(buffer("lost"));
+        dispatcher.receive(buffer("lost"));
+        assertEquals(1, tasks.size());
+        runTasks();
+        assertEquals(Arrays.asList("a", "b", OVERFLOW), listener.events);
+        dispatcher.receive(buffer("c"));
+        runTasks();
+        assertEquals(Arrays.asList("a", "b", OVERFLOW, "c"), listener.events);
+        assertEquals(2, dispatcher.getOverflowCount());
+    }
+
+
+    @Test
+    public void testOverflowWhileDraining() {
+        RecordingListener listener = new RecordingListener();
+        Dispatcher dispatcher = new Dispatcher(listener, tasks::add, 1);
+        listener.onReceive = () -> {
+            dispatcher.receive(buffer("b"));
+            dispatcher.receive(buffer("lost"));
+        };
+        dispatcher.receive(buffer("a"));
+        runTasks();
+        assertEquals(Arrays.asList("a", "b", OVERFLOW), listener.events);
+        assertEquals(1, dispatcher.getOverflowCount());
+    }
+
+
+    @Test(timeout=10000)
+    public void testListenerNotEnteredConcurrently() throws InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            AtomicInteger active = new AtomicInteger();
+            AtomicInteger maximumActive = new AtomicInteger();
+            AtomicInteger overflows = new AtomicInteger();
+            CountDownLatch done = new CountDownLatch(1);
+            ChannelListener listener = new ChannelListener() {
+
+                @Override
+                public void receive(byte[] bytes) {
+                    enter();
+                    if (bytes[0] == 'z') {
+                        done.countDown();
+                    }
+                }
+
+                @Override
+                public void handleException(Exception ex) {
+                    enter();
+                    overflows.incrementAndGet();
+                }
+
+                private void enter() {
+                    maximumActive.accumulateAndGet(active.incrementAndGet(), Math::max);
+                    try {
+                        Thread.sleep(1);
+                    }
+                    catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                    }
+                    active.decrementAndGet();
+                }
+            };
+            Dispatcher dispatcher = new Dispatcher(listener, executor, 2);
+            for (int i = 0; i < 200; ++i) {
+                dispatcher.receive(buffer("x"));
+            }
+            while (! done.await(1, TimeUnit.MILLISECONDS)) {
+                dispatcher.receive(buffer("z"));
+            }
+            assertTrue(dispatcher.getOverflowCount() > 0);
+            assertTrue(overflows.get() > 0);
+            assertEquals(1, maximumActive.get());
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+
+    @Test
+    public void testLargeBufferAndListenerException() {
+        RecordingListener listener = new RecordingListener();
+        listener.onReceive = () -> { throw new IllegalStateException(); };
+        Dispatcher dispatcher = new Dispatcher(listener, tasks::add, 4);
+        char[] large = new char[BufferPool.getDefault().getBufferSize() * 2];
+        Arrays.fill(large, 'L');
+        dispatcher.receive(buffer(new String(large)));
+        dispatcher.receive(buffer("b"));
+        runTasks();
+        assertEquals(Arrays.asList(new String(large), "b"), listener.events);
+    }
+
+
+    private void runTasks() {
+        while (! tasks.isEmpty()) {
+            tasks.remove().run();
+        }
+    }
+
+
+    private static ByteBuffer buffer(String text) {
+        return ByteBuffer.wrap(text.getBytes(StandardCharsets.US_ASCII));
+    }
+
+
+    private static class RecordingListener implements BufferListener {
+
+        @Override
+        public void receive(ByteBuffer buffer) {
+            byte[] bytes = new byte[buffer.remaining()];
+            buffer.get(bytes);
+            events.add(new String(bytes, StandardCharsets.US_ASCII));
+            if (onReceive != null) {
+                Runnable action = onReceive;
+                onReceive = null;
+                action.run();
+            }
+        }
+
+        @Override
+        public void handleException(Exception ex) {
+            events.add(ex.getMessage());
+        }
+
+        final List<String> events = new ArrayList<>();
+        Runnable onReceive;
+
+    }
+
+
+    private final Queue<Runnable> tasks = new ArrayDeque<>();
+
+    private static final String OVERFLOW = "Dispatch queue overflow";
+
+}
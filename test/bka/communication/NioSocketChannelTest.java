@@ -0,0 +1,119 @@
+/*
+** Copyright © Bart Kampers
+*/
+
+package bka.communication;
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.util.concurrent.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+
+public class NioSocketChannelTest {
+
+
+    @Before
+    public void setUp() throws Exception {
+        server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        channel = NioSocketChannel.create(new SocketMultiplexer(), server.getInetAddress().getHostAddress(), server.getLocalPort());
+        channel.addListener(listener);
+        channel.open("Test");
+        peer = server.accept();
+    }
+
+
+    @After
+    public void tearDown() throws Exception {
+        channel.close();
+        peer.close();
+        server.close();
+    }
+
+
+    @Test(timeout=5000)
+    public void testSend() throws Exception {
+        channel.send(new byte[] { 1, 2 });
+        channel.send(new ByteBuffer[] { ByteBuffer.wrap(new byte[] { 3 }), ByteBuffer.wrap(new byte[] { 0, 4, 5, 0 }, 1, 2) });
+        byte[] received = new byte[5];
+        new DataInputStream(peer.getInputStream()).readFully(received);
+        assertArrayEquals(new byte[] { 1, 2, 3, 4, 5 }, received);
+    }
+
+
+    @Test(timeout=5000)
+    public void testConcurrentGatheringSends() throws Exception {
+        final int count = 1000;
+        final int length = 32;
+        Thread[] senders = new Thread[2];
+        for (int i = 0; i < senders.length; ++i) {
+            byte value = (byte) (i + 1);
+            senders[i] = new Thread(() -> {
+                for (int n = 0; n < count; ++n) {
+                    ByteBuffer[] buffers = new ByteBuffer[length];
+                    for (int b = 0; b < length; ++b) {
+                        buffers[b] = ByteBuffer.wrap(new byte[] { value });
+                    }
+                    channel.send(buffers);
+                }
+            });
+            senders[i].start();
+        }
+        byte[] received = new byte[senders.length * count * length];
+        new DataInputStream(peer.getInputStream()).readFully(received);
+        for (int i = 0; i < received.length; ++i) {
+            assertEquals(received[i - i % length], received[i]);
+        }
+        for (Thread sender : senders) {
+            sender.join();
+        }
+    }
+
+
+    @Test(timeout=5000)
+    public void testReceive() throws Exception {
+        peer.getOutputStream().write(new byte[] { 1, 2, 3 });
+        peer.getOutputStream().flush();
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        while (received.size() < 3) {
+            received.write(listener.received.take());
+        }
+        assertArrayEquals(new byte[] { 1, 2, 3 }, received.toByteArray());
+    }
+
+
+    @Test(timeout=5000)
+    public void testConnectionClosedByPeer() throws Exception {
+        peer.close();
+        assertTrue(listener.exceptions.take() instanceof EOFException);
+    }
+
+
+    static class QueueingListener implements ChannelListener {
+
+        @Override
+        public void receive(byte[] bytes) {
+            received.add(bytes);
+        }
+
+        @Override
+        public void handleException(Exception e) {
+            exceptions.add(e);
+        }
+
+        final BlockingQueue<byte[]> received = new LinkedBlockingQueue<>();
+        final BlockingQueue<Exception> exceptions = new LinkedBlockingQueue<>();
+
+    }
+
+
+    private final QueueingListener listener = new QueueingListener();
+    private ServerSocket server;
+    private NioSocketChannel channel;
+    private Socket peer;
+
+}
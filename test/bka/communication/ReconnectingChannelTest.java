@@ -0,0 +1,140 @@
+/*
+** Copyright © Bart Kampers
+*/
+
+package bka.communication;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+
+public class ReconnectingChannelTest {
+
+
+    @Test(timeout=5000)
+    public void testReconnect() throws Exception {
+        TestChannel decorated = new TestChannel();
+        ReconnectingChannel channel = new ReconnectingChannel(decorated, 1, 4, TimeUnit.MILLISECONDS);
+        RecordingConnectionListener listener = new RecordingConnectionListener();
+        channel.addConnectionListener(listener);
+        channel.open("Test");
+        decorated.failingOpens.set(2);
+        decorated.fail();
+        assertFalse(channel.isConnected());
+        assertEquals(1, listener.lost.get());
+        channel.send(new byte[] { 1 });
+        assertEquals(1, channel.getDiscardedCount());
+        assertTrue(listener.restored.await(1, TimeUnit.SECONDS));
+        assertTrue(channel.isConnected());
+        assertEquals(1, channel.getReconnectCount());
+        assertEquals(4, decorated.openCount.get());
+        channel.send(new byte[] { 2 });
+        assertEquals(1, decorated.sentCount.get());
+        channel.close();
+        assertFalse(decorated.open);
+    }
+
+
+    @Test(timeout=5000)
+    public void testCloseDuringReconnect() throws Exception {
+        TestChannel decorated = new TestChannel();
+        ReconnectingChannel channel = new ReconnectingChannel(decorated, 1, 4, TimeUnit.MILLISECONDS);
+        RecordingConnectionListener listener = new RecordingConnectionListener();
+        channel.addConnectionListener(listener);
+        channel.open("Test");
+        CountDownLatch block = new CountDownLatch(1);
+        decorated.blockOpen = block;
+        decorated.fail();
+        try {
+            assertTrue(decorated.openEntered.await(1, TimeUnit.SECONDS));
+            decorated.fail();
+            channel.close();
+        }
+        finally {
+            block.countDown();
+        }
+        decorated.awaitClosedAfterOpen();
+        assertFalse(channel.isConnected());
+        assertEquals(0, channel.getReconnectCount());
+        assertEquals(1, listener.restored.getCount());
+    }
+
+
+    private static class TestChannel extends Channel {
+
+        @Override
+        public void open(String name) throws ChannelException {
+            CountDownLatch block = blockOpen;
+            if (block != null) {
+                blockOpen = null;
+                openEntered.countDown();
+                try {
+                    block.await();
+                }
+                catch (InterruptedException ex) {
+                    throw new ChannelException(ex);
+                }
+            }
+            openCount.incrementAndGet();
+            if (failingOpens.getAndDecrement() > 0) {
+                throw new ChannelException("Open failed");
+            }
+            synchronized (this) {
+                open = true;
+            }
+        }
+
+        @Override
+        public void send(byte[] bytes) {
+            sentCount.incrementAndGet();
+        }
+
+        @Override
+        public void close() throws ChannelException {
+            synchronized (this) {
+                open = false;
+                notifyAll();
+            }
+            super.close();
+        }
+
+        void fail() {
+            notifyListeners(new ChannelException("Connection lost"));
+        }
+
+        synchronized void awaitClosedAfterOpen() throws InterruptedException {
+            while (open || openCount.get() < 2) {
+                wait(1);
+            }
+        }
+
+        volatile boolean open;
+        volatile CountDownLatch blockOpen;
+        final CountDownLatch openEntered = new CountDownLatch(1);
+        final AtomicInteger failingOpens = new AtomicInteger();
+        final AtomicInteger openCount = new AtomicInteger();
+        final AtomicInteger sentCount = new AtomicInteger();
+
+    }
+
+
+    private static class RecordingConnectionListener implements ConnectionListener {
+
+        @Override
+        public void connectionLost(Exception cause) {
+            lost.incrementAndGet();
+        }
+
+        @Override
+        public void connectionRestored() {
+            restored.countDown();
+        }
+
+        final AtomicInteger lost = new AtomicInteger();
+        final CountDownLatch restored = new CountDownLatch(1);
+
+    }
+
+}
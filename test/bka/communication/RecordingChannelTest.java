@@ -0,0 +1,124 @@
+/*
+** Copyright © Bart Kampers
+*/
+
+package bka.communication;
+
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+
+public class RecordingChannelTest {
+
+
+    @Test(timeout=5000)
+    public void testRecord() throws Exception {
+        TestChannel decorated = new TestChannel();
+        RecordingChannel channel = new RecordingChannel(decorated, folder.getRoot(), SESSION, FILE_SIZE);
+        channel.open("Test");
+        channel.send(data(0));
+        decorated.receive(data(1));
+        channel.send(new ByteBuffer[] { ByteBuffer.wrap(data(2)) });
+        channel.close();
+        assertEquals(3, channel.getRecordedCount());
+        assertEquals(0, channel.getDroppedCount());
+        assertEquals(2, decorated.sentCount);
+        List<CaptureFile.Record> records = records();
+        assertEquals(3, records.size());
+        assertEquals(3, CaptureFile.files(folder.getRoot(), SESSION).size());
+        assertEquals(CaptureFile.Direction.SENT, records.get(0).getDirection());
+        assertEquals(CaptureFile.Direction.RECEIVED, records.get(1).getDirection());
+        assertEquals(CaptureFile.Direction.SENT, records.get(2).getDirection());
+        for (int i = 0; i < records.size(); ++i) {
+            assertEquals(ByteBuffer.wrap(data(i)), records.get(i).getData());
+        }
+    }
+
+
+    @Test(timeout=5000)
+    public void testReopenKeepsFiles() throws Exception {
+        RecordingChannel channel = new RecordingChannel(new TestChannel(), folder.getRoot(), SESSION, FILE_SIZE);
+        channel.open("Test");
+        channel.send(data(0));
+        channel.send(data(1));
+        channel.close();
+        channel.open("Test");
+        channel.send(data(2));
+        channel.close();
+        List<CaptureFile.Record> records = records();
+        assertEquals(3, records.size());
+        for (int i = 0; i < records.size(); ++i) {
+            assertEquals(ByteBuffer.wrap(data(i)), records.get(i).getData());
+        }
+    }
+
+
+    @Test(timeout=5000)
+    public void testWriterFailure() throws Exception {
+        RecordingChannel channel = new RecordingChannel(new TestChannel(), new File(folder.getRoot(), "Missing"), SESSION, FILE_SIZE);
+        channel.open("Test");
+        int count = 0x2000;
+        for (int i = 0; i < count; ++i) {
+            channel.send(data(i));
+        }
+        channel.close();
+        assertEquals(0, channel.getRecordedCount());
+        assertEquals(count, channel.getDroppedCount());
+    }
+
+
+    private List<CaptureFile.Record> records() throws IOException {
+        List<CaptureFile.Record> records = new ArrayList<>();
+        for (File file : CaptureFile.files(folder.getRoot(), SESSION)) {
+            try (CaptureFile.Reader reader = new CaptureFile.Reader(file)) {
+                CaptureFile.Record record = reader.next();
+                while (record != null) {
+                    records.add(record);
+                    record = reader.next();
+                }
+            }
+        }
+        return records;
+    }
+
+
+    private static byte[] data(int index) {
+        byte[] data = new byte[DATA_SIZE];
+        Arrays.fill(data, (byte) index);
+        return data;
+    }
+
+
+    private static class TestChannel extends Channel {
+
+        @Override
+        public void open(String name) {
+        }
+
+        @Override
+        public void send(byte[] bytes) {
+            sentCount++;
+        }
+
+        void receive(byte[] bytes) {
+            notifyListeners(bytes);
+        }
+
+        int sentCount;
+
+    }
+
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static final String SESSION = "Session";
+    private static final int DATA_SIZE = 20;
+    private static final int FILE_SIZE = Long.BYTES + CaptureFile.RECORD_HEADER_SIZE + DATA_SIZE;
+
+}
@@ -0,0 +1,80 @@
+/*
+** Copyright © Bart Kampers
+*/
+
+package bka.communication;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+
+public class ReplayChannelTest {
+
+
+    @Test(timeout=5000)
+    public void testRecordThenReplay() throws Exception {
+        TestChannel decorated = new TestChannel();
+        RecordingChannel recording = new RecordingChannel(decorated, folder.getRoot(), SESSION, FILE_SIZE);
+        recording.open("Test");
+        decorated.receive(new byte[] { 1, 2 });
+        recording.send(new byte[] { 3 });
+        decorated.receive(new byte[] { 4, 5, 6 });
+        decorated.receive(new byte[] { 7 });
+        recording.close();
+        assertTrue(CaptureFile.files(folder.getRoot(), SESSION).size() > 1);
+        ReplayChannel replay = ReplayChannel.create(folder.getRoot(), SESSION, ReplayChannel.MAXIMUM_SPEED);
+        List<byte[]> received = new CopyOnWriteArrayList<>();
+        replay.addListener(new ChannelListener() {
+            @Override
+            public void receive(byte[] bytes) {
+                received.add(bytes);
+            }
+
+            @Override
+            public void handleException(Exception e) {
+                fail(e.getMessage());
+            }
+        });
+        replay.open("Replay");
+        replay.send(new byte[] { 8, 9 });
+        assertTrue(replay.awaitCompletion(1, TimeUnit.SECONDS));
+        replay.close();
+        assertEquals(3, received.size());
+        assertArrayEquals(new byte[] { 1, 2 }, received.get(0));
+        assertArrayEquals(new byte[] { 4, 5, 6 }, received.get(1));
+        assertArrayEquals(new byte[] { 7 }, received.get(2));
+        assertEquals(3, replay.getReplayedRecordCount());
+        assertEquals(6, replay.getReplayedByteCount());
+        assertEquals(2, replay.getDiscardedByteCount());
+    }
+
+
+    private static class TestChannel extends Channel {
+
+        @Override
+        public void open(String name) {
+        }
+
+        @Override
+        public void send(byte[] bytes) {
+        }
+
+        void receive(byte[] bytes) {
+            notifyListeners(bytes);
+        }
+
+    }
+
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static final String SESSION = "Session";
+    private static final int FILE_SIZE = Long.BYTES + 2 * (CaptureFile.RECORD_HEADER_SIZE + 3);
+
+}
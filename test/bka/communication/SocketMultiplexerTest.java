@@ -0,0 +1,86 @@
+/*
+** Copyright © Bart Kampers
+*/
+
+package bka.communication;
+
+import java.net.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+
+public class SocketMultiplexerTest {
+
+
+    @Before
+    public void setUp() throws Exception {
+        server = new ServerSocket(0, 2, InetAddress.getLoopbackAddress());
+        SocketMultiplexer multiplexer = new SocketMultiplexer();
+        failing = open(multiplexer);
+        failingPeer = server.accept();
+        working = open(multiplexer);
+        workingPeer = server.accept();
+    }
+
+
+    @After
+    public void tearDown() throws Exception {
+        failing.close();
+        working.close();
+        failingPeer.close();
+        workingPeer.close();
+        server.close();
+    }
+
+
+    @Test(timeout=5000)
+    public void testListenerException() throws Exception {
+        NioSocketChannelTest.QueueingListener failingListener = new NioSocketChannelTest.QueueingListener() {
+            @Override
+            public void receive(byte[] bytes) {
+                super.receive(bytes);
+                throw new IllegalStateException("Listener failure");
+            }
+        };
+        NioSocketChannelTest.QueueingListener workingListener = new NioSocketChannelTest.QueueingListener();
+        failing.addListener(failingListener);
+        working.addListener(workingListener);
+        for (int i = 1; i <= 3; ++i) {
+            failingPeer.getOutputStream().write(i);
+            workingPeer.getOutputStream().write(i);
+            assertArrayEquals(new byte[] { (byte) i }, failingListener.received.take());
+            assertArrayEquals(new byte[] { (byte) i }, workingListener.received.take());
+        }
+        assertTrue(failingListener.exceptions.isEmpty());
+        assertTrue(workingListener.exceptions.isEmpty());
+    }
+
+
+    @Test(timeout=5000)
+    public void testCloseKeepsOtherChannel() throws Exception {
+        NioSocketChannelTest.QueueingListener listener = new NioSocketChannelTest.QueueingListener();
+        working.addListener(listener);
+        failing.close();
+        working.send(new byte[] { 7 });
+        assertEquals(7, workingPeer.getInputStream().read());
+        workingPeer.getOutputStream().write(8);
+        assertArrayEquals(new byte[] { 8 }, listener.received.take());
+    }
+
+
+    private NioSocketChannel open(SocketMultiplexer multiplexer) throws ChannelException {
+        NioSocketChannel channel = NioSocketChannel.create(multiplexer, server.getInetAddress().getHostAddress(), server.getLocalPort());
+        channel.open("Test");
+        return channel;
+    }
+
+
+    private ServerSocket server;
+    private NioSocketChannel failing;
+    private NioSocketChannel working;
+    private Socket failingPeer;
+    private Socket workingPeer;
+
+}
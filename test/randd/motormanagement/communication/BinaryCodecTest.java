@@ -0,0 +1,190 @@
+/*
+** Copyright © Bart Kampers
+*/
+
+package randd.motormanagement.communication;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.charset.*;
+import java.util.*;
+import org.json.*;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+
+public class BinaryCodecTest {
+
+
+    @Before
+    public void setUp() {
+        objects = new ArrayList<>();
+        errors = new ArrayList<>();
+        decoder = new FrameDecoder(objects::add, errors::add);
+    }
+
+
+    @Test
+    public void testRoundTrip() throws JSONException {
+        JSONObject message = new JSONObject(
+            "{\"Direction\":\"Return\",\"Function\":\"GetTableFields\",\"Status\":\"OK\",\"ReturnValue\":" +
+            "{\"TableName\":\"Ignition\",\"Fields\":[[10.5,12.25,-3.1],[1,2,3]],\"Bytes\":[0,127,255]," +
+            "\"Large\":1234567890123,\"Precise\":0.1234567891,\"Name\":\"Grüße\",\"Minimum\":null,\"Enabled\":true}}");
+        byte[] frame = Framing.BINARY.encode(message);
+        assertEquals(BinaryCodec.FRAME_MARKER, frame[0]);
+        assertTrue(frame.length < Framing.JSON.encode(message).length / 2);
+        decoder.decode(frame);
+        assertTrue(errors.isEmpty());
+        assertEquals(1, objects.size());
+        JSONObject decoded = objects.get(0);
+        assertEquals("GetTableFields", decoded.getString("Function"));
+        JSONObject returnValue = decoded.getJSONObject("ReturnValue");
+        JSONArray fields = returnValue.getJSONArray("Fields");
+        assertEquals(10.5, fields.getJSONArray(0).getDouble(0), 0.0);
+        assertEquals(-3.1, fields.getJSONArray(0).getDouble(2), 0.0);
+        assertEquals(3, fields.getJSONArray(1).getInt(2));
+        assertEquals(255, returnValue.getJSONArray("Bytes").getInt(2));
+        assertEquals(1234567890123L, returnValue.getLong("Large"));
+        assertEquals(0.1234567891, returnValue.getDouble("Precise"), 0.0);
+        assertEquals("Grüße", returnValue.getString("Name"));
+        assertTrue(returnValue.isNull("Minimum"));
+        assertTrue(returnValue.getBoolean("Enabled"));
+    }
+
+
+    @Test
+    public void testMixedFramesSplit() throws JSONException {
+        byte[] binary = Framing.BINARY.encode(new JSONObject("{\"Value\":1,\"Text\":\"\\n\"}"));
+        byte[] json = Framing.JSON.encode(new JSONObject("{\"Value\":2}"));
+        ByteBuffer stream = ByteBuffer.allocate(binary.length * 2 + json.length);
+        stream.put(binary).put(json).put(binary).flip();
+        while (stream.hasRemaining()) {
+            decoder.decode(new byte[] { stream.get() });
+        }
+        assertTrue(errors.isEmpty());
+        assertEquals(3, objects.size());
+        assertEquals(1, objects.get(0).getInt("Value"));
+        assertEquals("\n", objects.get(0).getString("Text"));
+        assertEquals(2, objects.get(1).getInt("Value"));
+        assertEquals(1, objects.get(2).getInt("Value"));
+    }
+
+
+    @Test
+    public void testInvalidPayload() throws JSONException {
+        decoder.decode(checkedFrame(BinaryCodec.FRAME_MARKER, 0x0B, 0x7E));
+        decoder.decode("{\"Value\":3}\n".getBytes(StandardCharsets.UTF_8));
+        assertEquals(1, errors.size());
+        assertEquals(1, objects.size());
+        assertEquals(3, objects.get(0).getInt("Value"));
+    }
+
+
+    @Test
+    public void testCorruptedFrame() throws JSONException {
+        byte[] corrupted = Framing.BINARY.encode(new JSONObject("{\"Value\":1}"));
+        corrupted[corrupted.length / 2] ^= 0x10;
+        decoder.decode(corrupted);
+        decoder.decode(Framing.BINARY.encode(new JSONObject("{\"Value\":2}")));
+        decoder.decode(Framing.JSON.encode(new JSONObject("{\"Value\":3}")));
+        assertFalse(errors.isEmpty());
+        assertEquals(2, objects.size());
+        assertEquals(2, objects.get(0).getInt("Value"));
+        assertEquals(3, objects.get(1).getInt("Value"));
+    }
+
+
+    @Test
+    public void testTruncatedFrame() throws JSONException {
+        byte[] frame = Framing.BINARY.encode(new JSONObject("{\"Value\":1}"));
+        decoder.decode(Arrays.copyOf(frame, frame.length - 1));
+        decoder.decode(frame);
+        decoder.decode(frame);
+        assertFalse(errors.isEmpty());
+        assertEquals(2, objects.size());
+        assertEquals(1, objects.get(0).getInt("Value"));
+        assertEquals(1, objects.get(1).getInt("Value"));
+    }
+
+
+    @Test
+    public void testInvalidLength() throws JSONException {
+        decoder.decode(new byte[] { BinaryCodec.FRAME_MARKER, (byte) 0xFF, (byte) 0xFF });
+        decoder.decode(Framing.BINARY.encode(new JSONObject("{\"Value\":1}")));
+        assertFalse(errors.isEmpty());
+        assertEquals(1, objects.size());
+        assertEquals(1, objects.get(0).getInt("Value"));
+    }
+
+
+    @Test
+    public void testStrayMarkersBetweenJsonFrames() throws JSONException {
+        decoder.decode(new byte[] { BinaryCodec.FRAME_MARKER });
+        decoder.decode(Framing.JSON.encode(new JSONObject("{\"Value\":1}")));
+        decoder.decode(new byte[] { FrameCompressor.FRAME_MARKER });
+        for (int value = 2; value <= 20; ++value) {
+            decoder.decode(Framing.JSON.encode(new JSONObject().put("Value", value)));
+        }
+        assertEquals(20, objects.size());
+        for (int i = 0; i < objects.size(); ++i) {
+            assertEquals(i + 1, objects.get(i).getInt("Value"));
+        }
+    }
+
+
+    @Test
+    public void testWithId() throws JSONException {
+        char[] text = new char[120];
+        Arrays.fill(text, 'x');
+        JSONObject[] messages = {
+            new JSONObject("{\"Function\":\"GetMeasurements\"}"),
+            new JSONObject().put("Text", new String(text)),
+            new JSONObject()
+        };
+        for (Framing framing : Framing.values()) {
+            for (JSONObject message : messages) {
+                byte[] frame = framing.encode(message);
+                byte[] original = frame.clone();
+                decoder.decode(joined(framing.withId(frame, 0x7FFF)));
+                assertArrayEquals(original, frame);
+            }
+        }
+        assertTrue(errors.isEmpty());
+        assertEquals(messages.length * Framing.values().length, objects.size());
+        for (int i = 0; i < objects.size(); ++i) {
+            JSONObject expected = new JSONObject(messages[i % messages.length].toString()).put(Messenger.ID, 0x7FFF);
+            assertEquals(expected.toString(), objects.get(i).toString());
+        }
+    }
+
+
+    private static byte[] joined(ByteBuffer[] buffers) {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        for (ByteBuffer buffer : buffers) {
+            stream.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+        }
+        return stream.toByteArray();
+    }
+
+
+    /**
+     * @return frame of given marker and payload, with a valid length and CRC
+     */
+    static byte[] checkedFrame(byte marker, int... payload) {
+        byte[] frame = new byte[payload.length + 2 + BinaryCodec.CRC_SIZE];
+        frame[0] = marker;
+        frame[1] = (byte) payload.length;
+        for (int i = 0; i < payload.length; ++i) {
+            frame[i + 2] = (byte) payload[i];
+        }
+        BinaryCodec.putCrc(frame, 2, payload.length);
+        return frame;
+    }
+
+
+    private List<JSONObject> objects;
+    private List<String> errors;
+    private FrameDecoder decoder;
+
+}
@@ -0,0 +1,65 @@
+/*
+** Copyright © Bart Kampers
+*/
+
+package randd.motormanagement.communication;
+
+import java.util.*;
+import org.json.*;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+
+public class FrameCompressorTest {
+
+
+    @Before
+    public void setUp() {
+        objects = new ArrayList<>();
+        errors = new ArrayList<>();
+        decoder = new FrameDecoder(objects::add, errors::add);
+    }
+
+
+    @Test
+    public void testRoundTrip() throws JSONException {
+        JSONObject message = new JSONObject(
+            "{\"Direction\":\"Return\",\"Function\":\"GetMeasurements\",\"Status\":\"OK\",\"ReturnValue\":" +
+            "{\"RPM\":{\"Value\":3500,\"Simulation\":false},\"Load\":{\"Value\":42.5,\"Simulation\":true}," +
+            "\"Water\":{\"Value\":88,\"Simulation\":false}}}");
+        FrameCompressor compressor = new FrameCompressor();
+        byte[] frame = Framing.JSON.encode(message);
+        byte[] compressed = compressor.compress(frame);
+        assertEquals(FrameCompressor.FRAME_MARKER, compressed[0]);
+        assertTrue(compressed.length < frame.length / 2);
+        for (byte b : compressed) {
+            decoder.decode(new byte[] { b });
+        }
+        decoder.decode(compressor.compress(Framing.BINARY.encode(message)));
+        assertTrue(errors.isEmpty());
+        assertEquals(2, objects.size());
+        for (JSONObject decoded : objects) {
+            assertEquals(42.5, decoded.getJSONObject("ReturnValue").getJSONObject("Load").getDouble("Value"), 0.0);
+            assertTrue(decoded.getJSONObject("ReturnValue").getJSONObject("Load").getBoolean("Simulation"));
+        }
+    }
+
+
+    @Test
+    public void testUncompressedAndInvalid() throws JSONException {
+        byte[] frame = Framing.JSON.encode(new JSONObject("{\"Value\":1}"));
+        assertSame(frame, new FrameCompressor().compress(frame));
+        decoder.decode(BinaryCodecTest.checkedFrame(FrameCompressor.FRAME_MARKER, 0x12, 0x34, 0x56));
+        decoder.decode(frame);
+        assertEquals(1, errors.size());
+        assertEquals(1, objects.size());
+        assertEquals(1, objects.get(0).getInt("Value"));
+    }
+
+
+    private List<JSONObject> objects;
+    private List<String> errors;
+    private FrameDecoder decoder;
+
+}
@@ -0,0 +1,96 @@
+/*
+** Copyright © Bart Kampers
+*/
+
+package randd.motormanagement.communication;
+
+import bka.communication.*;
+import java.nio.charset.*;
+import java.util.concurrent.*;
+import org.json.*;
+import org.junit.Test;
+import randd.motormanagement.emulator.*;
+import static org.junit.Assert.*;
+
+
+public class JsonLinkProbeTest {
+
+
+    @Test(timeout=5000)
+    public void testEmulator() throws Exception {
+        Channel channel = new EmulatorChannel();
+        channel.open("Probe");
+        try {
+            LinkProbe.Result result = new JsonLinkProbe(EXCHANGE_COUNT, 1, TimeUnit.SECONDS).probe(channel);
+            assertTrue(result.isReliable());
+            assertEquals(EXCHANGE_COUNT, result.getExchangeCount());
+        }
+        finally {
+            channel.close();
+        }
+    }
+
+
+    @Test(timeout=5000)
+    public void testOtherFramesIgnored() throws Exception {
+        LinkProbe.Result result = new JsonLinkProbe(EXCHANGE_COUNT, 1, TimeUnit.SECONDS).probe(new RespondingChannel(true));
+        assertTrue(result.isReliable());
+        assertEquals(EXCHANGE_COUNT, result.getExchangeCount());
+    }
+
+
+    @Test(timeout=5000)
+    public void testWrongIdFails() throws Exception {
+        LinkProbe.Result result = new JsonLinkProbe(EXCHANGE_COUNT, 100, TimeUnit.MILLISECONDS).probe(new RespondingChannel(false));
+        assertFalse(result.isReliable());
+        assertEquals(1, result.getExchangeCount());
+        assertEquals(1, result.getErrorCount());
+    }
+
+
+    /**
+     * Answers each call with a notification and a return of another call.
+     * Then returns the call itself if so configured.
+     */
+    private class RespondingChannel extends Channel {
+
+        RespondingChannel(boolean answer) {
+            this.answer = answer;
+        }
+
+        @Override
+        public void open(String name) {
+        }
+
+        @Override
+        public void send(byte[] bytes) {
+            try {
+                JSONObject call = new JSONObject(new String(bytes, StandardCharsets.UTF_8));
+                int id = call.getInt(Messenger.ID);
+                respond(new JSONObject().put(Messenger.DIRECTION, Messenger.FIRE).put(Messenger.FUNCTION, "Notification"));
+                respond(response(call).put(Messenger.ID, id + 1000));
+                if (answer) {
+                    respond(response(call).put(Messenger.ID, id));
+                }
+            }
+            catch (JSONException ex) {
+                notifyListeners(ex);
+            }
+        }
+
+        private JSONObject response(JSONObject call) throws JSONException {
+            return new JSONObject().put(Messenger.DIRECTION, Messenger.RETURN).put(Messenger.FUNCTION, call.getString(Messenger.FUNCTION));
+        }
+
+        private void respond(JSONObject object) {
+            notifyListeners(Framing.JSON.encode(object));
+        }
+
+        private final boolean answer;
+
+    }
+
+
+    private static final int EXCHANGE_COUNT = 4;
+
+}
@@ -0,0 +1,87 @@
+/*
+** Copyright © Bart Kampers
+*/
+
+package randd.motormanagement.communication;
+
+import java.nio.*;
+import java.nio.charset.*;
+import java.util.*;
+import org.json.*;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+
+public class JsonTokenizerTest {
+
+
+    @Before
+    public void setUp() {
+        objects = new ArrayList<>();
+        errors = new ArrayList<>();
+        tokenizer = new JsonTokenizer(new JsonObjectBuilder(objects::add, errors::add));
+    }
+
+
+    @Test
+    public void testObject() throws JSONException {
+        parse("{\"Direction\":\"Return\",\"ReturnValue\":{\"Fields\":[[1,2.5],[-3,4e2]],\"Enabled\":true,\"Minimum\":null}}\n");
+        assertEquals(1, objects.size());
+        assertTrue(errors.isEmpty());
+        JSONObject object = objects.get(0);
+        assertEquals("Return", object.getString("Direction"));
+        JSONObject returnValue = object.getJSONObject("ReturnValue");
+        JSONArray fields = returnValue.getJSONArray("Fields");
+        assertEquals(1, fields.getJSONArray(0).getInt(0));
+        assertEquals(2.5, fields.getJSONArray(0).getDouble(1), 0.0);
+        assertEquals(-3, fields.getJSONArray(1).getInt(0));
+        assertEquals(400.0, fields.getJSONArray(1).getDouble(1), 0.0);
+        assertTrue(returnValue.getBoolean("Enabled"));
+        assertTrue(returnValue.isNull("Minimum"));
+    }
+
+
+    @Test
+    public void testSplitFrames() throws JSONException {
+        byte[] bytes = "{\"Name\":\"Grüße € \\u0041\\n\"}\n{\"Value\":12345}\n".getBytes(StandardCharsets.UTF_8);
+        for (byte b : bytes) {
+            tokenizer.parse(ByteBuffer.wrap(new byte[] { b }));
+        }
+        assertEquals(2, objects.size());
+        assertTrue(errors.isEmpty());
+        assertEquals("Grüße € A\n", objects.get(0).getString("Name"));
+        assertEquals(12345, objects.get(1).getInt("Value"));
+    }
+
+
+    @Test
+    public void testResynchronization() throws JSONException {
+        parse("{\"A\":1,\"B\"}\n\r\n{\"C\":[1,\n{\"D\":tru}\n[1]\n{\"E\":2}\n");
+        assertEquals(1, objects.size());
+        assertEquals(2, objects.get(0).getInt("E"));
+        assertEquals(4, errors.size());
+    }
+
+
+    @Test
+    public void testReset() throws JSONException {
+        parse("{\"A\":[1,2");
+        tokenizer.reset();
+        parse("{\"B\":3}\n");
+        assertEquals(1, objects.size());
+        assertEquals(3, objects.get(0).getInt("B"));
+        assertEquals(1, errors.size());
+    }
+
+
+    private void parse(String string) {
+        tokenizer.parse(ByteBuffer.wrap(string.getBytes(StandardCharsets.UTF_8)));
+    }
+
+
+    private List<JSONObject> objects;
+    private List<String> errors;
+    private JsonTokenizer tokenizer;
+
+}
@@ -0,0 +1,48 @@
+/*
+** Copyright © Bart Kampers
+*/
+
+package randd.motormanagement.communication;
+
+import java.util.concurrent.*;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+
+public class LatencyHistogramTest {
+
+
+    @Test
+    public void testPercentile() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getPercentile(50, TimeUnit.NANOSECONDS));
+        for (int i = 1; i <= 1000; ++i) {
+            histogram.record(TimeUnit.MICROSECONDS.toNanos(i));
+        }
+        assertEquals(1000, histogram.getCount());
+        assertEquals(500, histogram.getMean(TimeUnit.MICROSECONDS));
+        assertEquals(1000, histogram.getMaximum(TimeUnit.MICROSECONDS));
+        long median = histogram.getPercentile(50, TimeUnit.MICROSECONDS);
+        assertTrue(median >= 500 && median <= 500 * 1.125);
+        long p99 = histogram.getPercentile(99, TimeUnit.MICROSECONDS);
+        assertTrue(p99 >= 990 && p99 <= 1000);
+        assertEquals(1000, histogram.getPercentile(100, TimeUnit.MICROSECONDS));
+    }
+
+
+    @Test
+    public void testSmallAndLargeValues() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < 8; ++i) {
+            histogram.record(i);
+        }
+        assertEquals(3, histogram.getPercentile(50, TimeUnit.NANOSECONDS));
+        assertEquals(7, histogram.getPercentile(100, TimeUnit.NANOSECONDS));
+        histogram.record(Long.MAX_VALUE);
+        assertEquals(9, histogram.getCount());
+        assertEquals(36, histogram.getMaximum(TimeUnit.MINUTES));
+        assertEquals(histogram.getMaximum(TimeUnit.NANOSECONDS), histogram.getPercentile(100, TimeUnit.NANOSECONDS));
+        assertTrue(histogram.getMean(TimeUnit.MINUTES) >= 4);
+    }
+
+}
@@ -11,6 +11,8 @@ import java.util.logging.*;
 
 import org.json.*;
 
+import randd.motormanagement.emulator.*;
+
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
 import org.junit.Test;
@@ -286,6 +288,34 @@ public class MessagingTest {
     }
     
     
+    @Test(timeout=1000)
+    public void batch() throws JSONException, InterruptedException {
+        JSONObject message = new JSONObject(
+            "{" +
+                "\"Direction\" : \"Call\"," +
+                "\"Function\" : \"Batch\"," +
+                "\"Parameters\" : {" +
+                    "\"Calls\" : [" +
+                        "{ \"Direction\" : \"Call\", \"Function\" : \"GetTableNames\" }," +
+                        "{ \"Direction\" : \"Call\", \"Function\" : \"GetTableProperties\", \"Parameters\" : { \"TableName\" : \"Invalid\" } }," +
+                        "{ \"Direction\" : \"Call\", \"Function\" : \"GetEngineProperties\" }" +
+                    "]" +
+                "}" +
+            "}");
+        JSONObject response = receiveResponse(message);
+        assertTrue(isResponse(response, message));
+        assertEquals(OK_STATUS, response.getString(STATUS));
+        JSONArray returns = response.getJSONArray("ReturnValue");
+        assertEquals(3, returns.length());
+        assertEquals("GetTableNames", returns.getJSONObject(0).getString("Function"));
+        assertEquals(OK_STATUS, returns.getJSONObject(0).getString(STATUS));
+        assertEquals("GetTableProperties", returns.getJSONObject(1).getString("Function"));
+        assertFalse(OK_STATUS.equals(returns.getJSONObject(1).getString(STATUS)));
+        assertEquals("GetEngineProperties", returns.getJSONObject(2).getString("Function"));
+        assertEquals(OK_STATUS, returns.getJSONObject(2).getString(STATUS));
+    }
+    
+    
     @Test(timeout=1000)
     public void getTableActualValues() throws JSONException, InterruptedException {
         // Valid name
@@ -736,7 +766,7 @@ public class MessagingTest {
             channelName = properties.getProperty(CHANNEL);
         }
         catch (java.io.IOException ex) {
-            channelName = "localhost";
+            channelName = EmulatorChannel.NAME;
             properties.setProperty(CHANNEL, channelName);
             try {
                 properties.store(new java.io.FileOutputStream(propertiesFile), "Messaging Test properties");
@@ -745,7 +775,10 @@ public class MessagingTest {
                 Logger.getLogger(MessagingTest.class.getName()).log(Level.WARNING, "Store properties failed", ioEx);
             }
         }
-        if (channelName.startsWith("COM")) {
+        if (EmulatorChannel.NAME.equals(channelName)) {
+            return new EmulatorChannel();
+        }
+        else if (channelName.startsWith("COM")) {
             try {
                 return SerialPortChannel.create(channelName);
             }
@@ -5,6 +5,8 @@
 package randd.motormanagement.communication;
 
 import bka.communication.*;
+import java.util.*;
+import java.util.concurrent.*;
 import org.json.*;
 import org.junit.After;
 import org.junit.AfterClass;
@@ -14,6 +16,7 @@ import org.junit.Test;
 import static org.junit.Assert.*;
 import org.mockito.*;
 import static org.mockito.Mockito.when;
+import randd.motormanagement.emulator.*;
 
 
 public class MessengerTest {
@@ -142,6 +145,403 @@ public class MessengerTest {
     }
 
 
+    @Test(timeout=5000)
+    public void testWindowOutOfOrder() throws Exception {
+        HoldingChannel channel = new HoldingChannel(true);
+        Messenger pipelined = start(channel, 4);
+        try {
+            pipelined.send(call("GetEngineProperties")).get();
+            channel.hold();
+            List<CompletableFuture<JSONObject>> futures = new ArrayList<>();
+            for (String table : TABLES) {
+                futures.add(pipelined.send(tableCall(table)));
+            }
+            channel.awaitCalls(5);
+            Thread.sleep(50);
+            assertEquals(5, channel.getCallCount());
+            channel.releaseReversed();
+            for (int i = 0; i < TABLES.length; ++i) {
+                assertEquals(TABLES[i], tableName(futures.get(i).get()));
+            }
+            assertEquals(6, channel.getCallCount());
+        }
+        finally {
+            pipelined.stop();
+        }
+    }
+
+
+    @Test(timeout=5000)
+    public void testStopAndWaitWithoutId() throws Exception {
+        HoldingChannel channel = new HoldingChannel(false);
+        Messenger pipelined = start(channel, 4);
+        try {
+            channel.hold();
+            List<CompletableFuture<JSONObject>> futures = new ArrayList<>();
+            for (String table : TABLES) {
+                futures.add(pipelined.send(tableCall(table)));
+            }
+            channel.awaitCalls(1);
+            Thread.sleep(50);
+            assertEquals(1, channel.getCallCount());
+            channel.releaseReversed();
+            for (int i = 0; i < TABLES.length; ++i) {
+                assertEquals(TABLES[i], tableName(futures.get(i).get()));
+            }
+        }
+        finally {
+            pipelined.stop();
+        }
+    }
+
+
+    @Test(timeout=30000)
+    public void testIdWrapAround() throws Exception {
+        HoldingChannel channel = new HoldingChannel(true);
+        Messenger pipelined = start(channel, 8);
+        try {
+            int count = ID_COUNT + 8;
+            List<CompletableFuture<JSONObject>> futures = new ArrayList<>();
+            for (int i = 0; i < count; ++i) {
+                futures.add(pipelined.send(tableCall(TABLES[i % TABLES.length])));
+            }
+            for (int i = 0; i < count; ++i) {
+                try {
+                    assertEquals(TABLES[i % TABLES.length], tableName(futures.get(i).get()));
+                }
+                catch (ExecutionException ex) {
+                    assertTrue(ex.getCause() instanceof TimeoutException);
+                }
+                assertEquals(i % ID_COUNT, channel.getId(i));
+            }
+            assertEquals(count, channel.getCallCount());
+        }
+        finally {
+            pipelined.stop();
+        }
+    }
+
+
+    @Test(timeout=5000)
+    public void testAbortOutstanding() throws Exception {
+        HoldingChannel channel = new HoldingChannel(true);
+        Messenger pipelined = start(channel, 4);
+        try {
+            pipelined.send(call("GetEngineProperties")).get();
+            channel.hold();
+            CompletableFuture<JSONObject> first = pipelined.send(tableCall("Injection"));
+            CompletableFuture<JSONObject> second = pipelined.send(tableCall("WaterCorrection"));
+            channel.awaitCalls(3);
+            pipelined.abortOutstanding();
+            assertTrue(first.isCancelled());
+            assertTrue(second.isCancelled());
+            channel.releaseReversed();
+            assertEquals("AirCorrection", tableName(pipelined.send(tableCall("AirCorrection")).get()));
+        }
+        finally {
+            pipelined.stop();
+        }
+    }
+
+
+    @Test(timeout=5000)
+    public void testMessageUnchanged() throws Exception {
+        HoldingChannel channel = new HoldingChannel(true);
+        Messenger pipelined = start(channel, 1);
+        try {
+            JSONObject call = tableCall("Ignition");
+            String text = call.toString();
+            pipelined.send(call).get();
+            assertEquals(text, call.toString());
+            assertEquals(0, channel.getId(0));
+        }
+        finally {
+            pipelined.stop();
+        }
+    }
+
+
+    @Test(timeout=5000)
+    public void testFireTakesNoWindow() throws Exception {
+        HoldingChannel channel = new HoldingChannel(true);
+        Messenger pipelined = start(channel, 1);
+        try {
+            channel.hold();
+            JSONObject fire = new JSONObject();
+            fire.put(Messenger.DIRECTION, Messenger.FIRE);
+            fire.put("Notification", "Test");
+            assertNull(pipelined.send(fire).get());
+            assertFalse(fire.has(Messenger.ID));
+            CompletableFuture<JSONObject> future = pipelined.send(tableCall("Ignition"));
+            channel.awaitCalls(2);
+            channel.releaseReversed();
+            assertEquals("Ignition", tableName(future.get()));
+        }
+        finally {
+            pipelined.stop();
+        }
+    }
+
+
+    @Test(timeout=5000)
+    public void testBatchFallback() throws Exception {
+        HoldingChannel channel = new HoldingChannel(true);
+        channel.getEmulator().setBatchSupported(false);
+        Messenger batching = start(channel, 8);
+        batching.setBatching(true);
+        try {
+            channel.hold();
+            List<CompletableFuture<JSONObject>> futures = new ArrayList<>();
+            futures.add(batching.send(tableCall(TABLES[0])));
+            channel.awaitCalls(1);
+            for (int i = 1; i < TABLES.length; ++i) {
+                futures.add(batching.send(tableCall(TABLES[i])));
+            }
+            channel.releaseReversed();
+            for (int i = 0; i < TABLES.length; ++i) {
+                assertEquals(TABLES[i], tableName(futures.get(i).get()));
+            }
+            assertEquals("Batch", channel.getCall(1).getString(Messenger.FUNCTION));
+            assertEquals(TABLES.length + 1, channel.getCallCount());
+            for (int i = 1; i < TABLES.length; ++i) {
+                assertEquals(TABLES[i], channel.getCall(i + 1).getJSONObject(Messenger.PARAMETERS).getString("TableName"));
+            }
+            assertEquals(TABLES[1], tableName(batching.send(tableCall(TABLES[1])).get()));
+            assertEquals("GetTableProperties", channel.getCall(TABLES.length + 1).getString(Messenger.FUNCTION));
+        }
+        finally {
+            batching.stop();
+        }
+    }
+
+
+    @Test(timeout=5000)
+    public void testReadRetried() throws Exception {
+        HoldingChannel channel = new HoldingChannel(true);
+        Messenger retrying = start(channel, 1);
+        try {
+            retrying.send(new EncodedRequest(tableCall("Ignition"))).get();
+            channel.drop(1);
+            assertEquals("Injection", tableName(retrying.send(new EncodedRequest(tableCall("Injection"))).get()));
+            assertEquals(3, channel.getCallCount());
+            assertEquals(1, retrying.getTimeoutCount());
+            assertEquals(1, retrying.getRecoveredCount());
+        }
+        finally {
+            retrying.stop();
+        }
+    }
+
+
+    @Test(timeout=5000)
+    public void testReadTimeout() throws Exception {
+        HoldingChannel channel = new HoldingChannel(true);
+        Messenger retrying = start(channel, 1);
+        try {
+            retrying.send(new EncodedRequest(tableCall("Ignition"))).get();
+            channel.drop(3);
+            try {
+                retrying.send(new EncodedRequest(tableCall("Injection"))).get();
+                fail("TimeoutException expected");
+            }
+            catch (ExecutionException ex) {
+                assertTrue(ex.getCause() instanceof TimeoutException);
+            }
+            assertEquals(4, channel.getCallCount());
+            assertEquals(3, retrying.getTimeoutCount());
+            assertEquals(0, retrying.getRecoveredCount());
+            assertEquals("Ignition", tableName(retrying.send(new EncodedRequest(tableCall("Ignition"))).get()));
+        }
+        finally {
+            retrying.stop();
+        }
+    }
+
+
+    @Test(timeout=5000)
+    public void testWriteTimeout() throws Exception {
+        HoldingChannel channel = new HoldingChannel(true);
+        Messenger retrying = start(channel, 1);
+        try {
+            channel.drop(1);
+            JSONObject parameters = new JSONObject();
+            parameters.put("CylinderCount", 4);
+            JSONObject write = call("SetCylinderCount");
+            write.put(Messenger.PARAMETERS, parameters);
+            try {
+                retrying.send(write).get();
+                fail("TimeoutException expected");
+            }
+            catch (ExecutionException ex) {
+                assertTrue(ex.getCause() instanceof TimeoutException);
+            }
+            assertEquals(1, channel.getCallCount());
+            assertEquals(1, retrying.getTimeoutCount());
+            assertEquals(0, retrying.getRecoveredCount());
+        }
+        finally {
+            retrying.stop();
+        }
+    }
+
+
+    @Test(timeout=5000)
+    public void testFlushPerWindow() throws Exception {
+        CoalescingChannel channel = new CoalescingChannel(new HoldingChannel(true), 0x10000, 1, TimeUnit.HOURS);
+        Messenger pipelined = new Messenger(new Transporter(channel, "MessengerTest"));
+        pipelined.setWindowSize(8);
+        pipelined.setBatching(false);
+        List<CompletableFuture<JSONObject>> futures = new ArrayList<>();
+        for (String table : TABLES) {
+            futures.add(pipelined.send(tableCall(table)));
+        }
+        pipelined.start();
+        try {
+            for (int i = 0; i < TABLES.length; ++i) {
+                assertEquals(TABLES[i], tableName(futures.get(i).get()));
+            }
+            assertEquals(TABLES.length, channel.getFrameCount());
+            assertEquals(2, channel.getGatheringSendCount());
+        }
+        finally {
+            pipelined.stop();
+        }
+    }
+
+
+    private static Messenger start(Channel channel, int windowSize) throws ChannelException {
+        Messenger messenger = new Messenger(new Transporter(channel, "MessengerTest"));
+        messenger.setWindowSize(windowSize);
+        messenger.setBatching(false);
+        messenger.start();
+        return messenger;
+    }
+
+
+    private static JSONObject tableCall(String table) throws JSONException {
+        JSONObject parameters = new JSONObject();
+        parameters.put("TableName", table);
+        JSONObject call = call("GetTableProperties");
+        call.put(Messenger.PARAMETERS, parameters);
+        return call;
+    }
+
+
+    private static JSONObject call(String function) throws JSONException {
+        JSONObject call = new JSONObject();
+        call.put(Messenger.DIRECTION, Messenger.CALL);
+        call.put(Messenger.FUNCTION, function);
+        return call;
+    }
+
+
+    private static String tableName(JSONObject response) throws JSONException {
+        return response.getJSONObject(Messenger.RETURN_VALUE).getString("TableName");
+    }
+
+
+    /**
+     * Channel to an EcuEmulator that can hold back its responses, so a test
+     * decides when and in which order they arrive.
+     * The channel receives every message of the ECU also when it holds.
+     */
+    private static class HoldingChannel extends Channel {
+
+        HoldingChannel(boolean echoingId) {
+            this.echoingId = echoingId;
+        }
+
+        @Override
+        public void open(String name) {
+        }
+
+        @Override
+        public synchronized void send(byte[] bytes) {
+            decoder.decode(bytes);
+        }
+
+        EcuEmulator getEmulator() {
+            return emulator;
+        }
+
+        /**
+         * Discards the responses to the next count calls.
+         */
+        synchronized void drop(int count) {
+            dropCount = count;
+        }
+
+        synchronized void hold() {
+            holding = true;
+        }
+
+        /**
+         * Stops holding and delivers the held responses, the last one first.
+         */
+        synchronized void releaseReversed() {
+            holding = false;
+            for (int i = held.size() - 1; i >= 0; --i) {
+                deliver(held.get(i));
+            }
+            held.clear();
+        }
+
+        synchronized void awaitCalls(int count) throws InterruptedException {
+            while (calls.size() < count) {
+                wait();
+            }
+        }
+
+        synchronized int getCallCount() {
+            return calls.size();
+        }
+
+        /**
+         * @return Id of the call received at index
+         */
+        synchronized int getId(int index) {
+            return calls.get(index).optInt(Messenger.ID, -1);
+        }
+
+        synchronized JSONObject getCall(int index) {
+            return calls.get(index);
+        }
+
+        private void handle(JSONObject message) {
+            calls.add(message);
+            notifyAll();
+            JSONObject response = emulator.handle(message);
+            if (response != null && dropCount > 0) {
+                dropCount--;
+            }
+            else if (response != null) {
+                if (! echoingId) {
+                    response.remove(Messenger.ID);
+                }
+                if (holding) {
+                    held.add(response);
+                }
+                else {
+                    deliver(response);
+                }
+            }
+        }
+
+        private void deliver(JSONObject response) {
+            notifyListeners(Framing.JSON.encode(response));
+        }
+
+        private final boolean echoingId;
+        private final EcuEmulator emulator = new EcuEmulator();
+        private final FrameDecoder decoder = new FrameDecoder(this::handle, reason -> fail(reason));
+        private final List<JSONObject> calls = new ArrayList<>();
+        private final List<JSONObject> held = new ArrayList<>();
+        private boolean holding;
+        private int dropCount;
+
+    }
+
+
     private class MessengerListener implements Messenger.Listener {
 
         @Override
@@ -163,5 +563,7 @@ public class MessengerTest {
 
 
     private static final JSONObject EMPTY = new JSONObject();
+    private static final String[] TABLES = { "Ignition", "Injection", "WaterCorrection", "AirCorrection", "BatteryCorrection" };
+    private static final int ID_COUNT = 0x8000;
  
 }
\ No newline at end of file
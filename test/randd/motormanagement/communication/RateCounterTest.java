@@ -0,0 +1,34 @@
+/*
+** Copyright © Bart Kampers
+*/
+
+package randd.motormanagement.communication;
+
+import java.util.concurrent.*;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+
+public class RateCounterTest {
+
+
+    @Test
+    public void testSlidingWindow() {
+        RateCounter counter = new RateCounter(1, TimeUnit.MINUTES, 60);
+        long start = TimeUnit.HOURS.toNanos(1);
+        counter.increment(start);
+        counter.increment(start + SECOND);
+        counter.increment(start + 30 * SECOND);
+        assertEquals(3, counter.getRate(start + 59 * SECOND));
+        assertEquals(2, counter.getRate(start + 60 * SECOND));
+        assertEquals(1, counter.getRate(start + 61 * SECOND));
+        assertEquals(0, counter.getRate(start + 90 * SECOND));
+        counter.increment(start + 120 * SECOND);
+        assertEquals(1, counter.getRate(start + 120 * SECOND));
+        assertEquals(4, counter.getTotal());
+    }
+
+
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+}
@@ -0,0 +1,144 @@
+/*
+** Copyright © Bart Kampers
+*/
+
+package randd.motormanagement.communication;
+
+import org.json.*;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+
+public class ReceiveQueueTest {
+
+
+    @Test(timeout=1000)
+    public void testDropOldestMeasurements() throws JSONException, InterruptedException {
+        ReceiveQueue queue = new ReceiveQueue(3, Transporter.OverflowPolicy.DROP_OLDEST_MEASUREMENTS);
+        queue.open();
+        queue.put(frame("Fire", "Notification", 1));
+        queue.put(frame("Return", "GetMeasurements", 2));
+        queue.put(frame("Return", "GetMeasurements", 3));
+        queue.put(frame("Return", "GetTableFields", 4));
+        assertEquals(3, queue.getDepth());
+        assertEquals(1, queue.getDroppedCount());
+        assertEquals(1, queue.take().getInt("Sequence"));
+        assertEquals(3, queue.take().getInt("Sequence"));
+        assertEquals(4, queue.take().getInt("Sequence"));
+        assertEquals(3, queue.getHighWaterMark());
+    }
+
+
+    @Test(timeout=1000)
+    public void testAwaitedMeasurementsKept() throws JSONException, InterruptedException {
+        ReceiveQueue queue = new ReceiveQueue(3, Transporter.OverflowPolicy.DROP_OLDEST_MEASUREMENTS);
+        queue.setAwaitedReturns(function -> ("GetMeasurements".equals(function)) ? 1 : 0);
+        queue.open();
+        queue.put(frame("Return", "GetMeasurements", 1));
+        queue.put(frame("Return", "GetTableActualValues", 2));
+        queue.put(frame("Fire", "Notification", 3));
+        queue.put(frame("Fire", "Notification", 4));
+        assertEquals(1, queue.getDroppedCount());
+        queue.put(frame("Return", "GetMeasurements", 5));
+        assertEquals(2, queue.getDroppedCount());
+        assertEquals(3, queue.take().getInt("Sequence"));
+        assertEquals(4, queue.take().getInt("Sequence"));
+        assertEquals(5, queue.take().getInt("Sequence"));
+    }
+
+
+    @Test(timeout=1000)
+    public void testLatestPerFunction() throws JSONException, InterruptedException {
+        ReceiveQueue queue = new ReceiveQueue(4, Transporter.OverflowPolicy.LATEST_PER_FUNCTION);
+        queue.open();
+        queue.put(frame("Return", "GetMeasurements", 1));
+        queue.put(frame("Return", "IsEngineRunning", 2));
+        queue.put(frame("Return", "IsEngineRunning", 3));
+        queue.put(frame("Fire", "GetMeasurements", 4));
+        queue.put(frame("Return", "GetMeasurements", 5));
+        assertEquals(2, queue.getDroppedCount());
+        assertEquals(3, queue.take().getInt("Sequence"));
+        assertEquals(4, queue.take().getInt("Sequence"));
+        assertEquals(5, queue.take().getInt("Sequence"));
+        assertEquals(0, queue.getDepth());
+    }
+
+
+    @Test(timeout=1000)
+    public void testLatestPerTable() throws JSONException, InterruptedException {
+        ReceiveQueue queue = new ReceiveQueue(4, Transporter.OverflowPolicy.LATEST_PER_FUNCTION);
+        queue.open();
+        queue.put(tableFrame("GetTableActualValues", "Ignition", 1));
+        queue.put(tableFrame("GetTableActualValues", "Injection", 2));
+        queue.put(tableFrame("SetTableField", "Ignition", 3));
+        queue.put(tableFrame("SetTableField", "Ignition", 4));
+        queue.put(tableFrame("GetTableActualValues", "Ignition", 5));
+        assertEquals(1, queue.getDroppedCount());
+        JSONObject correlated = tableFrame("GetTableActualValues", "Injection", 6);
+        correlated.put(Messenger.ID, 6);
+        Thread producer = new Thread(() -> {
+            try {
+                queue.put(correlated);
+            }
+            catch (InterruptedException ex) {
+                fail(ex.getMessage());
+            }
+        });
+        producer.start();
+        while (queue.getBlockedCount() == 0) {
+            Thread.sleep(1);
+        }
+        assertEquals(2, queue.take().getInt("Sequence"));
+        producer.join();
+        assertEquals(3, queue.take().getInt("Sequence"));
+        assertEquals(4, queue.take().getInt("Sequence"));
+        assertEquals(5, queue.take().getInt("Sequence"));
+        assertEquals(6, queue.take().getInt("Sequence"));
+        assertEquals(1, queue.getDroppedCount());
+    }
+
+
+    @Test(timeout=1000)
+    public void testBlockAndClose() throws JSONException, InterruptedException {
+        ReceiveQueue queue = new ReceiveQueue(1, Transporter.OverflowPolicy.BLOCK);
+        queue.open();
+        queue.put(frame("Return", "GetMeasurements", 1));
+        Thread producer = new Thread(() -> {
+            try {
+                queue.put(frame("Return", "GetMeasurements", 2));
+            }
+            catch (JSONException | InterruptedException ex) {
+                fail(ex.getMessage());
+            }
+        });
+        producer.start();
+        while (queue.getBlockedCount() == 0) {
+            Thread.sleep(1);
+        }
+        assertEquals(1, queue.take().getInt("Sequence"));
+        producer.join();
+        assertEquals(2, queue.take().getInt("Sequence"));
+        queue.close();
+        assertNull(queue.take());
+        assertEquals(0, queue.getDroppedCount());
+    }
+
+
+    private static JSONObject frame(String direction, String function, int sequence) throws JSONException {
+        JSONObject frame = new JSONObject();
+        frame.put(Messenger.DIRECTION, direction);
+        frame.put(Messenger.FUNCTION, function);
+        frame.put("Sequence", sequence);
+        return frame;
+    }
+
+
+    private static JSONObject tableFrame(String function, String tableName, int sequence) throws JSONException {
+        JSONObject returnValue = new JSONObject();
+        returnValue.put("TableName", tableName);
+        JSONObject frame = frame(Messenger.RETURN, function, sequence);
+        frame.put(Messenger.RETURN_VALUE, returnValue);
+        return frame;
+    }
+
+}
@@ -0,0 +1,150 @@
+/*
+** Copyright © Bart Kampers
+*/
+
+package randd.motormanagement.communication;
+
+import bka.communication.*;
+import java.util.*;
+import java.util.concurrent.*;
+import org.json.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import randd.motormanagement.emulator.*;
+import randd.motormanagement.system.*;
+
+
+public class RemoteSystemTest {
+
+
+    @Before
+    public void setUp() throws ChannelException {
+        channel = new HoldingChannel();
+        remoteSystem = new RemoteSystem(new Transporter(channel, "RemoteSystemTest"));
+        remoteSystem.setBatching(false);
+        remoteSystem.connect();
+    }
+
+
+    @After
+    public void tearDown() throws ChannelException {
+        remoteSystem.disconnect();
+    }
+
+
+    @Test(timeout=5000)
+    public void testCallException() throws Exception {
+        try {
+            remoteSystem.requestTableProperties(Table.getInstance("NoSuchTable")).get();
+            fail("CallException expected");
+        }
+        catch (ExecutionException ex) {
+            assertTrue(ex.getCause() instanceof RemoteSystem.CallException);
+            assertEquals("NoSuchMeasurementTable", ((RemoteSystem.CallException) ex.getCause()).getStatus());
+        }
+        assertNotNull(remoteSystem.requestEngine().get());
+    }
+
+
+    @Test(timeout=5000)
+    public void testTimeout() throws Exception {
+        channel.hold();
+        try {
+            remoteSystem.modifyCylinderCount(4).get();
+            fail("TimeoutException expected");
+        }
+        catch (ExecutionException ex) {
+            assertTrue(ex.getCause() instanceof TimeoutException);
+        }
+        assertEquals(Collections.singletonList("SetCylinderCount"), channel.getFunctions());
+        assertEquals(1, remoteSystem.getTimeoutCount());
+    }
+
+
+    @Test(timeout=5000)
+    public void testDeadlineSkipsUnsentCall() throws Exception {
+        channel.hold();
+        CompletableFuture<Engine> outstanding = remoteSystem.requestEngine();
+        channel.awaitCalls(1);
+        CompletableFuture<Table> expired = RemoteSystem.withDeadline(remoteSystem.requestTableProperties(Table.getInstance("Ignition")), 50, TimeUnit.MILLISECONDS);
+        try {
+            expired.get();
+            fail("TimeoutException expected");
+        }
+        catch (ExecutionException ex) {
+            assertTrue(ex.getCause() instanceof TimeoutException);
+        }
+        channel.release();
+        assertNotNull(outstanding.get());
+        assertNotNull(remoteSystem.requestEngine().get());
+        assertEquals(Arrays.asList("GetEngineProperties", "GetEngineProperties"), channel.getFunctions());
+    }
+
+
+    /**
+     * Channel to an EcuEmulator that can hold back its responses.
+     */
+    private static class HoldingChannel extends Channel {
+
+        @Override
+        public void open(String name) {
+        }
+
+        @Override
+        public synchronized void send(byte[] bytes) {
+            decoder.decode(bytes);
+        }
+
+        synchronized void hold() {
+            holding = true;
+        }
+
+        synchronized void release() {
+            holding = false;
+            held.forEach(this::deliver);
+            held.clear();
+        }
+
+        synchronized void awaitCalls(int count) throws InterruptedException {
+            while (functions.size() < count) {
+                wait();
+            }
+        }
+
+        synchronized List<String> getFunctions() {
+            return new ArrayList<>(functions);
+        }
+
+        private void handle(JSONObject message) {
+            functions.add(message.optString(Messenger.FUNCTION));
+            notifyAll();
+            JSONObject response = emulator.handle(message);
+            if (response != null) {
+                if (holding) {
+                    held.add(response);
+                }
+                else {
+                    deliver(response);
+                }
+            }
+        }
+
+        private void deliver(JSONObject response) {
+            notifyListeners(Framing.JSON.encode(response));
+        }
+
+        private final EcuEmulator emulator = new EcuEmulator();
+        private final FrameDecoder decoder = new FrameDecoder(this::handle, reason -> fail(reason));
+        private final List<String> functions = new ArrayList<>();
+        private final List<JSONObject> held = new ArrayList<>();
+        private boolean holding;
+
+    }
+
+
+    private HoldingChannel channel;
+    private RemoteSystem remoteSystem;
+
+}
@@ -0,0 +1,65 @@
+/*
+** Copyright © Bart Kampers
+*/
+
+package randd.motormanagement.communication;
+
+import java.util.*;
+import org.json.*;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+
+public class RequestWriterTest {
+
+
+    @Test
+    public void testEncode() throws JSONException {
+        RequestWriter writer = new RequestWriter();
+        for (Framing framing : Framing.values()) {
+            List<JSONObject> objects = new ArrayList<>();
+            List<String> errors = new ArrayList<>();
+            FrameDecoder decoder = new FrameDecoder(objects::add, errors::add);
+            decoder.decode(writer.encode(new TestCall(), 1, framing));
+            decoder.decode(writer.encode(new TestCall(), 0x7FFF, framing));
+            assertTrue(errors.isEmpty());
+            assertEquals(2, objects.size());
+            JSONObject message = objects.get(1);
+            assertEquals(0x7FFF, message.getInt("Id"));
+            assertEquals("Call", message.getString("Direction"));
+            assertEquals("SetTestValues", message.getString("Function"));
+            JSONObject parameters = message.getJSONObject("Parameters");
+            assertEquals(6, parameters.length());
+            assertEquals("Grüße \"\\\n", parameters.getString("TableName"));
+            assertEquals(Integer.MIN_VALUE, parameters.getInt("Column"));
+            assertEquals(-1.25, parameters.getDouble("Value"), 0.0);
+            assertEquals(3.0, parameters.getDouble("Minimum"), 0.0);
+            assertTrue(parameters.getBoolean("Enabled"));
+            JSONArray bytes = parameters.getJSONArray("Bytes");
+            assertEquals(3, bytes.length());
+            assertEquals(0, bytes.getInt(0));
+            assertEquals(255, bytes.getInt(2));
+        }
+    }
+
+
+    private static class TestCall implements Call {
+
+        @Override
+        public String getFunction() {
+            return "SetTestValues";
+        }
+
+        @Override
+        public void writeParameters(RequestWriter writer) {
+            writer.parameter("TableName", "Grüße \"\\\n");
+            writer.parameter("Column", Integer.MIN_VALUE);
+            writer.parameter("Value", -1.25f);
+            writer.parameter("Minimum", 3.0f);
+            writer.parameter("Enabled", true);
+            writer.parameter("Bytes", new int[] { 7, 0, 128, 255, 9 }, 1, 3);
+        }
+
+    }
+
+}
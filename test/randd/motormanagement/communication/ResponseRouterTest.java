@@ -0,0 +1,100 @@
+/*
+** Copyright © Bart Kampers
+*/
+
+package randd.motormanagement.communication;
+
+import java.nio.charset.*;
+import java.util.*;
+import org.json.*;
+import org.junit.Before;
+import org.junit.Test;
+import randd.motormanagement.system.*;
+import static org.junit.Assert.*;
+
+
+public class ResponseRouterTest {
+
+
+    @Before
+    public void setUp() {
+        objects = new ArrayList<>();
+        errors = new ArrayList<>();
+        updates = new ArrayList<>();
+        Map<String, PayloadDecoder> decoders = new HashMap<>();
+        decoders.put("GetTableFields", new TableFieldsDecoder());
+        decoders.put("GetTableActualValues", new TableActualValuesDecoder());
+        decoder = new FrameDecoder(new ResponseRouter(new JsonObjectBuilder(objects::add, errors::add), decoders, updates::add));
+    }
+
+
+    @Test
+    public void testDecodedToModel() throws JSONException {
+        JSONObject response = new JSONObject(
+            "{\"Direction\":\"Return\",\"Function\":\"GetTableFields\",\"Status\":\"OK\",\"ReturnValue\":" +
+            "{\"TableName\":\"RouterTest\",\"Fields\":[[1.5,2,3],[4,5.25,6]]}}");
+        decoder.decode(Framing.BINARY.encode(response));
+        decode("{\"Direction\":\"Return\",\"Function\":\"GetTableActualValues\",\"ReturnValue\":{\"TableName\":\"RouterTest\",\"CurrentColumn\":2,\"CurrentRow\":1,\"ProgrammerActivated\":true},\"Status\":\"OK\"}\n");
+        Table table = Table.getInstance("RouterTest");
+        assertFalse(table.hasFields());
+        assertEquals(2, updates.size());
+        updates.forEach(Runnable::run);
+        assertEquals(3, table.getColumnCount());
+        assertEquals(2, table.getRowCount());
+        assertEquals(1.5f, table.getField(0, 0), 0.0f);
+        assertEquals(5.25f, table.getField(1, 1), 0.0f);
+        assertEquals(Optional.of(2), table.getColumnIndex());
+        assertEquals(Optional.of(1), table.getRowIndex());
+        assertTrue(table.isProgrammerActivated());
+        assertEquals(2, objects.size());
+        assertEquals("GetTableFields", objects.get(0).getString("Function"));
+        assertFalse(objects.get(0).has("ReturnValue"));
+        assertTrue(errors.isEmpty());
+    }
+
+
+    @Test
+    public void testNotRouted() throws JSONException {
+        decode("{\"ReturnValue\":{\"TableName\":\"RouterLate\",\"Fields\":[[1]]},\"Function\":\"GetTableFields\",\"Direction\":\"Return\"}\n");
+        decode("{\"Direction\":\"Return\",\"Function\":\"GetTableFields\",\"ReturnValue\":{\"TableName\":\"RouterInvalid\",\"Fields\":[[1,2]]}\n");
+        assertEquals(1, objects.size());
+        assertEquals("RouterLate", objects.get(0).getJSONObject("ReturnValue").getString("TableName"));
+        assertFalse(Table.getInstance("RouterLate").hasFields());
+        assertFalse(Table.getInstance("RouterInvalid").hasFields());
+        assertEquals(1, errors.size());
+    }
+
+
+    @Test
+    public void testNotCommittedUnlessOk() throws JSONException {
+        decode("{\"Direction\":\"Return\",\"Function\":\"GetTableFields\",\"ReturnValue\":{\"TableName\":\"RouterFailed\",\"Fields\":[[1]]},\"Status\":\"Busy\"}\n");
+        decode("{\"Direction\":\"Return\",\"Function\":\"GetTableFields\",\"ReturnValue\":{\"TableName\":\"RouterNoStatus\",\"Fields\":[[1]]}}\n");
+        assertTrue(updates.isEmpty());
+        assertEquals(2, objects.size());
+        assertEquals("Busy", objects.get(0).getString("Status"));
+        assertFalse(Table.getInstance("RouterFailed").hasFields());
+        assertFalse(Table.getInstance("RouterNoStatus").hasFields());
+    }
+
+
+    @Test
+    public void testUpdateKeepsItsValues() throws JSONException {
+        decode("{\"Direction\":\"Return\",\"Function\":\"GetTableFields\",\"ReturnValue\":{\"TableName\":\"RouterFirst\",\"Fields\":[[1,2]]},\"Status\":\"OK\"}\n");
+        decode("{\"Direction\":\"Return\",\"Function\":\"GetTableFields\",\"ReturnValue\":{\"TableName\":\"RouterSecond\",\"Fields\":[[3,4]]},\"Status\":\"OK\"}\n");
+        updates.forEach(Runnable::run);
+        assertEquals(2.0f, Table.getInstance("RouterFirst").getField(1, 0), 0.0f);
+        assertEquals(4.0f, Table.getInstance("RouterSecond").getField(1, 0), 0.0f);
+    }
+
+
+    private void decode(String frame) {
+        decoder.decode(frame.getBytes(StandardCharsets.UTF_8));
+    }
+
+
+    private List<JSONObject> objects;
+    private List<String> errors;
+    private List<Runnable> updates;
+    private FrameDecoder decoder;
+
+}
@@ -0,0 +1,36 @@
+/*
+** Copyright © Bart Kampers
+*/
+
+package randd.motormanagement.communication;
+
+import java.util.concurrent.*;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+
+public class RoundTripEstimatorTest {
+
+
+    @Test
+    public void testTimeout() {
+        RoundTripEstimator estimator = new RoundTripEstimator(1000, 20, 5000, TimeUnit.MILLISECONDS);
+        assertEquals(1000, estimator.getTimeout("Get", TimeUnit.MILLISECONDS));
+        estimator.sample("Get", 40, TimeUnit.MILLISECONDS);
+        assertEquals(40, estimator.getRoundTripTime("Get", TimeUnit.MILLISECONDS));
+        assertEquals(40 + 4 * 20, estimator.getTimeout("Get", TimeUnit.MILLISECONDS));
+        for (int i = 0; i < 100; ++i) {
+            estimator.sample("Get", 8, TimeUnit.MILLISECONDS);
+        }
+        assertEquals(8, estimator.getRoundTripTime("Get", TimeUnit.MILLISECONDS));
+        assertEquals(20, estimator.getTimeout("Get", TimeUnit.MILLISECONDS));
+        estimator.backOff("Get");
+        assertEquals(40, estimator.getTimeout("Get", TimeUnit.MILLISECONDS));
+        for (int i = 0; i < 10; ++i) {
+            estimator.backOff("Get");
+        }
+        assertEquals(5000, estimator.getTimeout("Get", TimeUnit.MILLISECONDS));
+        assertEquals(1000, estimator.getTimeout("Set", TimeUnit.MILLISECONDS));
+    }
+
+}
@@ -0,0 +1,100 @@
+/*
+** Copyright © Bart Kampers
+*/
+
+package randd.motormanagement.communication;
+
+import bka.communication.*;
+import java.io.*;
+import java.net.*;
+import java.util.concurrent.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import randd.motormanagement.emulator.*;
+import randd.motormanagement.system.*;
+
+
+/**
+ * Round trips through a SocketChannel to an EmulatorServer, so every byte of
+ * a frame passes a real socket.
+ */
+public class SocketTransportTest {
+
+
+    @Before
+    public void setUp() throws IOException {
+        port = freePort();
+        server = new EmulatorServer(new EcuEmulator(), port, freePort());
+        server.start();
+    }
+
+
+    @After
+    public void tearDown() throws InterruptedException {
+        server.stop();
+    }
+
+
+    @Test(timeout=10000)
+    public void testJson() throws Exception {
+        roundTrip(Framing.JSON, false);
+    }
+
+
+    @Test(timeout=10000)
+    public void testBinary() throws Exception {
+        roundTrip(Framing.BINARY, false);
+    }
+
+
+    @Test(timeout=10000)
+    public void testCompressedJson() throws Exception {
+        roundTrip(Framing.JSON, true);
+    }
+
+
+    @Test(timeout=10000)
+    public void testCompressedBinary() throws Exception {
+        roundTrip(Framing.BINARY, true);
+    }
+
+
+    private void roundTrip(Framing framing, boolean compression) throws Exception {
+        Transporter transporter = new Transporter(SocketChannel.create(LOCALHOST, port), SocketTransportTest.class.getSimpleName());
+        transporter.setPreferredFraming(framing);
+        transporter.setCompression(compression);
+        RemoteSystem remoteSystem = new RemoteSystem(transporter);
+        remoteSystem.connect();
+        try {
+            assertEquals(framing, transporter.getFraming());
+            assertEquals(compression, transporter.isCompressing());
+            Table table = Table.getInstance("Ignition");
+            remoteSystem.requestTableFields(table).get(TIMEOUT, TimeUnit.SECONDS);
+            remoteSystem.modifyTable(table, 3, 4, 12.34f).get(TIMEOUT, TimeUnit.SECONDS);
+            remoteSystem.requestTableFields(table).get(TIMEOUT, TimeUnit.SECONDS);
+            assertEquals(12.34f, table.getField(3, 4), 0.001f);
+            Flash flash = remoteSystem.requestFlash().get(TIMEOUT, TimeUnit.SECONDS);
+            assertTrue(flash.hasBytes());
+        }
+        finally {
+            remoteSystem.disconnect();
+        }
+    }
+
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+
+    private EmulatorServer server;
+    private int port;
+
+    private static final String LOCALHOST = "localhost";
+    private static final long TIMEOUT = 5;
+
+}
@@ -0,0 +1,164 @@
+/*
+** Copyright © Bart Kampers
+*/
+
+package randd.motormanagement.communication;
+
+import java.util.*;
+import java.util.concurrent.*;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+
+public class TransactionQueueTest {
+
+
+    @Test
+    public void testMergeReads() throws InterruptedException {
+        TransactionQueue<String> queue = new TransactionQueue<>(1, TimeUnit.MINUTES);
+        assertEquals("read 1", queue.addRead("read 1", "Read", LANE));
+        assertEquals("read 1", queue.addRead("read 2", "Read", LANE));
+        queue.add("write", LANE);
+        assertEquals("read 3", queue.addRead("read 3", "Read", LANE));
+        assertEquals(3, queue.size());
+        assertEquals(1, queue.getMergedCount());
+        assertEquals("read 1", queue.poll(0, TimeUnit.MILLISECONDS));
+        assertEquals("write", queue.poll(0, TimeUnit.MILLISECONDS));
+        assertEquals("read 3", queue.poll(0, TimeUnit.MILLISECONDS));
+        assertEquals("read 4", queue.addRead("read 4", "Read", LANE));
+        assertEquals("read 4", queue.poll(0, TimeUnit.MILLISECONDS));
+        assertNull(queue.poll(0, TimeUnit.MILLISECONDS));
+    }
+
+
+    @Test
+    public void testSupersedeWrites() throws InterruptedException {
+        TransactionQueue<String> queue = new TransactionQueue<>(1, TimeUnit.MINUTES);
+        assertNull(queue.addWrite("cell = 1", "Cell", LANE));
+        assertNull(queue.addWrite("other = 1", "Other", LANE));
+        assertEquals("read", queue.addRead("read", "Read", LANE));
+        assertEquals("cell = 1", queue.addWrite("cell = 2", "Cell", LANE));
+        assertEquals("read 2", queue.addRead("read 2", "Read", LANE));
+        assertEquals(4, queue.size());
+        assertEquals(1, queue.getSupersededCount());
+        assertEquals("cell = 2", queue.poll(0, TimeUnit.MILLISECONDS));
+        assertNull(queue.addWrite("cell = 3", "Cell", LANE));
+        assertEquals("other = 1", queue.poll(0, TimeUnit.MILLISECONDS));
+        assertEquals("read", queue.poll(0, TimeUnit.MILLISECONDS));
+        assertEquals("read 2", queue.poll(0, TimeUnit.MILLISECONDS));
+        assertEquals("cell = 3", queue.poll(0, TimeUnit.MILLISECONDS));
+    }
+
+
+    @Test
+    public void testPriority() throws InterruptedException {
+        TransactionQueue<String> queue = new TransactionQueue<>(1, TimeUnit.MINUTES);
+        queue.addRead("poll", "Poll", Priority.POLL);
+        queue.addRead("bulk read", "Bulk", Priority.BULK);
+        queue.add("write", Priority.INTERACTIVE_WRITE);
+        queue.addRead("poll read", "Read", Priority.POLL);
+        assertEquals("poll read", queue.addRead("read", "Read", Priority.INTERACTIVE_READ));
+        assertEquals("write", queue.poll(0, TimeUnit.MILLISECONDS));
+        assertEquals("poll read", queue.poll(0, TimeUnit.MILLISECONDS));
+        assertEquals("bulk read", queue.poll(0, TimeUnit.MILLISECONDS));
+        assertEquals("poll", queue.poll(0, TimeUnit.MILLISECONDS));
+        assertEquals(1, queue.getSentCount(Priority.INTERACTIVE_READ));
+        assertEquals(1, queue.getSentCount(Priority.POLL));
+    }
+
+
+    @Test
+    public void testNoWriteSupersededAcrossBarrier() throws InterruptedException {
+        TransactionQueue<String> queue = new TransactionQueue<>(1, TimeUnit.MINUTES);
+        assertNull(queue.addWrite("X = 1", "X", LANE));
+        queue.add("apply programmer value", LANE);
+        assertNull(queue.addWrite("X = 2", "X", LANE));
+        assertEquals(0, queue.getSupersededCount());
+        assertEquals("X = 1", queue.poll(0, TimeUnit.MILLISECONDS));
+        assertEquals("apply programmer value", queue.poll(0, TimeUnit.MILLISECONDS));
+        queue.addFirst("apply programmer value", LANE);
+        assertNull(queue.addWrite("X = 3", "X", LANE));
+        assertEquals("apply programmer value", queue.poll(0, TimeUnit.MILLISECONDS));
+        assertEquals("X = 2", queue.poll(0, TimeUnit.MILLISECONDS));
+        assertEquals("X = 3", queue.poll(0, TimeUnit.MILLISECONDS));
+    }
+
+
+    @Test
+    public void testProgramOrder() throws InterruptedException {
+        TransactionQueue<String> queue = new TransactionQueue<>(1, TimeUnit.MINUTES);
+        queue.addRead("poll", "Poll", Priority.POLL);
+        queue.addRead("measurements", "Measurements", Priority.INTERACTIVE_READ);
+        queue.addWrite("flash write", "Flash", Priority.BULK);
+        queue.addRead("table fields", "Fields", Priority.INTERACTIVE_READ);
+        queue.addWrite("table write", "Table", Priority.INTERACTIVE_WRITE);
+        queue.add("bulk write", Priority.BULK);
+        queue.addRead("poll 2", "Poll 2", Priority.POLL);
+        queue.addWrite("field write", "Field", Priority.INTERACTIVE_WRITE);
+        assertEquals("table write", queue.poll(0, TimeUnit.MILLISECONDS));
+        assertEquals("measurements", queue.poll(0, TimeUnit.MILLISECONDS));
+        assertEquals("flash write", queue.poll(0, TimeUnit.MILLISECONDS));
+        assertEquals("table fields", queue.poll(0, TimeUnit.MILLISECONDS));
+        assertEquals("bulk write", queue.poll(0, TimeUnit.MILLISECONDS));
+        assertEquals("field write", queue.poll(0, TimeUnit.MILLISECONDS));
+        assertEquals("poll", queue.poll(0, TimeUnit.MILLISECONDS));
+        assertEquals("poll 2", queue.poll(0, TimeUnit.MILLISECONDS));
+        assertNull(queue.poll(0, TimeUnit.MILLISECONDS));
+    }
+
+
+    @Test
+    public void testInteractiveWriteOvertakesBulkWrites() throws InterruptedException {
+        TransactionQueue<String> queue = new TransactionQueue<>(1, TimeUnit.MINUTES);
+        for (int i = 0; i < 3; ++i) {
+            queue.addWrite("flash " + i, Arrays.asList("SetPersistentMemoryBytes", i * 16, 16), Priority.BULK);
+        }
+        queue.addWrite("table field", Arrays.asList("SetTableField", "Ignition", 1, 2), Priority.INTERACTIVE_WRITE);
+        queue.addRead("table fields", "GetTableFields", Priority.INTERACTIVE_READ);
+        assertEquals("table field", queue.poll(0, TimeUnit.MILLISECONDS));
+        assertEquals("flash 0", queue.poll(0, TimeUnit.MILLISECONDS));
+        assertEquals("flash 1", queue.poll(0, TimeUnit.MILLISECONDS));
+        assertEquals("flash 2", queue.poll(0, TimeUnit.MILLISECONDS));
+        assertEquals("table fields", queue.poll(0, TimeUnit.MILLISECONDS));
+        assertNull(queue.poll(0, TimeUnit.MILLISECONDS));
+    }
+
+
+    @Test
+    public void testWritesToSameTargetKeepOrder() throws InterruptedException {
+        TransactionQueue<String> queue = new TransactionQueue<>(1, TimeUnit.MINUTES);
+        queue.addWrite("cell = 1", "Cell", Priority.BULK);
+        queue.addFirst("retried", Priority.POLL);
+        assertNull(queue.addWrite("cell = 2", "Cell", Priority.INTERACTIVE_WRITE));
+        assertEquals("retried", queue.poll(0, TimeUnit.MILLISECONDS));
+        assertEquals("cell = 1", queue.poll(0, TimeUnit.MILLISECONDS));
+        assertEquals("cell = 2", queue.poll(0, TimeUnit.MILLISECONDS));
+    }
+
+
+    @Test
+    public void testPromotionKeepsProgramOrder() throws InterruptedException {
+        TransactionQueue<String> queue = new TransactionQueue<>(1, TimeUnit.MINUTES);
+        queue.addWrite("cell = 1", "Cell", Priority.BULK);
+        queue.addRead("read", "Read", Priority.INTERACTIVE_READ);
+        assertEquals("cell = 1", queue.addWrite("cell = 2", "Cell", Priority.INTERACTIVE_READ));
+        assertEquals("cell = 2", queue.poll(0, TimeUnit.MILLISECONDS));
+        assertEquals("read", queue.poll(0, TimeUnit.MILLISECONDS));
+    }
+
+
+    @Test
+    public void testMaximumWait() throws InterruptedException {
+        TransactionQueue<String> queue = new TransactionQueue<>(0, TimeUnit.MILLISECONDS);
+        queue.add("poll", Priority.POLL);
+        Thread.sleep(2);
+        queue.add("write", Priority.INTERACTIVE_WRITE);
+        assertEquals("poll", queue.poll(0, TimeUnit.MILLISECONDS));
+        assertEquals("write", queue.poll(0, TimeUnit.MILLISECONDS));
+        assertTrue(queue.getMaximumWait(Priority.POLL, TimeUnit.NANOSECONDS) >= TimeUnit.MILLISECONDS.toNanos(2));
+    }
+
+
+    private static final Priority LANE = Priority.INTERACTIVE_READ;
+
+}